@@ -60,7 +60,7 @@ public class AppWatcher extends BroadcastReceiver
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Package Installed");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
 			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, pkgName);	
-			context.getContentResolver().insert(eventsUri, values);
+			EventSink.getInstance(context).post(eventsUri, values);
 			//Log.i(TAG, "Package Installed: "+pkgName);
 		}
 		
@@ -71,7 +71,7 @@ public class AppWatcher extends BroadcastReceiver
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Package Removed");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
 			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, pkgName);	
-			context.getContentResolver().insert(eventsUri, values);
+			EventSink.getInstance(context).post(eventsUri, values);
 			//Log.i(TAG, "Package Removed: "+pkgName);
 		}
 	}
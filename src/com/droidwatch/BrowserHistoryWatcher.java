@@ -128,39 +128,16 @@ public class BrowserHistoryWatcher extends BroadcastReceiver
         		search = browserCursor.getString(browserCursor.getColumnIndex("search"));
         		date = new Date(browserCursor.getLong(browserCursor.getColumnIndex("date")));
         		
-        		// Check to see if this search is already in the database
-        		String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.EVENT_ACTION_COLUMN, DroidWatchDatabase.EVENT_DATE_COLUMN, DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN};
-				String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.EVENT_ACTION_COLUMN+" = ? AND "+DroidWatchDatabase.EVENT_DATE_COLUMN +" = ? AND "+DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN+" = ?";
-				String[] selectionArgs = new String[]{TAG, "Browser Search", String.valueOf(date.getTime()), search};
-				Cursor cursor = null;
-				try
-				{
-					cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-				}
-				catch(Exception e)
-				{
-					Log.e(TAG, "Unable to query events table");
-					return;
-				}
+				// Insert browser search into DroidWatch (ignored if already logged)
+        		ContentValues values = new ContentValues();
+				values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Browser Search");
+				values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
+				values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, search);
+				values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, "Search", date.getTime(), search));
+				EventSink.getInstance(context).post(eventsUri, values);
+        		//Log.i(TAG, "Search: "+search+" Date: "+date.toString());
 				
-				// Log search event
-				if (cursor == null)
-				{
-					Log.e(TAG, "Unable to query events table");
-					return;
-				}
-				
-				if (cursor.getCount() == 0)
-				{
-					// Insert new browser search into DroidWatch
-	        		ContentValues values = new ContentValues();
-					values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-					values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Browser Search");
-					values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
-					values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, search);
-					context.getContentResolver().insert(eventsUri, values);
-	        		//Log.i(TAG, "Search: "+search+" Date: "+date.toString());
-				}
         		browserCursor.moveToNext();
         	}
 		}
@@ -173,8 +150,8 @@ public class BrowserHistoryWatcher extends BroadcastReceiver
 	 */
 	private void getBrowserHistory(long timeStarted) 
 	{
-		// Initialize DroidWatch events database URI
-		Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+		// Initialize DroidWatch browser visits database URI
+		Uri visitsUri = DroidWatchProvider.BrowserVisits.CONTENT_URI;
 		
 		// Query browser history database
 		String[] proj = new String[] {Browser.BookmarkColumns.TITLE, Browser.BookmarkColumns.URL, Browser.BookmarkColumns.DATE};
@@ -208,41 +185,18 @@ public class BrowserHistoryWatcher extends BroadcastReceiver
 	            url = historyCursor.getString(historyCursor.getColumnIndex(Browser.BookmarkColumns.URL));
 	            date = new Date(historyCursor.getLong(historyCursor.getColumnIndex(Browser.BookmarkColumns.DATE)));
 	            
-	            // Check to see if it's in the database already
-	            String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.EVENT_ACTION_COLUMN, DroidWatchDatabase.EVENT_DATE_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN};
-				String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.EVENT_ACTION_COLUMN+" = ? AND "+DroidWatchDatabase.EVENT_DATE_COLUMN +" = ? AND "+DroidWatchDatabase.ADDITIONAL_INFO_COLUMN+" = ?";
-				String[] selectionArgs = new String[]{TAG, "Browser Navigation", String.valueOf(date.getTime()), url};
-				Cursor cursor = null;
-				try
-				{
-					cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-				}
-				catch(Exception e)
-				{
-					Log.e(TAG, "Unable to query events table");
-					return;
-				}
+				// Insert browser history event into DroidWatch (ignored if already logged)
+        		ContentValues values = new ContentValues();
+				values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Browser Navigation");
+				values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
+				values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, title);
+				values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, "Navigation", date.getTime(), url));
+				values.put(DroidWatchDatabase.BROWSER_VISIT_URL_COLUMN, url);
+				EventSink.getInstance(context).post(visitsUri, values);
 				
-				// Log history event
-				if (cursor == null)
-				{
-					Log.e(TAG, "Unable to query events table");
-					return;
-				}
+				//Log.i(TAG,"Title: "+title+" URL: "+url+ " LastVisited: "+date.toString());
 				
-				if (cursor.getCount() == 0)
-				{
-					// Insert new browser history event into DroidWatch
-	        		ContentValues values = new ContentValues();
-					values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-					values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Browser Navigation");
-					values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
-					values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, title);
-					values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, url);
-					context.getContentResolver().insert(eventsUri, values);
-					
-					//Log.i(TAG,"Title: "+title+" URL: "+url+ " LastVisited: "+date.toString());
-				}
 	            historyCursor.moveToNext();
 	        }
 	    }
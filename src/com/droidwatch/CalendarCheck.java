@@ -21,6 +21,7 @@ package com.droidwatch;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -113,6 +114,7 @@ public class CalendarCheck
 			long eventTime = -1;
 			long currentTime = System.currentTimeMillis();
 			ContentValues values;
+			ArrayList<ContentValues> batch = new ArrayList<ContentValues>(calendarCursor.getCount());
 			while (!calendarCursor.isAfterLast())
 			{
 				id = calendarCursor.getLong(calendarCursor.getColumnIndex("_id"));
@@ -125,10 +127,13 @@ public class CalendarCheck
 				values.put(DroidWatchDatabase.CALENDAR_EVENT_NAME_COLUMN, name);
 				values.put(DroidWatchDatabase.CALENDAR_EVENT_ADDED_COLUMN, currentTime);
 				values.put(DroidWatchDatabase.CALENDAR_EVENT_DATE_COLUMN, eventTime);
-        		context.getContentResolver().insert(DroidWatchProvider.Calendar.CONTENT_URI, values);
+				batch.add(values);
 	            
 	            calendarCursor.moveToNext();
 			}
+			
+			// Insert all calendar events in a single transaction
+			context.getContentResolver().bulkInsert(DroidWatchProvider.Calendar.CONTENT_URI, batch.toArray(new ContentValues[batch.size()]));
 		}
 	}
 }
\ No newline at end of file
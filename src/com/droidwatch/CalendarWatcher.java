@@ -158,7 +158,7 @@ public class CalendarWatcher extends BroadcastReceiver
             		eventValues.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
             		eventValues.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, title);
             		eventValues.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "ID:"+id+";");
-            		context.getContentResolver().insert(eventsUri, eventValues);
+            		EventSink.getInstance(context).post(eventsUri, eventValues);
             		
             		// Log calendar event in calendar table
             		ContentValues calendarValues = new ContentValues();
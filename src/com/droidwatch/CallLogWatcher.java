@@ -21,8 +21,9 @@ package com.droidwatch;
  * limitations under the License.
  */
 
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -49,6 +50,9 @@ public class CallLogWatcher extends ContentObserver
     {
         super( handler );
         this.context = context;
+        
+        // Checkpoint the watched content provider before its first change notification
+        WatermarkManager.getWatermark(context, Calls.CONTENT_URI);
     }
 
     /**
@@ -64,16 +68,24 @@ public class CallLogWatcher extends ContentObserver
     }
     
     /**
-     * This method queries the call log database for new calls.
+     * This method logs the calls added to the call log since the last seen call.
      */
     private void queryCallLog()
     {
-    	// Query the the call database
+    	// Get the last seen call
+    	long watermark = WatermarkManager.getWatermark(context, Calls.CONTENT_URI);
+    	long watermarkDate = WatermarkManager.getWatermarkDate(context, Calls.CONTENT_URI);
+    	if (watermark < 0 || watermarkDate < 0)
+    		return;
+    	
+    	// Query the the call database for new calls (oldest first, newer dates are checked as well
+    	// since call IDs can be reused once the newest calls are deleted)
     	Cursor callCursor = null;
     	String[] callProj = new String[]{Calls._ID, Calls.NUMBER, Calls.CACHED_NAME, Calls.DURATION, Calls.DATE, Calls.CACHED_NUMBER_TYPE, Calls.TYPE };
     	try
     	{
-    		callCursor = context.getContentResolver().query(Calls.CONTENT_URI, callProj, null, null, Calls.DATE + " DESC");
+    		callCursor = context.getContentResolver().query(Calls.CONTENT_URI, callProj, Calls._ID + " > ? OR " + Calls.DATE + " > ?",
+    				new String[]{String.valueOf(watermark), String.valueOf(watermarkDate)}, Calls._ID + " ASC");
     	}
     	catch(Exception e)
     	{
@@ -88,19 +100,23 @@ public class CallLogWatcher extends ContentObserver
     		return;
     	}
     	
-		if (callCursor.moveToFirst() && callCursor.getCount() > 0)
+		// Initialize DroidWatch calls content provider URI
+		Uri callsUri = DroidWatchProvider.Calls.CONTENT_URI;
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		long lastID = watermark;
+		long lastDate = watermarkDate;
+		while (callCursor.moveToNext())
 		{
-			// Initialize DroidWatch events content provider URI
-			Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
-			
 			// Get call event information
-			int id					= callCursor.getInt(callCursor.getColumnIndex(Calls._ID));
+			long id					= callCursor.getLong(callCursor.getColumnIndex(Calls._ID));
 			String contactNumber 	= callCursor.getString(callCursor.getColumnIndex(Calls.NUMBER)); 
 	        String contactName 		= callCursor.getString(callCursor.getColumnIndex(Calls.CACHED_NAME)); 
 	        long duration 			= callCursor.getLong(callCursor.getColumnIndex(Calls.DURATION));
 	        Date callDate 			= new Date(callCursor.getLong(callCursor.getColumnIndex(Calls.DATE)));
 	        String numType 			= callCursor.getString(callCursor.getColumnIndex(Calls.CACHED_NUMBER_TYPE));
 	        int callType 			= callCursor.getInt(callCursor.getColumnIndex(Calls.TYPE));
+	        lastID = Math.max(lastID, id);
+	        lastDate = Math.max(lastDate, callDate.getTime());
 	        
 	        // Determine call direction
 	        String direction = "";
@@ -110,49 +126,28 @@ public class CallLogWatcher extends ContentObserver
 	        	direction = "Incoming - Missed";
 	        else
 	        	direction = "Outgoing";
-	        
-	        // Check to make sure this is not an old call
-	        Calendar cal = Calendar.getInstance();
-			cal.add(Calendar.MINUTE, -5);
-			long fiveMinutesAgo = cal.getTimeInMillis();
-			long endCallDate = callDate.getTime() + (duration*1000L);
-			if(endCallDate < fiveMinutesAgo)
-				return;
 	     
-	        // Check to see if this search is already in the database
-    		String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN};
-			String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.ADDITIONAL_INFO_COLUMN +" LIKE ?";
-			String[] selectionArgs = new String[]{TAG, "%ID:"+id+";%"};
-			Cursor cursor = null;
-			try
-			{
-				cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-			}
-			catch(Exception e)
-			{
-				Log.e(TAG, "Unable to query events table: "+e.getMessage());
-				return;
-			}
-			
-			// Log new calls made & received
-			if (cursor == null)
-			{
-				Log.e(TAG, "Unable to query events table");
-				return;
-			}
-			
-			if (cursor.getCount() == 0)
-			{
-				// Insert phone call event into DroidWatch
-				ContentValues values = new ContentValues();
-				values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Phone Call");
-				values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, callDate.getTime());
-				values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, direction);
-				values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "ID:"+id+"; Number:"+contactNumber+"; Name:"+contactName+"; Duration:"+duration+" NumType:"+numType+";");
-				context.getContentResolver().insert(eventsUri, values);
-				//Log.i(TAG, "Direction: "+direction+" Number: "+contactNumber+ " Name: "+contactName+" Duration: "+duration+" Date: "+callDate.toString()+" NumType: "+numType+" ID: "+id);
-			}
+			// Insert phone call event into DroidWatch (ignored if already logged)
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Phone Call");
+			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, callDate.getTime());
+			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, direction);
+			values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, id, callDate.getTime()));
+			values.put(DroidWatchDatabase.CALL_ID_COLUMN, id);
+			values.put(DroidWatchDatabase.CALL_NUMBER_COLUMN, contactNumber);
+			values.put(DroidWatchDatabase.CALL_NAME_COLUMN, contactName);
+			values.put(DroidWatchDatabase.CALL_DURATION_COLUMN, duration);
+			values.put(DroidWatchDatabase.CALL_NUMBER_TYPE_COLUMN, numType);
+			operations.add(ContentProviderOperation.newInsert(callsUri).withValues(values).build());
+			//Log.i(TAG, "Direction: "+direction+" Number: "+contactNumber+ " Name: "+contactName+" Duration: "+duration+" Date: "+callDate.toString()+" NumType: "+numType+" ID: "+id);
 		}
+		callCursor.close();
+		
+		// Log the new calls and advance the watermark together
+		if (lastID == watermark && lastDate == watermarkDate)
+			return;
+		operations.add(WatermarkManager.advanceWatermark(Calls.CONTENT_URI, lastID, lastDate));
+		WatermarkManager.applyBatch(context, operations);
     }
-}
+}
\ No newline at end of file
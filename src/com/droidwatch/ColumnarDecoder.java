@@ -0,0 +1,296 @@
+package com.droidwatch;
+
+/**
+ * ColumnarDecoder.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class reads the columnar event format written by ColumnarEncoder, one batch at a time.
+ * It only depends on the Java runtime, so the central server can decode uploads with it.
+ **/
+public class ColumnarDecoder
+{
+	// Initialize constants and variables
+	public static final byte[] MAGIC = new byte[]{'D', 'W', 'C', 1};
+	
+	// Column indexes of an event (shared by the exported cursor and the encoder)
+	static final int ID_INDEX = 0;
+	static final int DETECTOR_INDEX = 1;
+	static final int DETECTED_INDEX = 2;
+	static final int ACTION_INDEX = 3;
+	static final int EVENT_DATE_INDEX = 4;
+	static final int DESCRIPTION_INDEX = 5;
+	static final int ADDITIONAL_INFO_INDEX = 6;
+	static final int COLUMN_COUNT = 7;
+	private static final String CHARSET = "UTF-8";
+
+	private final InputStream input;
+	private final List<String> detectors = new ArrayList<String>();
+	private final List<String> actions = new ArrayList<String>();
+	private long transferID = -1;
+	private String deviceID = null;
+	private long afterID = 0;
+	private long eventCount = -1;
+	private long lastEventID = -1;
+	private long decodedCount = 0;
+	private long previousID = 0;
+	private long previousDetected = 0;
+	private long previousEventDate = 0;
+
+	/** This class holds a decoded event. **/
+	public static final class Event
+	{
+		public long id;
+		public String detector;
+		public long detected;
+		public String action;
+		public Long eventDate;
+		public String description;
+		public String additionalInfo;
+	}
+
+	/**
+	 * Constructor used to set the input stream.
+	 *
+	 * @param input		The input stream (inflated if the upload was compressed).
+	 */
+	public ColumnarDecoder(InputStream input)
+	{
+		this.input = input;
+	}
+
+	/**
+	 * This method reads the stream header.
+	 *
+	 * @throws IOException	If the stream is not in the columnar format.
+	 */
+	public void readHeader() throws IOException
+	{
+		byte[] magic = new byte[MAGIC.length];
+		readFully(input, magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not a columnar event stream");
+		transferID = readVarint(input);
+		deviceID = readString(input);
+		afterID = readVarint(input);
+		previousID = afterID;
+	}
+
+	/**
+	 * This method reads the next batch of events.
+	 *
+	 * @return	The events, or null at the end of the stream.
+	 * @throws IOException	If the stream is truncated or corrupt.
+	 */
+	public List<Event> readBatch() throws IOException
+	{
+		if (eventCount >= 0)
+			return null;
+		int rows = (int) readVarint(input);
+		if (rows == 0)
+		{
+			eventCount = readVarint(input);
+			lastEventID = readVarint(input);
+			if (eventCount != decodedCount || (eventCount > 0 && lastEventID != previousID))
+				throw new IOException("Event count mismatch: "+decodedCount+" decoded, "+eventCount+" expected");
+			return null;
+		}
+
+		InputStream[] columns = new InputStream[COLUMN_COUNT];
+		for (int i = 0; i < columns.length; i++)
+		{
+			byte[] column = new byte[(int) readVarint(input)];
+			readFully(input, column);
+			columns[i] = new ByteArrayInputStream(column);
+		}
+
+		List<Event> events = new ArrayList<Event>(rows);
+		for (int row = 0; row < rows; row++)
+		{
+			Event event = new Event();
+			event.id = previousID + readVarint(columns[ID_INDEX]);
+			previousID = event.id;
+			event.detected = previousDetected + unzigzag(readVarint(columns[DETECTED_INDEX]));
+			previousDetected = event.detected;
+			long eventDate = readVarint(columns[EVENT_DATE_INDEX]);
+			if (eventDate != 0)
+			{
+				previousEventDate += unzigzag(eventDate - 1);
+				event.eventDate = Long.valueOf(previousEventDate);
+			}
+			event.detector = readCode(columns[DETECTOR_INDEX], detectors);
+			event.action = readCode(columns[ACTION_INDEX], actions);
+			event.description = readString(columns[DESCRIPTION_INDEX]);
+			event.additionalInfo = readString(columns[ADDITIONAL_INFO_INDEX]);
+			events.add(event);
+		}
+		decodedCount += rows;
+		return events;
+	}
+
+	/**
+	 * This method returns the transfer ID of the stream header.
+	 *
+	 * @return	The transfer ID.
+	 */
+	public long getTransferID()
+	{
+		return transferID;
+	}
+
+	/**
+	 * This method returns the device ID of the stream header.
+	 *
+	 * @return	The device ID.
+	 */
+	public String getDeviceID()
+	{
+		return deviceID;
+	}
+
+	/**
+	 * This method returns the last event ID exported before the stream.
+	 *
+	 * @return	The after ID.
+	 */
+	public long getAfterID()
+	{
+		return afterID;
+	}
+
+	/**
+	 * This method returns the event count of the stream trailer.
+	 *
+	 * @return	The event count (-1 until the last batch is read).
+	 */
+	public long getEventCount()
+	{
+		return eventCount;
+	}
+
+	/**
+	 * This method returns the last event ID of the stream trailer.
+	 *
+	 * @return	The last event ID (-1 until the last batch is read).
+	 */
+	public long getLastEventID()
+	{
+		return lastEventID;
+	}
+
+	/**
+	 * This method reads a dictionary code, adding new values to the dictionary.
+	 *
+	 * @param column		The column bytes.
+	 * @param dictionary	The dictionary of the column.
+	 * @return				The value (may be null).
+	 * @throws IOException
+	 */
+	private static String readCode(InputStream column, List<String> dictionary) throws IOException
+	{
+		long code = readVarint(column);
+		if (code == 0)
+			return null;
+		if (code <= dictionary.size())
+			return dictionary.get((int) code - 1);
+		if (code != dictionary.size() + 1)
+			throw new IOException("Invalid dictionary code: "+code);
+		String value = readString(column);
+		dictionary.add(value);
+		return value;
+	}
+
+	/**
+	 * This method reads a length-prefixed UTF-8 string.
+	 *
+	 * @param input		The input stream.
+	 * @return			The string (may be null).
+	 * @throws IOException
+	 */
+	private static String readString(InputStream input) throws IOException
+	{
+		long length = readVarint(input);
+		if (length == 0)
+			return null;
+		byte[] bytes = new byte[(int) (length - 1)];
+		readFully(input, bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * This method reads an unsigned varint.
+	 *
+	 * @param input		The input stream.
+	 * @return			The value.
+	 * @throws IOException
+	 */
+	private static long readVarint(InputStream input) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = input.read();
+			if (b < 0)
+				throw new EOFException("Truncated varint");
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	/**
+	 * This method restores a zigzag-encoded signed value.
+	 *
+	 * @param value		The zigzag-encoded value.
+	 * @return			The signed value.
+	 */
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * This method fills a buffer from an input stream.
+	 *
+	 * @param input		The input stream.
+	 * @param buffer	The buffer.
+	 * @throws IOException
+	 */
+	private static void readFully(InputStream input, byte[] buffer) throws IOException
+	{
+		int offset = 0;
+		while (offset < buffer.length)
+		{
+			int count = input.read(buffer, offset, buffer.length - offset);
+			if (count < 0)
+				throw new EOFException("Truncated stream");
+			offset += count;
+		}
+	}
+}
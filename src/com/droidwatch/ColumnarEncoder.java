@@ -0,0 +1,220 @@
+package com.droidwatch;
+
+/**
+ * ColumnarEncoder.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import android.database.Cursor;
+
+/**
+ * This class writes exported events in a compact columnar format.  Events are grouped in
+ * batches, and each batch stores every column contiguously: IDs and dates as varint deltas,
+ * detectors and actions as codes of dictionaries built along the stream, and text as
+ * length-prefixed UTF-8.  Delta and dictionary state carries across batches.  The format is read
+ * back by ColumnarDecoder.
+ *
+ * Stream:	magic "DWC" and version, header (varint transfer ID, string device ID, varint after ID),
+ * 			batches (varint row count, then each column as a varint byte length and its bytes),
+ * 			end (varint 0, varint event count, varint last event ID).
+ * Column:	_id as varint(id - previous id), detected as zigzag(delta), event_date as 0 for null or
+ * 			zigzag(delta) + 1, detector and action as dictionary codes (0 for null, 1..n for a known
+ * 			value, n + 1 followed by the string for a new value), description and additional_info
+ * 			as strings.
+ * String:	varint 0 for null, or varint(byte length + 1) followed by the UTF-8 bytes.
+ **/
+public class ColumnarEncoder implements EventExporter.EventWriter
+{
+	// Initialize constants and variables
+	public static final String FILENAME = "events.dwc";
+	public static final int BATCH_ROWS = 1000;
+	private static final String CHARSET = "UTF-8";
+
+	private final OutputStream output;
+	private final ByteArrayOutputStream[] columns = new ByteArrayOutputStream[ColumnarDecoder.COLUMN_COUNT];
+	private final HashMap<String, Long> detectors = new HashMap<String, Long>();
+	private final HashMap<String, Long> actions = new HashMap<String, Long>();
+	private int batchRows = 0;
+	private long previousID = 0;
+	private long previousDetected = 0;
+	private long previousEventDate = 0;
+
+	/**
+	 * Constructor used to set the output stream.
+	 *
+	 * @param output	The output stream.
+	 */
+	public ColumnarEncoder(OutputStream output)
+	{
+		this.output = output;
+		for (int i = 0; i < columns.length; i++)
+			columns[i] = new ByteArrayOutputStream();
+	}
+
+	public void writeHeader(long transferID, String deviceID, long afterID) throws IOException
+	{
+		output.write(ColumnarDecoder.MAGIC);
+		writeVarint(output, transferID);
+		writeString(output, deviceID);
+		writeVarint(output, afterID);
+		previousID = afterID;
+	}
+
+	public void writeEvent(Cursor cursor) throws IOException
+	{
+		long id = cursor.getLong(ColumnarDecoder.ID_INDEX);
+		writeVarint(columns[ColumnarDecoder.ID_INDEX], id - previousID);
+		previousID = id;
+
+		long detected = cursor.getLong(ColumnarDecoder.DETECTED_INDEX);
+		writeVarint(columns[ColumnarDecoder.DETECTED_INDEX], zigzag(detected - previousDetected));
+		previousDetected = detected;
+
+		if (cursor.isNull(ColumnarDecoder.EVENT_DATE_INDEX))
+			writeVarint(columns[ColumnarDecoder.EVENT_DATE_INDEX], 0);
+		else
+		{
+			long eventDate = cursor.getLong(ColumnarDecoder.EVENT_DATE_INDEX);
+			writeVarint(columns[ColumnarDecoder.EVENT_DATE_INDEX], zigzag(eventDate - previousEventDate) + 1);
+			previousEventDate = eventDate;
+		}
+
+		writeCode(columns[ColumnarDecoder.DETECTOR_INDEX], detectors, cursor.getString(ColumnarDecoder.DETECTOR_INDEX));
+		writeCode(columns[ColumnarDecoder.ACTION_INDEX], actions, cursor.getString(ColumnarDecoder.ACTION_INDEX));
+		writeString(columns[ColumnarDecoder.DESCRIPTION_INDEX], cursor.getString(ColumnarDecoder.DESCRIPTION_INDEX));
+		writeString(columns[ColumnarDecoder.ADDITIONAL_INFO_INDEX], cursor.getString(ColumnarDecoder.ADDITIONAL_INFO_INDEX));
+
+		if (++batchRows == BATCH_ROWS)
+			writeBatch();
+	}
+
+	public void writeTrailer(long eventCount, long lastEventID) throws IOException
+	{
+		if (batchRows > 0)
+			writeBatch();
+		writeVarint(output, 0);
+		writeVarint(output, eventCount);
+		writeVarint(output, lastEventID);
+		output.flush();
+	}
+
+	/**
+	 * This method writes the buffered columns as a batch and clears them.
+	 *
+	 * @throws IOException
+	 */
+	private void writeBatch() throws IOException
+	{
+		writeVarint(output, batchRows);
+		for (ByteArrayOutputStream column : columns)
+		{
+			writeVarint(output, column.size());
+			column.writeTo(output);
+			column.reset();
+		}
+		batchRows = 0;
+	}
+
+	/**
+	 * This method writes the dictionary code of a value, adding new values to the dictionary.
+	 *
+	 * @param column		The column buffer.
+	 * @param dictionary	The dictionary of the column.
+	 * @param value			The value.
+	 * @throws IOException
+	 */
+	private static void writeCode(OutputStream column, HashMap<String, Long> dictionary, String value) throws IOException
+	{
+		if (value == null)
+		{
+			writeVarint(column, 0);
+			return;
+		}
+		Long code = dictionary.get(value);
+		if (code != null)
+		{
+			writeVarint(column, code);
+			return;
+		}
+		code = Long.valueOf(dictionary.size() + 1);
+		dictionary.put(value, code);
+		writeVarint(column, code);
+		writeString(column, value);
+	}
+
+	/**
+	 * This method writes a length-prefixed UTF-8 string.
+	 *
+	 * @param output	The output stream.
+	 * @param value		The string (may be null).
+	 * @throws IOException
+	 */
+	static void writeString(OutputStream output, String value) throws IOException
+	{
+		if (value == null)
+		{
+			writeVarint(output, 0);
+			return;
+		}
+		byte[] bytes;
+		try
+		{
+			bytes = value.getBytes(CHARSET);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+		writeVarint(output, bytes.length + 1);
+		output.write(bytes);
+	}
+
+	/**
+	 * This method writes an unsigned varint (7 bits per byte, least significant group first).
+	 *
+	 * @param output	The output stream.
+	 * @param value		The value (treated as unsigned).
+	 * @throws IOException
+	 */
+	static void writeVarint(OutputStream output, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			output.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.write((int) value);
+	}
+
+	/**
+	 * This method maps a signed value to an unsigned one, so small negative deltas stay short.
+	 *
+	 * @param value		The signed value.
+	 * @return			The zigzag-encoded value.
+	 */
+	static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+}
@@ -0,0 +1,83 @@
+package com.droidwatch;
+
+/**
+ * CompressedTextCursor.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Set;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/** This class decompresses the text columns stored by TextCompressor as they are read. **/
+public class CompressedTextCursor extends CursorWrapper
+{
+	private final boolean[] compressedColumns;
+
+	/**
+	 * Constructor used to set the cursor and its compressible columns.
+	 *
+	 * @param cursor				The cursor to wrap.
+	 * @param compressedColumns	The indexes of the compressible columns.
+	 */
+	private CompressedTextCursor(Cursor cursor, boolean[] compressedColumns)
+	{
+		super(cursor);
+		this.compressedColumns = compressedColumns;
+	}
+
+	/**
+	 * This method wraps a cursor if it returns any compressible column.
+	 *
+	 * @param cursor	The cursor to wrap.
+	 * @param columns	The names of the compressible columns.
+	 * @return			The wrapped cursor, or the cursor itself if it has no compressible column.
+	 */
+	public static Cursor wrap(Cursor cursor, Set<String> columns)
+	{
+		String[] names = cursor.getColumnNames();
+		boolean[] compressedColumns = new boolean[names.length];
+		boolean found = false;
+		for (int i = 0; i < names.length; i++)
+		{
+			compressedColumns[i] = columns.contains(names[i]);
+			found |= compressedColumns[i];
+		}
+		return found ? new CompressedTextCursor(cursor, compressedColumns) : cursor;
+	}
+
+	/**
+	 * This method returns the text of a column, decompressing it if needed.
+	 *
+	 * @param columnIndex	The column index.
+	 * @return				The text.
+	 */
+	@Override
+	public String getString(int columnIndex)
+	{
+		if (!compressedColumns[columnIndex])
+			return super.getString(columnIndex);
+
+		// Inline text is read as is (it never starts with the marker byte)
+		byte[] stored = super.getBlob(columnIndex);
+		if (!TextCompressor.isCompressed(stored))
+			return super.getString(columnIndex);
+		return TextCompressor.inflate(stored);
+	}
+}
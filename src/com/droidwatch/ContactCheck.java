@@ -21,6 +21,7 @@ package com.droidwatch;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -107,6 +108,7 @@ public class ContactCheck
 			String phoneNumber = null;
 			long currentTime = System.currentTimeMillis();
 			ContentValues values;
+			ArrayList<ContentValues> batch = new ArrayList<ContentValues>(contactsCursor.getCount());
 			while (!contactsCursor.isAfterLast())
 			{
 				id = contactsCursor.getLong(contactsCursor.getColumnIndex(Phone._ID));
@@ -119,10 +121,13 @@ public class ContactCheck
 				values.put(DroidWatchDatabase.CONTACT_NAME_COLUMN, name);
 				values.put(DroidWatchDatabase.CONTACT_ADDED_COLUMN, currentTime);
 				values.put(DroidWatchDatabase.CONTACT_NUMBER_COLUMN, phoneNumber);
-        		context.getContentResolver().insert(DroidWatchProvider.Contacts.CONTENT_URI, values);
+				batch.add(values);
 	            
 	            contactsCursor.moveToNext();
 			}
+			
+			// Insert all contacts in a single transaction
+			context.getContentResolver().bulkInsert(DroidWatchProvider.Contacts.CONTENT_URI, batch.toArray(new ContentValues[batch.size()]));
 		}
 	}	
 
@@ -21,6 +21,8 @@ package com.droidwatch;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -46,6 +48,9 @@ public class ContactWatcher extends ContentObserver
     {
         super( handler );
         this.context = context;
+        
+        // Checkpoint the watched content provider before its first change notification
+        WatermarkManager.getWatermark(context, Phone.CONTENT_URI);
     }
 	
 	/** 
@@ -59,18 +64,23 @@ public class ContactWatcher extends ContentObserver
 	}
 
 	/**
-	 * This method looks for new contacts in the contacts content provider and compares
-	 * them to what exists already in the DroidWatch contacts table.
+	 * This method logs the contact phone numbers added since the last seen one, in both the
+	 * DroidWatch contacts table and the events table.
 	 */
 	private void queryContacts()
 	{
-		// Look for new contacts
+		// Get the last seen contact phone number
+		long watermark = WatermarkManager.getWatermark(context, Phone.CONTENT_URI);
+		if (watermark < 0)
+			return;
+		
+		// Look for new contacts (oldest first)
 		Cursor contactsCursor = null;
 		String[] contactsProj = new String[]{Phone._ID, Phone.DISPLAY_NAME, Phone.NUMBER};
-        String sortOrder = "_id DESC";
+        String sortOrder = "_id ASC";
 		try
 		{
-			contactsCursor = context.getContentResolver().query(Phone.CONTENT_URI, contactsProj, null, null, sortOrder);
+			contactsCursor = context.getContentResolver().query(Phone.CONTENT_URI, contactsProj, Phone._ID+" > ?", new String[]{String.valueOf(watermark)}, sortOrder);
 		}
 		catch(Exception e)
 		{
@@ -85,56 +95,41 @@ public class ContactWatcher extends ContentObserver
 			return;
 		}
 		
-		if (contactsCursor.moveToFirst() && contactsCursor.getCount() > 0)
+		// Get current time
+		long currentTime = System.currentTimeMillis();
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		long lastID = watermark;
+		while (contactsCursor.moveToNext())
 		{
 			long id = contactsCursor.getLong(contactsCursor.getColumnIndex(Phone._ID));
             String name = contactsCursor.getString(contactsCursor.getColumnIndex(Phone.DISPLAY_NAME)); 
             String phoneNumber = contactsCursor.getString(contactsCursor.getColumnIndex(Phone.NUMBER));
-            
-            // Check to see if this contact already exists in the DroidWatch contacts table
-            String[] projection = new String[]{DroidWatchProvider.Contacts._ID,};
-            String selection = "contact_id = "+String.valueOf(id);
-            Cursor cursor = null;
-            try
-            {
-            	cursor = context.getContentResolver().query(DroidWatchProvider.Contacts.CONTENT_URI, projection, selection, null, null);
-            }
-            catch(Exception e)
-            {
-            	Log.e(TAG, "Error querying contacts table in results.db: "+e.getMessage());
-            	return;
-            }
-            
-            // Log newly added contact
-            if (cursor == null)
-            {
-            	Log.e(TAG, "Error querying contacts table in results.db");
-            	return;
-            }
-            
-        	if (cursor.getCount() == 0)
-        	{
-        		// Get current time
-        		long currentTime = System.currentTimeMillis();
-				
-        		// Insert new contact into the DroidWatch contacts table
-				ContentValues contactValues = new ContentValues();
-				contactValues.put(DroidWatchDatabase.CONTACT_ID_COLUMN, id);
-				contactValues.put(DroidWatchDatabase.CONTACT_NAME_COLUMN, name);
-				contactValues.put(DroidWatchDatabase.CONTACT_ADDED_COLUMN, currentTime);
-				contactValues.put(DroidWatchDatabase.CONTACT_NUMBER_COLUMN, phoneNumber);
-        		context.getContentResolver().insert(DroidWatchProvider.Contacts.CONTENT_URI, contactValues);
-        		
-        		// Insert new contact into the events table
-        		ContentValues eventValues = new ContentValues();
-				eventValues.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-				eventValues.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Contact Added");
-				eventValues.put(DroidWatchDatabase.EVENT_DATE_COLUMN, currentTime);
-				eventValues.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, name);
-				eventValues.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "ID:"+id+"; Number:"+phoneNumber+";");
-				context.getContentResolver().insert(DroidWatchProvider.Events.CONTENT_URI, eventValues);
-				//Log.i(TAG, "Contact Name: "+name+" Phone: "+phoneNumber+" ID: "+id);
-        	}
+            lastID = id;
+			
+    		// Insert new contact into the DroidWatch contacts table
+			ContentValues contactValues = new ContentValues();
+			contactValues.put(DroidWatchDatabase.CONTACT_ID_COLUMN, id);
+			contactValues.put(DroidWatchDatabase.CONTACT_NAME_COLUMN, name);
+			contactValues.put(DroidWatchDatabase.CONTACT_ADDED_COLUMN, currentTime);
+			contactValues.put(DroidWatchDatabase.CONTACT_NUMBER_COLUMN, phoneNumber);
+			operations.add(ContentProviderOperation.newInsert(DroidWatchProvider.Contacts.CONTENT_URI).withValues(contactValues).build());
+    		
+    		// Insert new contact into the events table
+    		ContentValues eventValues = new ContentValues();
+			eventValues.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+			eventValues.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Contact Added");
+			eventValues.put(DroidWatchDatabase.EVENT_DATE_COLUMN, currentTime);
+			eventValues.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, name);
+			eventValues.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "ID:"+id+"; Number:"+phoneNumber+";");
+			operations.add(ContentProviderOperation.newInsert(DroidWatchProvider.Events.CONTENT_URI).withValues(eventValues).build());
+			//Log.i(TAG, "Contact Name: "+name+" Phone: "+phoneNumber+" ID: "+id);
 		}
+		contactsCursor.close();
+		
+		// Log the new contacts and advance the watermark together
+		if (lastID == watermark)
+			return;
+		operations.add(WatermarkManager.advanceWatermark(Phone.CONTENT_URI, lastID, currentTime));
+		WatermarkManager.applyBatch(context, operations);
 	}
 }
\ No newline at end of file
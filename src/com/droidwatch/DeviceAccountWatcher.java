@@ -57,7 +57,7 @@ public class DeviceAccountWatcher
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
 			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, accountMap.get(key));
 			values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, key);
-			context.getContentResolver().insert(eventsUri, values);
+			EventSink.getInstance(context).post(eventsUri, values);
 		}
 	}
 }
\ No newline at end of file
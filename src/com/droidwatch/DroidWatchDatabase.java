@@ -21,7 +21,11 @@ package com.droidwatch;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.List;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -32,21 +36,47 @@ public class DroidWatchDatabase extends SQLiteOpenHelper
 	public static final String TAG = "DroidWatchDatabase";
 	
 	public static final String DATABASE_NAME = "results.db";
-	public static final int DATABASE_VERSION = 17;
+	public static final int DATABASE_VERSION = 31;
+	private static final long AUTO_VACUUM_INCREMENTAL = 2;
 	
     public static final String TRANSFERS_TABLE = "transfers";
     public static final String TRANSFER_ID_COLUMN = "_id";
     public static final String TRANSFERS_COMPLETED_COLUMN = "transfer_complete";
     public static final String TRANSFERS_STARTDATE_COLUMN = "transfer_start_time";
     public static final String TRANSFERS_DEVICE_ID_COLUMN = "device_id";
+    public static final String TRANSFERS_PARTITION_COLUMN = "event_partition";
+    public static final String TRANSFERS_SIZE_BEFORE_COLUMN = "file_size_before";
+    public static final String TRANSFERS_SIZE_AFTER_COLUMN = "file_size_after";
+    public static final String TRANSFERS_SNAPSHOT_EVICTION_COLUMN = "snapshot_eviction_id";
+    public static final String TRANSFERS_LAST_EVENT_COLUMN = "last_event_id";
+    public static final String TRANSFERS_PAYLOAD_NAME_COLUMN = "payload_name";
+    public static final String TRANSFERS_PAYLOAD_ENCODING_COLUMN = "payload_encoding";
+    public static final String TRANSFERS_PAYLOAD_SIZE_COLUMN = "payload_size";
+    public static final String TRANSFERS_PAYLOAD_LAST_EVENT_COLUMN = "payload_last_event_id";
+    public static final String TRANSFERS_UPLOAD_OFFSET_COLUMN = "upload_offset";
+    public static final String TRANSFERS_ATTEMPTS_COLUMN = "attempts";
+    public static final String TRANSFERS_LAST_ATTEMPT_COLUMN = "last_attempt_time";
     private static final String TRANSFERS_TABLE_CREATE =
             "CREATE TABLE " + TRANSFERS_TABLE + " (" +
             TRANSFER_ID_COLUMN + " INTEGER primary key, " +
             TRANSFERS_COMPLETED_COLUMN + " BOOLEAN default 0, " +
             TRANSFERS_STARTDATE_COLUMN + " DATETIME default (strftime('%s', 'now')), " +
-            TRANSFERS_DEVICE_ID_COLUMN + " TEXT);";
+            TRANSFERS_DEVICE_ID_COLUMN + " TEXT, " +
+            TRANSFERS_PARTITION_COLUMN + " INTEGER, " +
+            TRANSFERS_SIZE_BEFORE_COLUMN + " INTEGER, " +
+            TRANSFERS_SIZE_AFTER_COLUMN + " INTEGER, " +
+            TRANSFERS_SNAPSHOT_EVICTION_COLUMN + " INTEGER, " +
+            TRANSFERS_LAST_EVENT_COLUMN + " INTEGER, " +
+            TRANSFERS_PAYLOAD_NAME_COLUMN + " TEXT, " +
+            TRANSFERS_PAYLOAD_ENCODING_COLUMN + " TEXT, " +
+            TRANSFERS_PAYLOAD_SIZE_COLUMN + " INTEGER, " +
+            TRANSFERS_PAYLOAD_LAST_EVENT_COLUMN + " INTEGER, " +
+            TRANSFERS_UPLOAD_OFFSET_COLUMN + " INTEGER, " +
+            TRANSFERS_ATTEMPTS_COLUMN + " INTEGER default 0, " +
+            TRANSFERS_LAST_ATTEMPT_COLUMN + " INTEGER);";
     
     public static final String EVENTS_TABLE = "events";
+    public static final String EVENT_LOG_TABLE = "event_log";
     public static final String EVENT_ID_COLUMN = "_id";
     public static final String DETECTOR_COLUMN = "detector";
     public static final String DETECT_DATE_COLUMN = "detected";
@@ -54,15 +84,176 @@ public class DroidWatchDatabase extends SQLiteOpenHelper
     public static final String EVENT_DATE_COLUMN= "event_occurred";
     public static final String EVENT_DESCRIPTION_COLUMN = "description";
     public static final String ADDITIONAL_INFO_COLUMN = "additional_info";
-    private static final String EVENTS_TABLE_CREATE = 
-    		"CREATE TABLE  " + EVENTS_TABLE + " (" +
-    		EVENT_ID_COLUMN + " INTEGER primary key, " +
-    		DETECTOR_COLUMN + " TEXT, " +
-    		DETECT_DATE_COLUMN + " DATETIME default (strftime('%s', 'now')), " +
-    		EVENT_ACTION_COLUMN + " TEXT, " + 
-    		EVENT_DATE_COLUMN + " DATETIME, " + 
-    		EVENT_DESCRIPTION_COLUMN + " TEXT," +
-    		ADDITIONAL_INFO_COLUMN + " TEXT);";
+    public static final String DEDUP_KEY_COLUMN = "dedup_key";
+    
+    // Detectors and actions are stored as IDs of interned strings
+    public static final String DETECTOR_ID_COLUMN = "detector_id";
+    public static final String EVENT_ACTION_ID_COLUMN = "action_id";
+    
+    // Events are stored in one event_log_<partition> table per transfer epoch
+    public static final String PARTITIONS_TABLE = "event_partitions";
+    public static final String PARTITION_ID_COLUMN = "_id";
+    public static final String PARTITION_CREATED_COLUMN = "created";
+    public static final String PARTITION_FIRST_EVENT_ID_COLUMN = "first_event_id";
+    private static final String PARTITIONS_TABLE_CREATE =
+    		"CREATE TABLE " + PARTITIONS_TABLE + " (" +
+    		PARTITION_ID_COLUMN + " INTEGER primary key, " +
+    		PARTITION_CREATED_COLUMN + " DATETIME default (strftime('%s', 'now')), " +
+    		PARTITION_FIRST_EVENT_ID_COLUMN + " INTEGER NOT NULL);";
+    public static final long FIRST_PARTITION = 1;
+    
+    // Columns shared by the typed event tables
+    public static final String TYPED_EVENT_ID_COLUMN = "event_id";
+    public static final String TYPED_EVENT_DATE_COLUMN = "occurred";
+    
+    public static final String CALLS_TABLE = "calls";
+    public static final String CALL_ID_COLUMN = "call_id";
+    public static final String CALL_NUMBER_COLUMN = "number";
+    public static final String CALL_NAME_COLUMN = "name";
+    public static final String CALL_DURATION_COLUMN = "duration";
+    public static final String CALL_NUMBER_TYPE_COLUMN = "number_type";
+    private static final String CALLS_TABLE_CREATE =
+    		"CREATE TABLE " + CALLS_TABLE + " (" +
+    		TYPED_EVENT_ID_COLUMN + " INTEGER primary key, " +
+    		TYPED_EVENT_DATE_COLUMN + " DATETIME, " +
+    		CALL_ID_COLUMN + " INTEGER, " +
+    		CALL_NUMBER_COLUMN + " TEXT, " +
+    		CALL_NAME_COLUMN + " TEXT, " +
+    		CALL_DURATION_COLUMN + " INTEGER, " +
+    		CALL_NUMBER_TYPE_COLUMN + " TEXT);";
+    
+    public static final String SMS_TABLE = "sms";
+    public static final String SMS_MESSAGE_ID_COLUMN = "message_id";
+    public static final String SMS_ADDRESS_COLUMN = "address";
+    public static final String SMS_CONTACT_COLUMN = "contact";
+    private static final String SMS_TABLE_CREATE =
+    		"CREATE TABLE " + SMS_TABLE + " (" +
+    		TYPED_EVENT_ID_COLUMN + " INTEGER primary key, " +
+    		TYPED_EVENT_DATE_COLUMN + " DATETIME, " +
+    		SMS_MESSAGE_ID_COLUMN + " INTEGER, " +
+    		SMS_ADDRESS_COLUMN + " TEXT, " +
+    		SMS_CONTACT_COLUMN + " TEXT);";
+    
+    public static final String MMS_TABLE = "mms";
+    public static final String MMS_MESSAGE_ID_COLUMN = "message_id";
+    public static final String MMS_ADDRESS_COLUMN = "address";
+    public static final String MMS_CONTACT_COLUMN = "contact";
+    public static final String MMS_SUBJECT_COLUMN = "subject";
+    public static final String MMS_TEXT_COLUMN = "text";
+    private static final String MMS_TABLE_CREATE =
+    		"CREATE TABLE " + MMS_TABLE + " (" +
+    		TYPED_EVENT_ID_COLUMN + " INTEGER primary key, " +
+    		TYPED_EVENT_DATE_COLUMN + " DATETIME, " +
+    		MMS_MESSAGE_ID_COLUMN + " INTEGER, " +
+    		MMS_ADDRESS_COLUMN + " TEXT, " +
+    		MMS_CONTACT_COLUMN + " TEXT, " +
+    		MMS_SUBJECT_COLUMN + " TEXT, " +
+    		MMS_TEXT_COLUMN + " TEXT);";
+    
+    public static final String BROWSER_VISITS_TABLE = "browser_visits";
+    public static final String BROWSER_VISIT_URL_COLUMN = "url";
+    private static final String BROWSER_VISITS_TABLE_CREATE =
+    		"CREATE TABLE " + BROWSER_VISITS_TABLE + " (" +
+    		TYPED_EVENT_ID_COLUMN + " INTEGER primary key, " +
+    		TYPED_EVENT_DATE_COLUMN + " DATETIME, " +
+    		BROWSER_VISIT_URL_COLUMN + " TEXT);";
+    
+    public static final String LOCATIONS_TABLE = "locations";
+    public static final String LOCATION_LATITUDE_COLUMN = "latitude";
+    public static final String LOCATION_LONGITUDE_COLUMN = "longitude";
+    private static final String LOCATIONS_TABLE_CREATE =
+    		"CREATE TABLE " + LOCATIONS_TABLE + " (" +
+    		TYPED_EVENT_ID_COLUMN + " INTEGER primary key, " +
+    		TYPED_EVENT_DATE_COLUMN + " DATETIME, " +
+    		LOCATION_LATITUDE_COLUMN + " REAL, " +
+    		LOCATION_LONGITUDE_COLUMN + " REAL);";
+    
+    public static final String LOGCAT_TABLE = "logcat";
+    public static final String LOGCAT_VIEW = "logcat_lines";
+    public static final String LOGCAT_PID_COLUMN = "pid";
+    public static final String LOGCAT_PROCESS_COLUMN = "process";
+    public static final String LOGCAT_PROCESS_ID_COLUMN = "process_id";
+    public static final String LOGCAT_LINE_COLUMN = "line";
+    private static final String LOGCAT_TABLE_CREATE =
+    		"CREATE TABLE " + LOGCAT_TABLE + " (" +
+    		TYPED_EVENT_ID_COLUMN + " INTEGER primary key, " +
+    		TYPED_EVENT_DATE_COLUMN + " DATETIME, " +
+    		LOGCAT_PID_COLUMN + " INTEGER, " +
+    		LOGCAT_PROCESS_ID_COLUMN + " INTEGER, " +
+    		LOGCAT_LINE_COLUMN + " TEXT);";
+    
+    // Interned strings referenced by the event log and typed tables
+    public static final String STRINGS_TABLE = "strings";
+    public static final String STRING_ID_COLUMN = "_id";
+    public static final String STRING_VALUE_COLUMN = "value";
+    private static final String STRINGS_TABLE_CREATE =
+    		"CREATE TABLE " + STRINGS_TABLE + " (" +
+    		STRING_ID_COLUMN + " INTEGER primary key, " +
+    		STRING_VALUE_COLUMN + " TEXT NOT NULL UNIQUE);";
+    
+    // The logcat view decodes the process names
+    private static final String LOGCAT_VIEW_CREATE =
+    		"CREATE VIEW " + LOGCAT_VIEW + " AS SELECT " +
+    		"g." + TYPED_EVENT_ID_COLUMN + " AS " + TYPED_EVENT_ID_COLUMN + ", " +
+    		"g." + TYPED_EVENT_DATE_COLUMN + " AS " + TYPED_EVENT_DATE_COLUMN + ", " +
+    		"g." + LOGCAT_PID_COLUMN + " AS " + LOGCAT_PID_COLUMN + ", " +
+    		"gp." + STRING_VALUE_COLUMN + " AS " + LOGCAT_PROCESS_COLUMN + ", " +
+    		"g." + LOGCAT_LINE_COLUMN + " AS " + LOGCAT_LINE_COLUMN + " " +
+    		"FROM " + LOGCAT_TABLE + " g " +
+    		"LEFT JOIN " + STRINGS_TABLE + " gp ON gp." + STRING_ID_COLUMN + " = g." + LOGCAT_PROCESS_ID_COLUMN + ";";
+    
+    public static final String[] TYPED_EVENT_TABLES = new String[]{
+    		CALLS_TABLE, SMS_TABLE, MMS_TABLE, BROWSER_VISITS_TABLE, LOCATIONS_TABLE, LOGCAT_TABLE};
+    
+    // Removes the typed details of deleted events
+    private static final String EVENT_LOG_DELETE_TRIGGER_BODY =
+    		"BEGIN " +
+    		"DELETE FROM " + CALLS_TABLE + " WHERE " + TYPED_EVENT_ID_COLUMN + " = OLD." + EVENT_ID_COLUMN + "; " +
+    		"DELETE FROM " + SMS_TABLE + " WHERE " + TYPED_EVENT_ID_COLUMN + " = OLD." + EVENT_ID_COLUMN + "; " +
+    		"DELETE FROM " + MMS_TABLE + " WHERE " + TYPED_EVENT_ID_COLUMN + " = OLD." + EVENT_ID_COLUMN + "; " +
+    		"DELETE FROM " + BROWSER_VISITS_TABLE + " WHERE " + TYPED_EVENT_ID_COLUMN + " = OLD." + EVENT_ID_COLUMN + "; " +
+    		"DELETE FROM " + LOCATIONS_TABLE + " WHERE " + TYPED_EVENT_ID_COLUMN + " = OLD." + EVENT_ID_COLUMN + "; " +
+    		"DELETE FROM " + LOGCAT_TABLE + " WHERE " + TYPED_EVENT_ID_COLUMN + " = OLD." + EVENT_ID_COLUMN + "; " +
+    		"END;";
+    
+    // The generic events view decodes the interned strings and rebuilds the original free-text columns from the typed tables
+    private static final String EVENTS_VIEW_COLUMNS =
+    		"SELECT " +
+    		"e." + EVENT_ID_COLUMN + " AS " + EVENT_ID_COLUMN + ", " +
+    		"sd." + STRING_VALUE_COLUMN + " AS " + DETECTOR_COLUMN + ", " +
+    		"e." + DETECT_DATE_COLUMN + " AS " + DETECT_DATE_COLUMN + ", " +
+    		"sa." + STRING_VALUE_COLUMN + " AS " + EVENT_ACTION_COLUMN + ", " +
+    		"e." + EVENT_DATE_COLUMN + " AS " + EVENT_DATE_COLUMN + ", " +
+    		"CASE WHEN l." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL " +
+    			"THEN 'Lat:'||l." + LOCATION_LATITUDE_COLUMN + "||'; Lng:'||l." + LOCATION_LONGITUDE_COLUMN + " " +
+    			"WHEN g." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL THEN gp." + STRING_VALUE_COLUMN + " " +
+    			"ELSE e." + EVENT_DESCRIPTION_COLUMN + " END AS " + EVENT_DESCRIPTION_COLUMN + ", " +
+    		"CASE " +
+    			"WHEN c." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL " +
+    			"THEN 'ID:'||c." + CALL_ID_COLUMN + "||'; Number:'||IFNULL(c." + CALL_NUMBER_COLUMN + ",'null')||'; Name:'||IFNULL(c." + CALL_NAME_COLUMN + ",'null')||" +
+    				"'; Duration:'||c." + CALL_DURATION_COLUMN + "||' NumType:'||IFNULL(c." + CALL_NUMBER_TYPE_COLUMN + ",'null')||';' " +
+    			"WHEN s." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL AND s." + SMS_MESSAGE_ID_COLUMN + " IS NULL " +
+    			"THEN 'SenderAddress:'||IFNULL(s." + SMS_ADDRESS_COLUMN + ",'null')||'; SenderContact:'||IFNULL(s." + SMS_CONTACT_COLUMN + ",'null') " +
+    			"WHEN s." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL " +
+    			"THEN 'MSG_ID:'||s." + SMS_MESSAGE_ID_COLUMN + "||'; ReceiverAddress:'||IFNULL(s." + SMS_ADDRESS_COLUMN + ",'null')||'; ReceiverContact:'||IFNULL(s." + SMS_CONTACT_COLUMN + ",'null')||';' " +
+    			"WHEN m." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL " +
+    			"THEN 'MSG_ID:'||m." + MMS_MESSAGE_ID_COLUMN + "||'; ReceiverAddress:'||IFNULL(m." + MMS_ADDRESS_COLUMN + ",'null')||'; ReceiverContact:'||IFNULL(m." + MMS_CONTACT_COLUMN + ",'null')||" +
+    				"'; Subject:'||IFNULL(m." + MMS_SUBJECT_COLUMN + ",'null')||'; Text:'||IFNULL(m." + MMS_TEXT_COLUMN + ",'null')||';' " +
+    			"WHEN b." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL THEN b." + BROWSER_VISIT_URL_COLUMN + " " +
+    			"WHEN g." + TYPED_EVENT_ID_COLUMN + " IS NOT NULL THEN g." + LOGCAT_LINE_COLUMN + " " +
+    			"ELSE e." + ADDITIONAL_INFO_COLUMN + " END AS " + ADDITIONAL_INFO_COLUMN + ", " +
+    		"e." + DEDUP_KEY_COLUMN + " AS " + DEDUP_KEY_COLUMN + ", " +
+    		"e." + DETECTOR_ID_COLUMN + " AS " + DETECTOR_ID_COLUMN + " ";
+    private static final String EVENTS_VIEW_JOINS =
+    		"LEFT JOIN " + STRINGS_TABLE + " sd ON sd." + STRING_ID_COLUMN + " = e." + DETECTOR_ID_COLUMN + " " +
+    		"LEFT JOIN " + STRINGS_TABLE + " sa ON sa." + STRING_ID_COLUMN + " = e." + EVENT_ACTION_ID_COLUMN + " " +
+    		"LEFT JOIN " + CALLS_TABLE + " c ON c." + TYPED_EVENT_ID_COLUMN + " = e." + EVENT_ID_COLUMN + " " +
+    		"LEFT JOIN " + SMS_TABLE + " s ON s." + TYPED_EVENT_ID_COLUMN + " = e." + EVENT_ID_COLUMN + " " +
+    		"LEFT JOIN " + MMS_TABLE + " m ON m." + TYPED_EVENT_ID_COLUMN + " = e." + EVENT_ID_COLUMN + " " +
+    		"LEFT JOIN " + BROWSER_VISITS_TABLE + " b ON b." + TYPED_EVENT_ID_COLUMN + " = e." + EVENT_ID_COLUMN + " " +
+    		"LEFT JOIN " + LOCATIONS_TABLE + " l ON l." + TYPED_EVENT_ID_COLUMN + " = e." + EVENT_ID_COLUMN + " " +
+    		"LEFT JOIN " + LOGCAT_TABLE + " g ON g." + TYPED_EVENT_ID_COLUMN + " = e." + EVENT_ID_COLUMN + " " +
+    		"LEFT JOIN " + STRINGS_TABLE + " gp ON gp." + STRING_ID_COLUMN + " = g." + LOGCAT_PROCESS_ID_COLUMN + ";";
     
     public static final String CALENDAR_TABLE = "calendar";
     public static final String CALENDAR_ID_PKEY_COLUMN = "_id";
@@ -93,6 +284,121 @@ public class DroidWatchDatabase extends SQLiteOpenHelper
     		CONTACT_NAME_COLUMN + " TEXT, " +
     		CONTACT_ADDED_COLUMN + " DATETIME);";
     
+    // Summary of the events evicted to stay within the storage budget
+    public static final String EVICTIONS_TABLE = "evictions";
+    public static final String EVICTION_ID_COLUMN = "_id";
+    public static final String EVICTION_DATE_COLUMN = "evicted";
+    public static final String EVICTION_DETECTOR_COLUMN = "detector";
+    public static final String EVICTION_COUNT_COLUMN = "event_count";
+    public static final String EVICTION_FIRST_DATE_COLUMN = "first_event_occurred";
+    public static final String EVICTION_LAST_DATE_COLUMN = "last_event_occurred";
+    private static final String EVICTIONS_TABLE_CREATE =
+    		"CREATE TABLE " + EVICTIONS_TABLE + " (" +
+    		EVICTION_ID_COLUMN + " INTEGER primary key, " +
+    		EVICTION_DATE_COLUMN + " DATETIME default (strftime('%s', 'now')), " +
+    		EVICTION_DETECTOR_COLUMN + " TEXT, " +
+    		EVICTION_COUNT_COLUMN + " INTEGER, " +
+    		EVICTION_FIRST_DATE_COLUMN + " DATETIME, " +
+    		EVICTION_LAST_DATE_COLUMN + " DATETIME);";
+    
+    // Last seen row of each watched content provider
+    public static final String WATERMARKS_TABLE = "watermarks";
+    public static final String WATERMARK_SOURCE_COLUMN = "source";
+    public static final String WATERMARK_LAST_ID_COLUMN = "last_id";
+    public static final String WATERMARK_LAST_DATE_COLUMN = "last_date";
+    public static final String WATERMARK_UPDATED_COLUMN = "updated";
+    private static final String WATERMARKS_TABLE_CREATE =
+    		"CREATE TABLE " + WATERMARKS_TABLE + " (" +
+    		WATERMARK_SOURCE_COLUMN + " TEXT primary key, " +
+    		WATERMARK_LAST_ID_COLUMN + " INTEGER NOT NULL, " +
+    		WATERMARK_LAST_DATE_COLUMN + " DATETIME, " +
+    		WATERMARK_UPDATED_COLUMN + " DATETIME default (strftime('%s', 'now')));";
+    
+    // Hourly event counts, kept when the raw events are evicted or wiped
+    public static final long ROLLUP_HOUR = 1000 * 60 * 60;
+    public static final String EVENT_ROLLUPS_TABLE = "event_rollups";
+    public static final String EVENT_ROLLUPS_VIEW = "hourly_events";
+    public static final String LOGCAT_ROLLUPS_TABLE = "logcat_rollups";
+    public static final String LOGCAT_ROLLUPS_VIEW = "hourly_logcat";
+    public static final String ROLLUP_ID_COLUMN = "_id";
+    public static final String ROLLUP_HOUR_COLUMN = "hour";
+    public static final String ROLLUP_COUNT_COLUMN = "event_count";
+    public static final String ROLLUP_FIRST_DATE_COLUMN = "first_event_occurred";
+    public static final String ROLLUP_LAST_DATE_COLUMN = "last_event_occurred";
+    public static final String ROLLUP_LAST_EVENT_COLUMN = "last_event_id";
+    private static final String EVENT_ROLLUPS_TABLE_CREATE =
+    		"CREATE TABLE " + EVENT_ROLLUPS_TABLE + " (" +
+    		ROLLUP_ID_COLUMN + " INTEGER primary key, " +
+    		DETECTOR_ID_COLUMN + " INTEGER NOT NULL, " +
+    		EVENT_ACTION_ID_COLUMN + " INTEGER NOT NULL, " +
+    		ROLLUP_HOUR_COLUMN + " DATETIME NOT NULL, " +
+    		ROLLUP_COUNT_COLUMN + " INTEGER NOT NULL default 0, " +
+    		ROLLUP_FIRST_DATE_COLUMN + " DATETIME, " +
+    		ROLLUP_LAST_DATE_COLUMN + " DATETIME, " +
+    		ROLLUP_LAST_EVENT_COLUMN + " INTEGER, " +
+    		"UNIQUE (" + DETECTOR_ID_COLUMN + ", " + EVENT_ACTION_ID_COLUMN + ", " + ROLLUP_HOUR_COLUMN + "));";
+    private static final String LOGCAT_ROLLUPS_TABLE_CREATE =
+    		"CREATE TABLE " + LOGCAT_ROLLUPS_TABLE + " (" +
+    		ROLLUP_ID_COLUMN + " INTEGER primary key, " +
+    		LOGCAT_PROCESS_ID_COLUMN + " INTEGER NOT NULL, " +
+    		ROLLUP_HOUR_COLUMN + " DATETIME NOT NULL, " +
+    		ROLLUP_COUNT_COLUMN + " INTEGER NOT NULL default 0, " +
+    		ROLLUP_FIRST_DATE_COLUMN + " DATETIME, " +
+    		ROLLUP_LAST_DATE_COLUMN + " DATETIME, " +
+    		ROLLUP_LAST_EVENT_COLUMN + " INTEGER, " +
+    		"UNIQUE (" + LOGCAT_PROCESS_ID_COLUMN + ", " + ROLLUP_HOUR_COLUMN + "));";
+    
+    // Counts each inserted event in its detector, action, and hour (0 stands for a missing string or date)
+    private static final String EVENT_ROLLUP_DETECTOR = "IFNULL(NEW." + DETECTOR_ID_COLUMN + ",0)";
+    private static final String EVENT_ROLLUP_ACTION = "IFNULL(NEW." + EVENT_ACTION_ID_COLUMN + ",0)";
+    private static final String EVENT_ROLLUP_HOUR = rollupHour(EVENT_DATE_COLUMN);
+    private static final String EVENT_LOG_INSERT_TRIGGER_BODY =
+    		"BEGIN " +
+    		"INSERT OR IGNORE INTO " + EVENT_ROLLUPS_TABLE + " (" + DETECTOR_ID_COLUMN + "," + EVENT_ACTION_ID_COLUMN + "," + ROLLUP_HOUR_COLUMN + ") " +
+    			"VALUES (" + EVENT_ROLLUP_DETECTOR + "," + EVENT_ROLLUP_ACTION + "," + EVENT_ROLLUP_HOUR + "); " +
+    		"UPDATE " + EVENT_ROLLUPS_TABLE + " SET " + rollupCountUpdate(EVENT_DATE_COLUMN, EVENT_ID_COLUMN) + " " +
+    			"WHERE " + DETECTOR_ID_COLUMN + " = " + EVENT_ROLLUP_DETECTOR + " AND " + EVENT_ACTION_ID_COLUMN + " = " + EVENT_ROLLUP_ACTION +
+    			" AND " + ROLLUP_HOUR_COLUMN + " = " + EVENT_ROLLUP_HOUR + "; " +
+    		"END;";
+    
+    // Counts each inserted logcat line in its process and hour
+    private static final String LOGCAT_ROLLUP_PROCESS = "IFNULL(NEW." + LOGCAT_PROCESS_ID_COLUMN + ",0)";
+    private static final String LOGCAT_ROLLUP_HOUR = rollupHour(TYPED_EVENT_DATE_COLUMN);
+    private static final String LOGCAT_INSERT_TRIGGER_CREATE =
+    		"CREATE TRIGGER " + LOGCAT_TABLE + "_insert AFTER INSERT ON " + LOGCAT_TABLE + " " +
+    		"BEGIN " +
+    		"INSERT OR IGNORE INTO " + LOGCAT_ROLLUPS_TABLE + " (" + LOGCAT_PROCESS_ID_COLUMN + "," + ROLLUP_HOUR_COLUMN + ") " +
+    			"VALUES (" + LOGCAT_ROLLUP_PROCESS + "," + LOGCAT_ROLLUP_HOUR + "); " +
+    		"UPDATE " + LOGCAT_ROLLUPS_TABLE + " SET " + rollupCountUpdate(TYPED_EVENT_DATE_COLUMN, TYPED_EVENT_ID_COLUMN) + " " +
+    			"WHERE " + LOGCAT_PROCESS_ID_COLUMN + " = " + LOGCAT_ROLLUP_PROCESS + " AND " + ROLLUP_HOUR_COLUMN + " = " + LOGCAT_ROLLUP_HOUR + "; " +
+    		"END;";
+    
+    // The rollup views decode the interned strings
+    private static final String EVENT_ROLLUPS_VIEW_CREATE =
+    		"CREATE VIEW " + EVENT_ROLLUPS_VIEW + " AS SELECT " +
+    		"r." + ROLLUP_ID_COLUMN + " AS " + ROLLUP_ID_COLUMN + ", " +
+    		"sd." + STRING_VALUE_COLUMN + " AS " + DETECTOR_COLUMN + ", " +
+    		"sa." + STRING_VALUE_COLUMN + " AS " + EVENT_ACTION_COLUMN + ", " +
+    		"r." + ROLLUP_HOUR_COLUMN + " AS " + ROLLUP_HOUR_COLUMN + ", " +
+    		"r." + ROLLUP_COUNT_COLUMN + " AS " + ROLLUP_COUNT_COLUMN + ", " +
+    		"r." + ROLLUP_FIRST_DATE_COLUMN + " AS " + ROLLUP_FIRST_DATE_COLUMN + ", " +
+    		"r." + ROLLUP_LAST_DATE_COLUMN + " AS " + ROLLUP_LAST_DATE_COLUMN + ", " +
+    		"r." + ROLLUP_LAST_EVENT_COLUMN + " AS " + ROLLUP_LAST_EVENT_COLUMN + " " +
+    		"FROM " + EVENT_ROLLUPS_TABLE + " r " +
+    		"LEFT JOIN " + STRINGS_TABLE + " sd ON sd." + STRING_ID_COLUMN + " = r." + DETECTOR_ID_COLUMN + " " +
+    		"LEFT JOIN " + STRINGS_TABLE + " sa ON sa." + STRING_ID_COLUMN + " = r." + EVENT_ACTION_ID_COLUMN + ";";
+    private static final String LOGCAT_ROLLUPS_VIEW_CREATE =
+    		"CREATE VIEW " + LOGCAT_ROLLUPS_VIEW + " AS SELECT " +
+    		"r." + ROLLUP_ID_COLUMN + " AS " + ROLLUP_ID_COLUMN + ", " +
+    		"gp." + STRING_VALUE_COLUMN + " AS " + LOGCAT_PROCESS_COLUMN + ", " +
+    		"r." + ROLLUP_HOUR_COLUMN + " AS " + ROLLUP_HOUR_COLUMN + ", " +
+    		"r." + ROLLUP_COUNT_COLUMN + " AS " + ROLLUP_COUNT_COLUMN + ", " +
+    		"r." + ROLLUP_FIRST_DATE_COLUMN + " AS " + ROLLUP_FIRST_DATE_COLUMN + ", " +
+    		"r." + ROLLUP_LAST_DATE_COLUMN + " AS " + ROLLUP_LAST_DATE_COLUMN + ", " +
+    		"r." + ROLLUP_LAST_EVENT_COLUMN + " AS " + ROLLUP_LAST_EVENT_COLUMN + " " +
+    		"FROM " + LOGCAT_ROLLUPS_TABLE + " r " +
+    		"LEFT JOIN " + STRINGS_TABLE + " gp ON gp." + STRING_ID_COLUMN + " = r." + LOGCAT_PROCESS_ID_COLUMN + ";";
+    
     public static final String STATUS_TABLE = "status";
     public static final String CONTACTS_FILLED_FLAG_COLUMN = "contacts_is_filled";
     public static final String CALENDAR_FILLED_FLAG_COLUMN = "calendar_is_filled";
@@ -124,7 +430,30 @@ public class DroidWatchDatabase extends SQLiteOpenHelper
     {
     	Log.w(TAG, "Upgrading database");
         db.execSQL(TRANSFERS_TABLE_CREATE);
-        db.execSQL(EVENTS_TABLE_CREATE);
+        db.execSQL(STRINGS_TABLE_CREATE);
+        db.execSQL(CALLS_TABLE_CREATE);
+        db.execSQL(SMS_TABLE_CREATE);
+        db.execSQL(MMS_TABLE_CREATE);
+        db.execSQL(BROWSER_VISITS_TABLE_CREATE);
+        db.execSQL(LOCATIONS_TABLE_CREATE);
+        db.execSQL(LOGCAT_TABLE_CREATE);
+        db.execSQL(LOGCAT_VIEW_CREATE);
+        db.execSQL(EVENT_ROLLUPS_TABLE_CREATE);
+        db.execSQL(EVENT_ROLLUPS_VIEW_CREATE);
+        db.execSQL(LOGCAT_ROLLUPS_TABLE_CREATE);
+        db.execSQL(LOGCAT_ROLLUPS_VIEW_CREATE);
+        db.execSQL(LOGCAT_INSERT_TRIGGER_CREATE);
+        for (String typedTable : TYPED_EVENT_TABLES)
+        	db.execSQL("CREATE INDEX " + typedTable + "_" + TYPED_EVENT_DATE_COLUMN + " ON " + typedTable + " (" + TYPED_EVENT_DATE_COLUMN + ");");
+        db.execSQL(PARTITIONS_TABLE_CREATE);
+        db.execSQL("INSERT INTO " + PARTITIONS_TABLE + " (" + PARTITION_ID_COLUMN + "," + PARTITION_FIRST_EVENT_ID_COLUMN + ") " +
+        		"VALUES (" + FIRST_PARTITION + ",1);");
+        createEventPartition(db, FIRST_PARTITION);
+        ArrayList<Long> partitions = new ArrayList<Long>();
+        partitions.add(FIRST_PARTITION);
+        createEventsView(db, partitions);
+        db.execSQL(EVICTIONS_TABLE_CREATE);
+        db.execSQL(WATERMARKS_TABLE_CREATE);
         db.execSQL(CONTACTS_TABLE_CREATE);
         db.execSQL(CALENDAR_TABLE_CREATE);
         db.execSQL(STATUS_TABLE_CREATE);
@@ -140,11 +469,178 @@ public class DroidWatchDatabase extends SQLiteOpenHelper
      */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + TRANSFERS_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + CONTACTS_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + CALENDAR_TABLE);
-		db.execSQL("DROP TABLE IF EXISTS " + STATUS_TABLE);
+		// Drop every view and table (older versions stored events as a table, newer as a view)
+		ArrayList<String> dropStatements = new ArrayList<String>();
+		Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master WHERE type IN ('view','table') " +
+				"AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata' ORDER BY type DESC", null);
+		while (cursor.moveToNext())
+			dropStatements.add("DROP " + cursor.getString(0) + " IF EXISTS " + cursor.getString(1));
+		cursor.close();
+		
+		for (String dropStatement : dropStatements)
+			db.execSQL(dropStatement);
 		onCreate(db);
 	}
+
+	/**
+	 * This method switches an opened database to incremental auto-vacuum, so free pages
+	 * can be given back to the file system after a wipe.
+	 * 
+	 * @param db	The opened database.
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db)
+	{
+		super.onOpen(db);
+		
+		// The mode only applies to existing databases after a full vacuum (done once)
+		if (!db.isReadOnly() && DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL)
+		{
+			Log.w(TAG, "Enabling incremental auto-vacuum");
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+			db.execSQL("VACUUM;");
+		}
+	}
+	
+	/**
+	 * This method returns up to a given number of free pages to the file system.
+	 * 
+	 * @param db			The database to shrink.
+	 * @param maxPages		The maximum number of pages to reclaim.
+	 * @return				The number of pages reclaimed.
+	 */
+	public static int reclaimFreePages(SQLiteDatabase db, int maxPages)
+	{
+		long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		if (freePages <= 0 || maxPages <= 0)
+			return 0;
+		
+		// The pragma frees one page per step, so its cursor is read to the end
+		Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + Math.min(freePages, maxPages) + ")", null);
+		cursor.getCount();
+		cursor.close();
+		return (int) (freePages - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null));
+	}
+	
+	/**
+	 * This method builds the expression truncating the date of a new row to its hour.
+	 * 
+	 * @param dateColumn	The date column of the new row (epoch milliseconds).
+	 * @return				The hour expression (0 if the row has no date).
+	 */
+	private static String rollupHour(String dateColumn)
+	{
+		return "IFNULL(CAST(NEW." + dateColumn + " AS INTEGER)/" + ROLLUP_HOUR + "*" + ROLLUP_HOUR + ",0)";
+	}
+	
+	/**
+	 * This method builds the SET clause counting a new row in its rollup.  The rollup also
+	 * records the ID of the last row counted, so the section export can tell which rollups
+	 * changed since its last upload.
+	 * 
+	 * @param dateColumn	The date column of the new row.
+	 * @param idColumn		The event ID column of the new row.
+	 * @return				The SET clause.
+	 */
+	private static String rollupCountUpdate(String dateColumn, String idColumn)
+	{
+		return ROLLUP_COUNT_COLUMN + " = " + ROLLUP_COUNT_COLUMN + " + 1, " +
+				ROLLUP_FIRST_DATE_COLUMN + " = MIN(IFNULL(" + ROLLUP_FIRST_DATE_COLUMN + ",NEW." + dateColumn + "),NEW." + dateColumn + "), " +
+				ROLLUP_LAST_DATE_COLUMN + " = MAX(IFNULL(" + ROLLUP_LAST_DATE_COLUMN + ",NEW." + dateColumn + "),NEW." + dateColumn + "), " +
+				ROLLUP_LAST_EVENT_COLUMN + " = NEW." + idColumn;
+	}
+	
+	/**
+	 * This method returns the name of the event log table for a partition.
+	 * 
+	 * @param partition	The partition number.
+	 * @return			The table name.
+	 */
+	public static String getPartitionTable(long partition)
+	{
+		return EVENT_LOG_TABLE + "_" + partition;
+	}
+	
+	/**
+	 * This method creates the event log table, indexes, and triggers for a partition.
+	 * 
+	 * @param db			The database to modify.
+	 * @param partition		The partition number.
+	 */
+	public static void createEventPartition(SQLiteDatabase db, long partition)
+	{
+		String table = getPartitionTable(partition);
+		db.execSQL("CREATE TABLE " + table + " (" +
+	    		EVENT_ID_COLUMN + " INTEGER primary key, " +
+	    		DETECTOR_ID_COLUMN + " INTEGER, " +
+	    		DETECT_DATE_COLUMN + " DATETIME default (strftime('%s', 'now')), " +
+	    		EVENT_ACTION_ID_COLUMN + " INTEGER, " + 
+	    		EVENT_DATE_COLUMN + " DATETIME, " + 
+	    		EVENT_DESCRIPTION_COLUMN + " TEXT," +
+	    		ADDITIONAL_INFO_COLUMN + " TEXT, " +
+	    		DEDUP_KEY_COLUMN + " TEXT UNIQUE ON CONFLICT IGNORE);");
+		db.execSQL("CREATE INDEX " + table + "_" + EVENT_DATE_COLUMN + " ON " + table + " (" + EVENT_DATE_COLUMN + ");");
+		db.execSQL("CREATE INDEX " + table + "_" + DETECTOR_ID_COLUMN + " ON " + table + " (" + DETECTOR_ID_COLUMN + ");");
+		db.execSQL("CREATE TRIGGER " + table + "_delete AFTER DELETE ON " + table + " " + EVENT_LOG_DELETE_TRIGGER_BODY);
+		db.execSQL("CREATE TRIGGER " + table + "_insert AFTER INSERT ON " + table + " " + EVENT_LOG_INSERT_TRIGGER_BODY);
+	}
+	
+	/**
+	 * This method drops the event log table of a partition (its index and trigger go with it).
+	 * 
+	 * @param db			The database to modify.
+	 * @param partition		The partition number.
+	 */
+	public static void dropEventPartition(SQLiteDatabase db, long partition)
+	{
+		db.execSQL("DROP TABLE IF EXISTS " + getPartitionTable(partition));
+	}
+	
+	/**
+	 * This method returns the name of the snapshot file uploaded by a transfer.
+	 * 
+	 * @param transferID	The transfer ID.
+	 * @return				The snapshot file name (in the databases directory).
+	 */
+	public static String getSnapshotName(long transferID)
+	{
+		return "snapshot_" + transferID + ".db";
+	}
+	
+	/**
+	 * This method (re)creates the generic events view over the live partitions.
+	 * 
+	 * @param db			The database to modify.
+	 * @param partitions	The live partition numbers, oldest first.
+	 */
+	public static void createEventsView(SQLiteDatabase db, List<Long> partitions)
+	{
+		db.execSQL("DROP VIEW IF EXISTS " + EVENTS_TABLE);
+		db.execSQL("CREATE VIEW " + EVENTS_TABLE + " AS " + getEventsViewSelect(partitions));
+	}
+	
+	/**
+	 * This method builds the query of the generic events view over a set of partitions.
+	 * 
+	 * @param partitions	The partition numbers, oldest first.
+	 * @return				The view query.
+	 */
+	public static String getEventsViewSelect(List<Long> partitions)
+	{
+		StringBuilder source = new StringBuilder();
+		if (partitions.size() == 1)
+			source.append(getPartitionTable(partitions.get(0)));
+		else
+		{
+			source.append("(");
+			for (int i = 0; i < partitions.size(); i++)
+			{
+				if (i > 0)
+					source.append(" UNION ALL ");
+				source.append("SELECT * FROM ").append(getPartitionTable(partitions.get(i)));
+			}
+			source.append(")");
+		}
+		return EVENTS_VIEW_COLUMNS + "FROM " + source + " e " + EVENTS_VIEW_JOINS;
+	}
 }
\ No newline at end of file
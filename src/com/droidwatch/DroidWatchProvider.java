@@ -21,16 +21,38 @@ package com.droidwatch;
  * limitations under the License.
  */
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.DatabaseUtils.InsertHelper;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 
@@ -39,7 +61,9 @@ public class DroidWatchProvider extends ContentProvider
 {
 	private DroidWatchDatabase db;
 	private SQLiteDatabase sqlDB;
-	private static final String AUTHORITY = "com.droidwatch.DroidWatchProvider";
+	private StorageGovernor storageGovernor;
+	private StringDictionary stringDictionary;
+	public static final String AUTHORITY = "com.droidwatch.DroidWatchProvider";
 	public static final int EVENTS = 0;
 	public static final int EVENT_ID = 1;
 	public static final int TRANSFERS = 2;
@@ -49,8 +73,84 @@ public class DroidWatchProvider extends ContentProvider
 	public static final int CALENDAR = 6;
 	public static final int CALENDAR_ID = 7;
 	public static final int STATUS = 8;
+	public static final int CALLS = 9;
+	public static final int CALL_ID = 10;
+	public static final int SMS = 11;
+	public static final int SMS_ID = 12;
+	public static final int MMS = 13;
+	public static final int MMS_ID = 14;
+	public static final int BROWSER_VISITS = 15;
+	public static final int BROWSER_VISIT_ID = 16;
+	public static final int LOCATIONS = 17;
+	public static final int LOCATION_ID = 18;
+	public static final int LOGCAT = 19;
+	public static final int LOGCAT_ID = 20;
+	public static final int PARTITIONS = 21;
+	public static final int EVICTIONS = 22;
+	public static final int VACUUM = 23;
+	public static final int NOTIFICATIONS = 24;
+	public static final int WATERMARKS = 25;
+	public static final int ROLLUPS = 26;
+	public static final int LOGCAT_ROLLUPS = 27;
+	public static final int SNAPSHOTS = 28;
 	private static final UriMatcher URI_MATCHER;
 	
+	// Keyset paging parameters (rows with a key greater than after_id, in key order, at most limit rows)
+	public static final String PARAM_AFTER_ID = "after_id";
+	public static final String PARAM_LIMIT = "limit";
+	public static final int DEFAULT_PAGE_SIZE = 500;
+	public static final int MAX_PAGE_SIZE = 5000;
+	
+	// Writers passing notify=false skip change notifications
+	public static final String PARAM_NOTIFY = "notify";
+	private static final long NOTIFY_WINDOW = 250;
+	
+	// Columns stored in the generic event log (all other columns belong to a typed table)
+	private static final HashSet<String> EVENT_LOG_COLUMNS = new HashSet<String>(Arrays.asList(
+			DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.DETECT_DATE_COLUMN, DroidWatchDatabase.EVENT_ACTION_COLUMN,
+			DroidWatchDatabase.EVENT_DATE_COLUMN, DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN,
+			DroidWatchDatabase.DEDUP_KEY_COLUMN));
+	
+	// Text columns stored compressed when large (see TextCompressor)
+	private static final HashSet<String> COMPRESSED_COLUMNS = new HashSet<String>(Arrays.asList(
+			DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, DroidWatchDatabase.LOGCAT_LINE_COLUMN));
+	
+	// Interned event columns, read back from the strings table when selecting in the partition tables
+	private static final Pattern INTERNED_DETECTOR_PATTERN = Pattern.compile("\\b" + DroidWatchDatabase.DETECTOR_COLUMN + "\\b");
+	private static final Pattern INTERNED_ACTION_PATTERN = Pattern.compile("\\b" + DroidWatchDatabase.EVENT_ACTION_COLUMN + "\\b");
+	private static final String INTERNED_DETECTOR_EXPRESSION = "(SELECT " + DroidWatchDatabase.STRING_VALUE_COLUMN + " FROM " +
+			DroidWatchDatabase.STRINGS_TABLE + " WHERE " + DroidWatchDatabase.STRING_ID_COLUMN + " = " + DroidWatchDatabase.DETECTOR_ID_COLUMN + ")";
+	private static final String INTERNED_ACTION_EXPRESSION = "(SELECT " + DroidWatchDatabase.STRING_VALUE_COLUMN + " FROM " +
+			DroidWatchDatabase.STRINGS_TABLE + " WHERE " + DroidWatchDatabase.STRING_ID_COLUMN + " = " + DroidWatchDatabase.EVENT_ACTION_ID_COLUMN + ")";
+	
+	// Compiled insert statements (one per table) used by the batch insertion path
+	private final HashMap<String,InsertHelper> insertHelpers = new HashMap<String,InsertHelper>();
+	
+	// Change notifications deferred while a batch is applied on the current thread
+	private final ThreadLocal<HashSet<Uri>> pendingNotifications = new ThreadLocal<HashSet<Uri>>();
+	
+	// Events inserted by the batch applied on the current thread (counted for the outbox once committed)
+	private final ThreadLocal<int[]> pendingEventCount = new ThreadLocal<int[]>();
+	
+	// Change notifications coalesced per URI and sent once the notification window ends
+	private final LinkedHashSet<Uri> coalescedNotifications = new LinkedHashSet<Uri>();
+	private final AtomicLong notificationsSent = new AtomicLong();
+	private final AtomicLong notificationsSaved = new AtomicLong();
+	private Handler notifyHandler;
+	private final Runnable notifyTask = new Runnable()
+	{
+		public void run()
+		{
+			sendNotifications();
+		}
+	};
+	
+	// Live event partitions (oldest first); new events are written to the last one
+	private final CopyOnWriteArrayList<Long> livePartitions = new CopyOnWriteArrayList<Long>();
+	
+	// Event IDs are allocated across partitions so they are never reused
+	private long nextEventId = 1;
+	
 	/** This interface lists available columns for the events table. **/
 	public static interface Events extends BaseColumns
 	{
@@ -64,6 +164,8 @@ public class DroidWatchProvider extends ContentProvider
 	    public static final String EVENT_DATE = DroidWatchDatabase.EVENT_DATE_COLUMN;
 	    public static final String DESCRIPTION = DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN;
 	    public static final String ADDITIONAL_INFO = DroidWatchDatabase.ADDITIONAL_INFO_COLUMN;
+	    public static final String DEDUP_KEY = DroidWatchDatabase.DEDUP_KEY_COLUMN;
+	    public static final String DETECTOR_ID = DroidWatchDatabase.DETECTOR_ID_COLUMN;
 		public static final String SORT_ORDER_DEFAULT = _ID+" ASC";
 	}
 	
@@ -77,6 +179,44 @@ public class DroidWatchProvider extends ContentProvider
 		public static final String COMPLETED = DroidWatchDatabase.TRANSFERS_COMPLETED_COLUMN;
 		public static final String STARTDATE = DroidWatchDatabase.TRANSFERS_STARTDATE_COLUMN;
 		public static final String DEVICE_ID = DroidWatchDatabase.TRANSFERS_DEVICE_ID_COLUMN;
+		public static final String PARTITION = DroidWatchDatabase.TRANSFERS_PARTITION_COLUMN;
+		public static final String FILE_SIZE_BEFORE = DroidWatchDatabase.TRANSFERS_SIZE_BEFORE_COLUMN;
+		public static final String FILE_SIZE_AFTER = DroidWatchDatabase.TRANSFERS_SIZE_AFTER_COLUMN;
+		public static final String SNAPSHOT_EVICTION_ID = DroidWatchDatabase.TRANSFERS_SNAPSHOT_EVICTION_COLUMN;
+		public static final String LAST_EVENT_ID = DroidWatchDatabase.TRANSFERS_LAST_EVENT_COLUMN;
+		public static final String PAYLOAD_NAME = DroidWatchDatabase.TRANSFERS_PAYLOAD_NAME_COLUMN;
+		public static final String PAYLOAD_ENCODING = DroidWatchDatabase.TRANSFERS_PAYLOAD_ENCODING_COLUMN;
+		public static final String PAYLOAD_SIZE = DroidWatchDatabase.TRANSFERS_PAYLOAD_SIZE_COLUMN;
+		public static final String PAYLOAD_LAST_EVENT_ID = DroidWatchDatabase.TRANSFERS_PAYLOAD_LAST_EVENT_COLUMN;
+		public static final String UPLOAD_OFFSET = DroidWatchDatabase.TRANSFERS_UPLOAD_OFFSET_COLUMN;
+		public static final String ATTEMPTS = DroidWatchDatabase.TRANSFERS_ATTEMPTS_COLUMN;
+		public static final String LAST_ATTEMPT = DroidWatchDatabase.TRANSFERS_LAST_ATTEMPT_COLUMN;
+	}
+	
+	/** This interface lists available columns for the event partitions table. **/
+	public static interface Partitions extends BaseColumns
+	{
+		public static final String CONTENT_PATH = "partitions";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.partition";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.partition";
+		public static final String CREATED = DroidWatchDatabase.PARTITION_CREATED_COLUMN;
+		public static final String FIRST_EVENT_ID = DroidWatchDatabase.PARTITION_FIRST_EVENT_ID_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = _ID+" ASC";
+	}
+	
+	/** This interface lists available columns for the evictions table. **/
+	public static interface Evictions extends BaseColumns
+	{
+		public static final String CONTENT_PATH = "evictions";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.eviction";
+		public static final String EVICTED = DroidWatchDatabase.EVICTION_DATE_COLUMN;
+		public static final String DETECTOR = DroidWatchDatabase.EVICTION_DETECTOR_COLUMN;
+		public static final String EVENT_COUNT = DroidWatchDatabase.EVICTION_COUNT_COLUMN;
+		public static final String FIRST_EVENT_DATE = DroidWatchDatabase.EVICTION_FIRST_DATE_COLUMN;
+		public static final String LAST_EVENT_DATE = DroidWatchDatabase.EVICTION_LAST_DATE_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = _ID+" ASC";
 	}
 	
 	/** This interface lists available columns for the calendar table. **/
@@ -107,6 +247,168 @@ public class DroidWatchProvider extends ContentProvider
 		public static final String SORT_ORDER_DEFAULT = ADDED+" DESC";
 	}
 	
+	/** This interface lists available columns for the phone calls table. **/
+	public static interface Calls
+	{
+		public static final String CONTENT_PATH = "calls";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.call";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.call";
+		public static final String EVENT_ID = DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		public static final String EVENT_DATE = DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN;
+		public static final String CALL_ID = DroidWatchDatabase.CALL_ID_COLUMN;
+		public static final String NUMBER = DroidWatchDatabase.CALL_NUMBER_COLUMN;
+		public static final String NAME = DroidWatchDatabase.CALL_NAME_COLUMN;
+		public static final String DURATION = DroidWatchDatabase.CALL_DURATION_COLUMN;
+		public static final String NUMBER_TYPE = DroidWatchDatabase.CALL_NUMBER_TYPE_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = EVENT_ID+" ASC";
+	}
+	
+	/** This interface lists available columns for the SMS table. **/
+	public static interface Sms
+	{
+		public static final String CONTENT_PATH = "sms";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.sms";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.sms";
+		public static final String EVENT_ID = DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		public static final String EVENT_DATE = DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN;
+		public static final String MESSAGE_ID = DroidWatchDatabase.SMS_MESSAGE_ID_COLUMN;
+		public static final String ADDRESS = DroidWatchDatabase.SMS_ADDRESS_COLUMN;
+		public static final String CONTACT = DroidWatchDatabase.SMS_CONTACT_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = EVENT_ID+" ASC";
+	}
+	
+	/** This interface lists available columns for the MMS table. **/
+	public static interface Mms
+	{
+		public static final String CONTENT_PATH = "mms";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.mms";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.mms";
+		public static final String EVENT_ID = DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		public static final String EVENT_DATE = DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN;
+		public static final String MESSAGE_ID = DroidWatchDatabase.MMS_MESSAGE_ID_COLUMN;
+		public static final String ADDRESS = DroidWatchDatabase.MMS_ADDRESS_COLUMN;
+		public static final String CONTACT = DroidWatchDatabase.MMS_CONTACT_COLUMN;
+		public static final String SUBJECT = DroidWatchDatabase.MMS_SUBJECT_COLUMN;
+		public static final String TEXT = DroidWatchDatabase.MMS_TEXT_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = EVENT_ID+" ASC";
+	}
+	
+	/** This interface lists available columns for the browser visits table. **/
+	public static interface BrowserVisits
+	{
+		public static final String CONTENT_PATH = "browser_visits";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.browservisit";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.browservisit";
+		public static final String EVENT_ID = DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		public static final String EVENT_DATE = DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN;
+		public static final String URL = DroidWatchDatabase.BROWSER_VISIT_URL_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = EVENT_ID+" ASC";
+	}
+	
+	/** This interface lists available columns for the locations table. **/
+	public static interface Locations
+	{
+		public static final String CONTENT_PATH = "locations";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.location";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.location";
+		public static final String EVENT_ID = DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		public static final String EVENT_DATE = DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN;
+		public static final String LATITUDE = DroidWatchDatabase.LOCATION_LATITUDE_COLUMN;
+		public static final String LONGITUDE = DroidWatchDatabase.LOCATION_LONGITUDE_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = EVENT_ID+" ASC";
+	}
+	
+	/** This interface lists available columns for the logcat table. **/
+	public static interface Logcat
+	{
+		public static final String CONTENT_PATH = "logcat";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.droidwatch.logcat";
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.logcat";
+		public static final String EVENT_ID = DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		public static final String EVENT_DATE = DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN;
+		public static final String PID = DroidWatchDatabase.LOGCAT_PID_COLUMN;
+		public static final String PROCESS = DroidWatchDatabase.LOGCAT_PROCESS_COLUMN;
+		public static final String LINE = DroidWatchDatabase.LOGCAT_LINE_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = EVENT_ID+" ASC";
+	}
+	
+	/** This interface lists the arguments of a vacuum update (reclaims free database pages). **/
+	public static interface Vacuum
+	{
+		public static final String CONTENT_PATH = "vacuum";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.vacuum";
+		public static final String PAGES = "pages";
+	}
+	
+	/** This interface lists available columns for the change notification counters. **/
+	public static interface Notifications
+	{
+		public static final String CONTENT_PATH = "notifications";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.notifications";
+		public static final String SENT = "sent";
+		public static final String SAVED = "saved";
+	}
+	
+	/** This interface lists available columns for the watermarks table. **/
+	public static interface Watermarks
+	{
+		public static final String CONTENT_PATH = "watermarks";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.watermark";
+		public static final String SOURCE = DroidWatchDatabase.WATERMARK_SOURCE_COLUMN;
+		public static final String LAST_ID = DroidWatchDatabase.WATERMARK_LAST_ID_COLUMN;
+		public static final String LAST_DATE = DroidWatchDatabase.WATERMARK_LAST_DATE_COLUMN;
+		public static final String UPDATED = DroidWatchDatabase.WATERMARK_UPDATED_COLUMN;
+	}
+	
+	/** This interface lists available columns for the hourly event counts (per detector and action). **/
+	public static interface Rollups extends BaseColumns
+	{
+		public static final String CONTENT_PATH = "rollups";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.rollup";
+		public static final String DETECTOR = DroidWatchDatabase.DETECTOR_COLUMN;
+		public static final String ACTION = DroidWatchDatabase.EVENT_ACTION_COLUMN;
+		public static final String HOUR = DroidWatchDatabase.ROLLUP_HOUR_COLUMN;
+		public static final String EVENT_COUNT = DroidWatchDatabase.ROLLUP_COUNT_COLUMN;
+		public static final String FIRST_EVENT_DATE = DroidWatchDatabase.ROLLUP_FIRST_DATE_COLUMN;
+		public static final String LAST_EVENT_DATE = DroidWatchDatabase.ROLLUP_LAST_DATE_COLUMN;
+		public static final String LAST_EVENT_ID = DroidWatchDatabase.ROLLUP_LAST_EVENT_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = HOUR+" ASC";
+	}
+	
+	/** This interface lists available columns for the hourly logcat line counts (per process). **/
+	public static interface LogcatRollups extends BaseColumns
+	{
+		public static final String CONTENT_PATH = "logcat_rollups";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.logcat_rollup";
+		public static final String PROCESS = DroidWatchDatabase.LOGCAT_PROCESS_COLUMN;
+		public static final String HOUR = DroidWatchDatabase.ROLLUP_HOUR_COLUMN;
+		public static final String LINE_COUNT = DroidWatchDatabase.ROLLUP_COUNT_COLUMN;
+		public static final String FIRST_LINE_DATE = DroidWatchDatabase.ROLLUP_FIRST_DATE_COLUMN;
+		public static final String LAST_LINE_DATE = DroidWatchDatabase.ROLLUP_LAST_DATE_COLUMN;
+		public static final String LAST_LINE_ID = DroidWatchDatabase.ROLLUP_LAST_EVENT_COLUMN;
+		public static final String SORT_ORDER_DEFAULT = HOUR+" ASC";
+	}
+	
+	/** This interface lists the arguments of a snapshot insert (copies the events sealed by a transfer). **/
+	public static interface Snapshots
+	{
+		public static final String CONTENT_PATH = "snapshots";
+		public static final Uri CONTENT_URI = Uri.parse("content://"+DroidWatchProvider.AUTHORITY+"/"+CONTENT_PATH);
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.droidwatch.snapshot";
+		public static final String TRANSFER_ID = "transfer_id";
+	}
+	
 	/** This interface lists available columns for the status table. **/
 	public static interface Status extends BaseColumns
 	{
@@ -129,6 +431,91 @@ public class DroidWatchProvider extends ContentProvider
 		URI_MATCHER.addURI(AUTHORITY, Calendar.CONTENT_PATH, CALENDAR);
 		URI_MATCHER.addURI(AUTHORITY, Calendar.CONTENT_PATH+"/#", CALENDAR_ID);
 		URI_MATCHER.addURI(AUTHORITY, Status.CONTENT_PATH, STATUS);
+		URI_MATCHER.addURI(AUTHORITY, Calls.CONTENT_PATH, CALLS);
+		URI_MATCHER.addURI(AUTHORITY, Calls.CONTENT_PATH+"/#", CALL_ID);
+		URI_MATCHER.addURI(AUTHORITY, Sms.CONTENT_PATH, SMS);
+		URI_MATCHER.addURI(AUTHORITY, Sms.CONTENT_PATH+"/#", SMS_ID);
+		URI_MATCHER.addURI(AUTHORITY, Mms.CONTENT_PATH, MMS);
+		URI_MATCHER.addURI(AUTHORITY, Mms.CONTENT_PATH+"/#", MMS_ID);
+		URI_MATCHER.addURI(AUTHORITY, BrowserVisits.CONTENT_PATH, BROWSER_VISITS);
+		URI_MATCHER.addURI(AUTHORITY, BrowserVisits.CONTENT_PATH+"/#", BROWSER_VISIT_ID);
+		URI_MATCHER.addURI(AUTHORITY, Locations.CONTENT_PATH, LOCATIONS);
+		URI_MATCHER.addURI(AUTHORITY, Locations.CONTENT_PATH+"/#", LOCATION_ID);
+		URI_MATCHER.addURI(AUTHORITY, Logcat.CONTENT_PATH, LOGCAT);
+		URI_MATCHER.addURI(AUTHORITY, Logcat.CONTENT_PATH+"/#", LOGCAT_ID);
+		URI_MATCHER.addURI(AUTHORITY, Partitions.CONTENT_PATH, PARTITIONS);
+		URI_MATCHER.addURI(AUTHORITY, Evictions.CONTENT_PATH, EVICTIONS);
+		URI_MATCHER.addURI(AUTHORITY, Vacuum.CONTENT_PATH, VACUUM);
+		URI_MATCHER.addURI(AUTHORITY, Notifications.CONTENT_PATH, NOTIFICATIONS);
+		URI_MATCHER.addURI(AUTHORITY, Watermarks.CONTENT_PATH, WATERMARKS);
+		URI_MATCHER.addURI(AUTHORITY, Rollups.CONTENT_PATH, ROLLUPS);
+		URI_MATCHER.addURI(AUTHORITY, LogcatRollups.CONTENT_PATH, LOGCAT_ROLLUPS);
+		URI_MATCHER.addURI(AUTHORITY, Snapshots.CONTENT_PATH, SNAPSHOTS);
+	}
+	
+	/**
+	 * This method returns the typed event table associated with a content provider URI.
+	 * 
+	 * @param match		The matched URI code.
+	 * @return			The typed table name, or null if the URI has no typed table.
+	 */
+	private static String getTypedEventTable(int match)
+	{
+		switch (match)
+		{
+			case CALLS:
+			case CALL_ID:
+				return DroidWatchDatabase.CALLS_TABLE;
+			case SMS:
+			case SMS_ID:
+				return DroidWatchDatabase.SMS_TABLE;
+			case MMS:
+			case MMS_ID:
+				return DroidWatchDatabase.MMS_TABLE;
+			case BROWSER_VISITS:
+			case BROWSER_VISIT_ID:
+				return DroidWatchDatabase.BROWSER_VISITS_TABLE;
+			case LOCATIONS:
+			case LOCATION_ID:
+				return DroidWatchDatabase.LOCATIONS_TABLE;
+			case LOGCAT:
+			case LOGCAT_ID:
+				return DroidWatchDatabase.LOGCAT_TABLE;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * This method returns the key column used to page through a content provider URI.
+	 * 
+	 * @param match		The matched URI code.
+	 * @return			The key column, or null if the URI cannot be paged.
+	 */
+	private static String getKeyColumn(int match)
+	{
+		if (getTypedEventTable(match) != null)
+			return DroidWatchDatabase.TYPED_EVENT_ID_COLUMN;
+		if (match == STATUS || match == VACUUM || match == NOTIFICATIONS || match == WATERMARKS || match == SNAPSHOTS)
+			return null;
+		return BaseColumns._ID;
+	}
+
+	/**
+	 * This method builds the URI of a page of rows.  Readers walk a table in constant memory by
+	 * passing the key of the last row of each page as the next afterID, until a page is empty.
+	 * 
+	 * @param uri		The content provider URI.
+	 * @param afterID	The key of the last row read (0 for the first page).
+	 * @param limit		The maximum number of rows in the page.
+	 * @return			The page URI.
+	 */
+	public static Uri getPageUri(Uri uri, long afterID, int limit)
+	{
+		return uri.buildUpon()
+				.appendQueryParameter(PARAM_AFTER_ID, String.valueOf(afterID))
+				.appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+				.build();
 	}
 
 	/**
@@ -146,14 +533,14 @@ public class DroidWatchProvider extends ContentProvider
 		switch (URI_MATCHER.match(uri))
 		{
 			case EVENTS:        
-				deleteCount = sqlDB.delete(DroidWatchDatabase.EVENTS_TABLE, selection, selectionArgs);
+				deleteCount = deleteEvents(selection, selectionArgs);
 				break;
 			case EVENT_ID:
 				String eventID = uri.getLastPathSegment();
 				String eventWhereClause = Events._ID + " = " + eventID;
 				if (!(TextUtils.isEmpty(selection)))
 					eventWhereClause += " AND " + selection;
-				deleteCount = sqlDB.delete(DroidWatchDatabase.EVENTS_TABLE, eventWhereClause, selectionArgs);
+				deleteCount = deleteEvents(eventWhereClause, selectionArgs);
 				break;
 			case TRANSFERS:
 				deleteCount = sqlDB.delete(DroidWatchDatabase.TRANSFERS_TABLE, selection, selectionArgs);
@@ -185,14 +572,190 @@ public class DroidWatchProvider extends ContentProvider
 					calendarWhereClause += " AND " + selection;
 				deleteCount = sqlDB.delete(DroidWatchDatabase.CALENDAR_TABLE, calendarWhereClause, selectionArgs);
 				break;
+			case PARTITIONS:
+				deleteCount = retirePartitions(selection, selectionArgs);
+				if (deleteCount > 0)
+					notifyChange(Events.CONTENT_URI);
+				break;
+			case EVICTIONS:
+				deleteCount = sqlDB.delete(DroidWatchDatabase.EVICTIONS_TABLE, selection, selectionArgs);
+				break;
+			case WATERMARKS:
+				deleteCount = sqlDB.delete(DroidWatchDatabase.WATERMARKS_TABLE, selection, selectionArgs);
+				break;
+			case ROLLUPS:
+				deleteCount = sqlDB.delete(DroidWatchDatabase.EVENT_ROLLUPS_TABLE, selection, selectionArgs);
+				break;
+			case LOGCAT_ROLLUPS:
+				deleteCount = sqlDB.delete(DroidWatchDatabase.LOGCAT_ROLLUPS_TABLE, selection, selectionArgs);
+				break;
 			default:
 				throw new IllegalArgumentException("Unknown or Invalid URI " + uri);
 		}
 		if (deleteCount > 0)
-			getContext().getContentResolver().notifyChange(uri, null);
+			notifyChange(uri);
 		return deleteCount;
 	}
 
+	/**
+	 * This method deletes events from every live partition.
+	 * 
+	 * @param selection		The content fields selected.
+	 * @param selectionArgs	The content selected.
+	 * @return				The number of events deleted.
+	 */
+	private int deleteEvents(String selection, String[] selectionArgs)
+	{
+		int deleteCount = 0;
+		selection = translateEventSelection(selection);
+		sqlDB.beginTransaction();
+		try
+		{
+			for (long partition : livePartitions)
+				deleteCount += sqlDB.delete(DroidWatchDatabase.getPartitionTable(partition), selection, selectionArgs);
+			sqlDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+		}
+		storageGovernor.onEventsDeleted(deleteCount);
+		return deleteCount;
+	}
+
+	/**
+	 * This method starts a new event partition.  Events logged afterwards are written to the
+	 * new partition, so the older partitions can later be retired as a whole.
+	 * 
+	 * @return		The new partition number.
+	 */
+	private long rollPartition()
+	{
+		long partition;
+		sqlDB.beginTransaction();
+		try
+		{
+			partition = livePartitions.get(livePartitions.size() - 1) + 1;
+			ContentValues values = new ContentValues();
+			values.put(Partitions._ID, partition);
+			values.put(Partitions.FIRST_EVENT_ID, nextEventId);
+			sqlDB.insertOrThrow(DroidWatchDatabase.PARTITIONS_TABLE, null, values);
+			DroidWatchDatabase.createEventPartition(sqlDB, partition);
+			
+			ArrayList<Long> partitions = new ArrayList<Long>(livePartitions);
+			partitions.add(partition);
+			DroidWatchDatabase.createEventsView(sqlDB, partitions);
+			sqlDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+		}
+		livePartitions.add(partition);
+		return partition;
+	}
+
+	/**
+	 * This method writes the snapshot uploaded by a transfer: the partitions older than the one
+	 * started by the transfer, their typed details, and the bookkeeping tables.
+	 * 
+	 * @param transferID	The transfer ID.
+	 * @return				True if the snapshot was written, false otherwise.
+	 */
+	private boolean writeSnapshot(long transferID)
+	{
+		long firstEventId = -1;
+		Cursor cursor = sqlDB.rawQuery("SELECT p." + Partitions._ID + ", p." + Partitions.FIRST_EVENT_ID + " FROM " + DroidWatchDatabase.PARTITIONS_TABLE + " p, " +
+				DroidWatchDatabase.TRANSFERS_TABLE + " t WHERE p." + Partitions._ID + " = t." + Transfers.PARTITION + " AND t." + Transfers._ID + " = " + transferID, null);
+		ArrayList<Long> sealed = new ArrayList<Long>();
+		if (cursor.moveToFirst())
+		{
+			for (long partition : livePartitions)
+			{
+				if (partition < cursor.getLong(0))
+					sealed.add(partition);
+			}
+			firstEventId = cursor.getLong(1);
+		}
+		cursor.close();
+		if (firstEventId < 0)
+			return false;
+		
+		File file = getContext().getDatabasePath(DroidWatchDatabase.getSnapshotName(transferID));
+		return new SnapshotWriter(sqlDB).write(file, transferID, sealed, firstEventId);
+	}
+
+	/**
+	 * This method retires event partitions by dropping their tables (the current partition
+	 * is never retired, and partitions that are no longer live are skipped).  Typed details
+	 * are removed by event ID range.
+	 * 
+	 * @param selection		The partitions selected.
+	 * @param selectionArgs	The partitions selected.
+	 * @return				The number of partitions retired.
+	 */
+	private int retirePartitions(String selection, String[] selectionArgs)
+	{
+		ArrayList<Long> retired = new ArrayList<Long>();
+		int eventCount = 0;
+		sqlDB.beginTransaction();
+		try
+		{
+			// Find the first event ID of every recorded partition (they bound each other's event IDs)
+			long currentPartition = livePartitions.get(livePartitions.size() - 1);
+			HashMap<Long,Long> firstEventIds = new HashMap<Long,Long>();
+			Cursor cursor = sqlDB.query(DroidWatchDatabase.PARTITIONS_TABLE, new String[]{Partitions._ID, Partitions.FIRST_EVENT_ID},
+					null, null, null, null, null);
+			while (cursor.moveToNext())
+				firstEventIds.put(cursor.getLong(0), cursor.getLong(1));
+			cursor.close();
+			cursor = sqlDB.query(DroidWatchDatabase.PARTITIONS_TABLE, new String[]{Partitions._ID},
+					selection, selectionArgs, null, null, Partitions.SORT_ORDER_DEFAULT);
+			while (cursor.moveToNext())
+			{
+				long partition = cursor.getLong(0);
+				if (partition != currentPartition && livePartitions.contains(partition))
+					retired.add(partition);
+			}
+			cursor.close();
+			if (retired.isEmpty())
+				return 0;
+			
+			ArrayList<Long> partitions = new ArrayList<Long>(livePartitions);
+			partitions.removeAll(retired);
+			DroidWatchDatabase.createEventsView(sqlDB, partitions);
+			for (long partition : retired)
+			{
+				String partitionTable = DroidWatchDatabase.getPartitionTable(partition);
+				closeInsertHelper(partitionTable);
+				eventCount += DatabaseUtils.queryNumEntries(sqlDB, partitionTable);
+				DroidWatchDatabase.dropEventPartition(sqlDB, partition);
+				sqlDB.delete(DroidWatchDatabase.PARTITIONS_TABLE, Partitions._ID + " = " + partition, null);
+				
+				// Event IDs of a partition run up to the first event ID of the partitions rolled after it
+				long lastEventId = nextEventId;
+				for (Map.Entry<Long,Long> entry : firstEventIds.entrySet())
+				{
+					if (entry.getKey() > partition)
+						lastEventId = Math.min(lastEventId, entry.getValue());
+				}
+				String[] range = new String[]{String.valueOf(firstEventIds.get(partition)), String.valueOf(lastEventId)};
+				for (String typedTable : DroidWatchDatabase.TYPED_EVENT_TABLES)
+					sqlDB.delete(typedTable, DroidWatchDatabase.TYPED_EVENT_ID_COLUMN + " >= ? AND " + DroidWatchDatabase.TYPED_EVENT_ID_COLUMN + " < ?", range);
+			}
+			sqlDB.setTransactionSuccessful();
+			
+			// Forget the partitions while holding the database lock (the storage governor may be waiting on it)
+			livePartitions.removeAll(retired);
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+		}
+		storageGovernor.onEventsDeleted(eventCount);
+		return retired.size();
+	}
+
 	/**
 	 * This method returns the type of a content URI.
 	 * 
@@ -222,6 +785,46 @@ public class DroidWatchProvider extends ContentProvider
 		    	  return Calendar.CONTENT_ITEM_TYPE;
 		      case STATUS:
 		    	  return Status.CONTENT_TYPE;
+		      case CALLS:
+		    	  return Calls.CONTENT_TYPE;
+		      case CALL_ID:
+		    	  return Calls.CONTENT_ITEM_TYPE;
+		      case SMS:
+		    	  return Sms.CONTENT_TYPE;
+		      case SMS_ID:
+		    	  return Sms.CONTENT_ITEM_TYPE;
+		      case MMS:
+		    	  return Mms.CONTENT_TYPE;
+		      case MMS_ID:
+		    	  return Mms.CONTENT_ITEM_TYPE;
+		      case BROWSER_VISITS:
+		    	  return BrowserVisits.CONTENT_TYPE;
+		      case BROWSER_VISIT_ID:
+		    	  return BrowserVisits.CONTENT_ITEM_TYPE;
+		      case LOCATIONS:
+		    	  return Locations.CONTENT_TYPE;
+		      case LOCATION_ID:
+		    	  return Locations.CONTENT_ITEM_TYPE;
+		      case LOGCAT:
+		    	  return Logcat.CONTENT_TYPE;
+		      case LOGCAT_ID:
+		    	  return Logcat.CONTENT_ITEM_TYPE;
+		      case PARTITIONS:
+		    	  return Partitions.CONTENT_TYPE;
+		      case EVICTIONS:
+		    	  return Evictions.CONTENT_TYPE;
+		      case VACUUM:
+		    	  return Vacuum.CONTENT_TYPE;
+		      case NOTIFICATIONS:
+		    	  return Notifications.CONTENT_TYPE;
+		      case WATERMARKS:
+		    	  return Watermarks.CONTENT_TYPE;
+		      case ROLLUPS:
+		    	  return Rollups.CONTENT_TYPE;
+		      case LOGCAT_ROLLUPS:
+		    	  return LogcatRollups.CONTENT_TYPE;
+		      case SNAPSHOTS:
+		    	  return Snapshots.CONTENT_TYPE;
 		      default: 
 		    	  throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
@@ -238,11 +841,17 @@ public class DroidWatchProvider extends ContentProvider
 	{
 		// Determine the content provider URI and perform the associated insertion.
 		String tableName = null;
-		switch (URI_MATCHER.match(uri))
+		int match = URI_MATCHER.match(uri);
+		switch (match)
 		{ 
-		      case EVENTS: 
-		    	  tableName = DroidWatchDatabase.EVENTS_TABLE;
-		    	  break;
+		      case EVENTS:
+		      case CALLS:
+		      case SMS:
+		      case MMS:
+		      case BROWSER_VISITS:
+		      case LOCATIONS:
+		      case LOGCAT:
+		    	  return insertEventRow(uri, getTypedEventTable(match), values);
 		      case TRANSFERS:
 		    	  tableName = DroidWatchDatabase.TRANSFERS_TABLE;
 		    	  break;
@@ -252,6 +861,21 @@ public class DroidWatchProvider extends ContentProvider
 		      case CALENDAR:
 		    	  tableName = DroidWatchDatabase.CALENDAR_TABLE;
 		    	  break;
+		      case WATERMARKS:
+		    	  // Watermarks are replaced, keyed by their source
+		    	  if (sqlDB.insertWithOnConflict(DroidWatchDatabase.WATERMARKS_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE) < 0)
+		    		  throw new SQLException("Problem while inserting into watermarks table");
+		    	  notifyChange(uri);
+		    	  return uri;
+		      case PARTITIONS:
+		    	  Uri partitionUri = ContentUris.withAppendedId(uri, rollPartition());
+		    	  notifyChange(uri);
+		    	  return partitionUri;
+		      case SNAPSHOTS:
+		    	  long transferID = values.getAsLong(Snapshots.TRANSFER_ID);
+		    	  if (!writeSnapshot(transferID))
+		    		  throw new SQLException("Problem while writing snapshot of transfer " + transferID);
+		    	  return ContentUris.withAppendedId(uri, transferID);
 		      default: 
 		    	  throw new IllegalArgumentException("Unsupported URI for insertion: " + uri);
 		}
@@ -260,14 +884,413 @@ public class DroidWatchProvider extends ContentProvider
 			long id = sqlDB.insert(tableName, null, values);
 			if (id > 0)
 			{   
-			      Uri itemUri = ContentUris.withAppendedId(uri, id);  
-			      getContext().getContentResolver().notifyChange(itemUri, null);  
-			      return itemUri;
+			      // Inserts report a change of the whole table URI, so a burst coalesces into one notification
+			      notifyChange(uri);
+			      return ContentUris.withAppendedId(uri, id);
 			}
 		}
 		throw new SQLException("Problem while inserting into events table");
 	}
 
+	/**
+	 * This method inserts a single event (and its typed details) within a transaction.
+	 * 
+	 * @param uri			The content provider URI.
+	 * @param typedTable	The typed event table, or null for generic events.
+	 * @param values		Key:value pairs.
+	 * @return				The URI of the new event, or null if it was already logged.
+	 */
+	private Uri insertEventRow(Uri uri, String typedTable, ContentValues values)
+	{
+		long id = -1;
+		boolean committed = false;
+		sqlDB.beginTransaction();
+		try
+		{
+			id = insertEvent(typedTable, values);
+			sqlDB.setTransactionSuccessful();
+			committed = true;
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+			if (!committed)
+				stringDictionary.clear();
+		}
+		
+		if (id > 0)
+		{
+			storageGovernor.onEventsInserted(1);
+			UrgentTransfer.onEventInserted(getContext(), values);
+			
+			// Within a batch, the outbox only counts the event once the batch is committed
+			int[] batchCount = pendingEventCount.get();
+			if (batchCount != null)
+				batchCount[0]++;
+			else
+				countOutboxEvents(1);
+			
+			// Events also report a change of their table URI
+			notifyChange(uri);
+			return ContentUris.withAppendedId(uri, id);
+		}
+		
+		// Events carrying a dedup key are ignored if they were already logged (within a batch,
+		// the table URI is returned so the rest of the batch is still applied)
+		if (values.containsKey(Events.DEDUP_KEY))
+			return (pendingNotifications.get() != null) ? uri : null;
+		throw new SQLException("Problem while inserting into events table");
+	}
+
+	/**
+	 * This method writes an event to the event log and its typed details to the typed table.
+	 * The caller must hold a transaction.
+	 * 
+	 * @param typedTable	The typed event table, or null for generic events.
+	 * @param values		Key:value pairs (generic and typed columns).
+	 * @return				The event ID, or -1 if the event was not inserted.
+	 */
+	private long insertEvent(String typedTable, ContentValues values)
+	{
+		// Events already logged in an older partition are ignored
+		String dedupKey = values.getAsString(Events.DEDUP_KEY);
+		if (dedupKey != null && isLoggedInOlderPartition(dedupKey))
+			return -1;
+		
+		// Split the event into its generic and typed columns
+		ContentValues eventValues = new ContentValues(values);
+		ContentValues typedValues = new ContentValues(values);
+		if (typedTable != null)
+		{
+			for (Map.Entry<String,Object> entry : values.valueSet())
+			{
+				if (EVENT_LOG_COLUMNS.contains(entry.getKey()))
+					typedValues.remove(entry.getKey());
+				else
+					eventValues.remove(entry.getKey());
+			}
+		}
+		
+		// Store the repeated strings as interned string IDs
+		internString(eventValues, Events.DETECTOR, DroidWatchDatabase.DETECTOR_ID_COLUMN);
+		internString(eventValues, Events.ACTION, DroidWatchDatabase.EVENT_ACTION_ID_COLUMN);
+		internString(typedValues, Logcat.PROCESS, DroidWatchDatabase.LOGCAT_PROCESS_ID_COLUMN);
+		
+		// Store the large text values compressed
+		TextCompressor.compress(eventValues, Events.DESCRIPTION);
+		TextCompressor.compress(eventValues, Events.ADDITIONAL_INFO);
+		TextCompressor.compress(typedValues, Logcat.LINE);
+		
+		// Duplicate events in the current partition are ignored by the dedup key constraint
+		long id = nextEventId;
+		eventValues.put(Events._ID, id);
+		String partitionTable = DroidWatchDatabase.getPartitionTable(livePartitions.get(livePartitions.size() - 1));
+		if (getInsertHelper(partitionTable).insert(eventValues) <= 0)
+			return -1;
+		nextEventId = id + 1;
+		
+		if (typedTable != null)
+		{
+			typedValues.put(DroidWatchDatabase.TYPED_EVENT_ID_COLUMN, id);
+			typedValues.put(DroidWatchDatabase.TYPED_EVENT_DATE_COLUMN, values.getAsLong(DroidWatchDatabase.EVENT_DATE_COLUMN));
+			getInsertHelper(typedTable).insert(typedValues);
+		}
+		return id;
+	}
+
+	/**
+	 * This method replaces a string column with the ID of the interned string.
+	 * 
+	 * @param values		Key:value pairs.
+	 * @param column		The string column.
+	 * @param idColumn		The column storing the string ID.
+	 */
+	private void internString(ContentValues values, String column, String idColumn)
+	{
+		if (!values.containsKey(column))
+			return;
+		String value = values.getAsString(column);
+		values.remove(column);
+		if (value != null)
+			values.put(idColumn, stringDictionary.encode(value));
+	}
+
+	/**
+	 * This method rewrites an event selection for the partition tables, which store the IDs of
+	 * the interned detector and action strings rather than the strings themselves.  Quoted
+	 * literals are left untouched.
+	 * 
+	 * @param selection		The content fields selected.
+	 * @return				The selection for the partition tables.
+	 */
+	private static String translateEventSelection(String selection)
+	{
+		if (TextUtils.isEmpty(selection))
+			return selection;
+		String[] segments = selection.split("'", -1);
+		for (int i = 0; i < segments.length; i += 2)
+		{
+			segments[i] = INTERNED_DETECTOR_PATTERN.matcher(segments[i]).replaceAll(Matcher.quoteReplacement(INTERNED_DETECTOR_EXPRESSION));
+			segments[i] = INTERNED_ACTION_PATTERN.matcher(segments[i]).replaceAll(Matcher.quoteReplacement(INTERNED_ACTION_EXPRESSION));
+		}
+		return TextUtils.join("'", segments);
+	}
+
+	/**
+	 * This method checks whether an event was logged in a partition other than the current one.
+	 * 
+	 * @param dedupKey		The dedup key of the event.
+	 * @return				True if the event is already logged, false otherwise.
+	 */
+	private boolean isLoggedInOlderPartition(String dedupKey)
+	{
+		for (int i = 0; i < livePartitions.size() - 1; i++)
+		{
+			String partitionTable = DroidWatchDatabase.getPartitionTable(livePartitions.get(i));
+			if (DatabaseUtils.longForQuery(sqlDB, "SELECT COUNT(*) FROM " + partitionTable + " WHERE " +
+					Events.DEDUP_KEY + " = ?", new String[]{dedupKey}) > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * This method builds the canonical dedup key of an event from its detector and the
+	 * identity of its source record (e.g., message ID, call ID, or URL and timestamp).
+	 * 
+	 * @param detector		The detector that logged the event.
+	 * @param identity		The fields identifying the source record.
+	 * @return				The dedup key.
+	 */
+	public static String dedupKey(String detector, Object... identity)
+	{
+		StringBuilder key = new StringBuilder(detector);
+		for (Object part : identity)
+			key.append(':').append(part);
+		return key.toString();
+	}
+
+	/**
+	 * This method inserts a set of rows within a single transaction, using a compiled
+	 * statement for the target table and a single change notification for the batch.
+	 * 
+	 * @param uri			The content provider URI.
+	 * @param values		The rows to insert.
+	 * @return				The number of rows inserted.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values)
+	{
+		// Only the bulk-loaded tables use the batch path (events are split by insertEvent)
+		String tableName = null;
+		int match = URI_MATCHER.match(uri);
+		switch (match)
+		{
+			case EVENTS:
+			case CALLS:
+			case SMS:
+			case MMS:
+			case BROWSER_VISITS:
+			case LOCATIONS:
+			case LOGCAT:
+				break;
+			case CONTACTS:
+				tableName = DroidWatchDatabase.CONTACTS_TABLE;
+				break;
+			case CALENDAR:
+				tableName = DroidWatchDatabase.CALENDAR_TABLE;
+				break;
+			default:
+				return super.bulkInsert(uri, values);
+		}
+		
+		// Insert all rows in one transaction
+		int insertCount = 0;
+		boolean[] inserted = new boolean[values.length];
+		boolean committed = false;
+		String typedTable = getTypedEventTable(match);
+		sqlDB.beginTransaction();
+		try
+		{
+			for (int i = 0; i < values.length; i++)
+			{
+				long id = (tableName == null) ? insertEvent(typedTable, values[i]) : getInsertHelper(tableName).insert(values[i]);
+				inserted[i] = id > 0;
+				if (inserted[i])
+					insertCount++;
+			}
+			sqlDB.setTransactionSuccessful();
+			committed = true;
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+			if (!committed)
+				stringDictionary.clear();
+		}
+		
+		if (tableName == null)
+		{
+			storageGovernor.onEventsInserted(insertCount);
+			countOutboxEvents(insertCount);
+			
+			// Only the events actually inserted arm the urgent lane (not those ignored as duplicates)
+			for (int i = 0; i < values.length; i++)
+			{
+				if (inserted[i])
+					UrgentTransfer.onEventInserted(getContext(), values[i]);
+			}
+		}
+		if (insertCount > 0)
+			notifyChange(uri);
+		return insertCount;
+	}
+
+	/**
+	 * This method applies a set of operations within a single transaction and coalesces
+	 * their change notifications (one per URI).
+	 * 
+	 * @param operations	The operations to apply.
+	 * @return				The results of the operations.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException
+	{
+		// Collect notifications while the batch is running
+		HashSet<Uri> changedUris = new HashSet<Uri>();
+		pendingNotifications.set(changedUris);
+		int[] eventCount = new int[1];
+		pendingEventCount.set(eventCount);
+		
+		ContentProviderResult[] results = null;
+		boolean committed = false;
+		sqlDB.beginTransaction();
+		try
+		{
+			results = super.applyBatch(operations);
+			sqlDB.setTransactionSuccessful();
+			committed = true;
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+			pendingNotifications.set(null);
+			pendingEventCount.set(null);
+			if (!committed)
+				stringDictionary.clear();
+		}
+		countOutboxEvents(eventCount[0]);
+		
+		// Send one notification per changed URI
+		for (Uri changedUri : changedUris)
+			notifyChange(changedUri);
+		return results;
+	}
+
+	/**
+	 * This method counts committed events for the outbox, whichever path inserted them.
+	 * 
+	 * @param count		The number of events inserted.
+	 */
+	private void countOutboxEvents(int count)
+	{
+		if (count > 0 && OutboxSpooler.isEnabled())
+			OutboxSpooler.getInstance(getContext()).onEventsWritten(count);
+	}
+
+	/**
+	 * This method returns the compiled insert statement for a table.
+	 * 
+	 * @param tableName		The table to insert into.
+	 * @return				The insert helper for the table.
+	 */
+	private InsertHelper getInsertHelper(String tableName)
+	{
+		synchronized (insertHelpers)
+		{
+			InsertHelper insertHelper = insertHelpers.get(tableName);
+			if (insertHelper == null)
+			{
+				insertHelper = new InsertHelper(sqlDB, tableName);
+				insertHelpers.put(tableName, insertHelper);
+			}
+			return insertHelper;
+		}
+	}
+
+	/**
+	 * This method closes and forgets the compiled insert statement for a table that is being dropped.
+	 * 
+	 * @param tableName		The table being dropped.
+	 */
+	private void closeInsertHelper(String tableName)
+	{
+		synchronized (insertHelpers)
+		{
+			InsertHelper insertHelper = insertHelpers.remove(tableName);
+			if (insertHelper != null)
+				insertHelper.close();
+		}
+	}
+
+	/**
+	 * This method queues a change notification.  Notifications are deferred until the running
+	 * batch completes, then coalesced per URI and sent at the end of the notification window.
+	 * 
+	 * @param uri	The changed content provider URI.
+	 */
+	private void notifyChange(Uri uri)
+	{
+		// Bulk writers may opt out of notifications
+		if ("false".equals(uri.getQueryParameter(PARAM_NOTIFY)))
+		{
+			notificationsSaved.incrementAndGet();
+			return;
+		}
+		Uri changedUri = uri.buildUpon().encodedQuery(null).build();
+		
+		HashSet<Uri> changedUris = pendingNotifications.get();
+		if (changedUris != null)
+		{
+			if (!changedUris.add(changedUri))
+				notificationsSaved.incrementAndGet();
+			return;
+		}
+		
+		synchronized (coalescedNotifications)
+		{
+			if (!coalescedNotifications.add(changedUri))
+				notificationsSaved.incrementAndGet();
+			else if (coalescedNotifications.size() == 1)
+				notifyHandler.postDelayed(notifyTask, NOTIFY_WINDOW);
+		}
+	}
+
+	/**
+	 * This method sends the coalesced change notifications.
+	 */
+	private void sendNotifications()
+	{
+		// Observers should not be told about changes that another thread has not committed yet
+		if (sqlDB.isDbLockedByOtherThreads())
+		{
+			notifyHandler.postDelayed(notifyTask, NOTIFY_WINDOW);
+			return;
+		}
+		
+		ArrayList<Uri> changedUris;
+		synchronized (coalescedNotifications)
+		{
+			changedUris = new ArrayList<Uri>(coalescedNotifications);
+			coalescedNotifications.clear();
+		}
+		for (Uri changedUri : changedUris)
+		{
+			getContext().getContentResolver().notifyChange(changedUri, null);
+			notificationsSent.incrementAndGet();
+		}
+	}
+
 	/**
 	 * This method helps in the creation of the content provider.
 	 */
@@ -284,9 +1307,39 @@ public class DroidWatchProvider extends ContentProvider
 			this.sqlDB = null; 
 			return false; 
 		}
+		loadPartitions();
+		stringDictionary = new StringDictionary(sqlDB);
+		stringDictionary.load();
+		storageGovernor = new StorageGovernor(sqlDB, livePartitions, stringDictionary);
+		storageGovernor.load();
+		
+		HandlerThread notifyThread = new HandlerThread("DroidWatchNotifications", Process.THREAD_PRIORITY_BACKGROUND);
+		notifyThread.start();
+		notifyHandler = new Handler(notifyThread.getLooper());
 		return true;
 	}
 
+	/**
+	 * This method loads the live event partitions and the next event ID.
+	 */
+	private void loadPartitions()
+	{
+		long firstEventId = 1;
+		Cursor cursor = sqlDB.query(DroidWatchDatabase.PARTITIONS_TABLE, new String[]{Partitions._ID, Partitions.FIRST_EVENT_ID},
+				null, null, null, null, Partitions.SORT_ORDER_DEFAULT);
+		while (cursor.moveToNext())
+		{
+			livePartitions.add(cursor.getLong(0));
+			firstEventId = cursor.getLong(1);
+		}
+		cursor.close();
+		
+		// Continue after the last event of the current partition
+		String partitionTable = DroidWatchDatabase.getPartitionTable(livePartitions.get(livePartitions.size() - 1));
+		long lastEventId = DatabaseUtils.longForQuery(sqlDB, "SELECT IFNULL(MAX(" + Events._ID + "),0) FROM " + partitionTable, null);
+		nextEventId = Math.max(firstEventId, lastEventId + 1);
+	}
+
 	/**
 	 * This method provides the selection capabilities to available content provider URIs.
 	 * 
@@ -294,14 +1347,15 @@ public class DroidWatchProvider extends ContentProvider
 	 * @param projection	The columns to be returned.
 	 * @param selection		The content fields selected.
 	 * @param selectionArgs	The content selected.
-	 * @param sortOrder		The sorting order.
+	 * @param sortOrder		The sorting order (ignored for pages, which are in key order).
 	 */
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
 	{
 		// Determine the content provider URI and perform the associated selection
 		SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-		switch (URI_MATCHER.match(uri))
+		int match = URI_MATCHER.match(uri);
+		switch (match)
 		{
 			case EVENT_ID:
 				queryBuilder.setTables(DroidWatchDatabase.EVENTS_TABLE);
@@ -347,14 +1401,114 @@ public class DroidWatchProvider extends ContentProvider
 			case STATUS:
 				queryBuilder.setTables(DroidWatchDatabase.STATUS_TABLE);
 				break;
+			case WATERMARKS:
+				queryBuilder.setTables(DroidWatchDatabase.WATERMARKS_TABLE);
+				break;
+			case PARTITIONS:
+				queryBuilder.setTables(DroidWatchDatabase.PARTITIONS_TABLE);
+				if (TextUtils.isEmpty(sortOrder))
+					sortOrder = Partitions.SORT_ORDER_DEFAULT;
+				break;
+			case EVICTIONS:
+				queryBuilder.setTables(DroidWatchDatabase.EVICTIONS_TABLE);
+				if (TextUtils.isEmpty(sortOrder))
+					sortOrder = Evictions.SORT_ORDER_DEFAULT;
+				break;
+			case ROLLUPS:
+				queryBuilder.setTables(DroidWatchDatabase.EVENT_ROLLUPS_VIEW);
+				if (TextUtils.isEmpty(sortOrder))
+					sortOrder = Rollups.SORT_ORDER_DEFAULT;
+				break;
+			case LOGCAT_ROLLUPS:
+				queryBuilder.setTables(DroidWatchDatabase.LOGCAT_ROLLUPS_VIEW);
+				if (TextUtils.isEmpty(sortOrder))
+					sortOrder = LogcatRollups.SORT_ORDER_DEFAULT;
+				break;
+			case NOTIFICATIONS:
+				MatrixCursor counters = new MatrixCursor(new String[]{Notifications.SENT, Notifications.SAVED}, 1);
+				counters.addRow(new Object[]{notificationsSent.get(), notificationsSaved.get()});
+				return counters;
+			case CALL_ID:
+			case SMS_ID:
+			case MMS_ID:
+			case BROWSER_VISIT_ID:
+			case LOCATION_ID:
+			case LOGCAT_ID:
+				queryBuilder.setTables(match == LOGCAT_ID ? DroidWatchDatabase.LOGCAT_VIEW : getTypedEventTable(match));
+				queryBuilder.appendWhere(DroidWatchDatabase.TYPED_EVENT_ID_COLUMN + "=" + uri.getLastPathSegment());
+				if (TextUtils.isEmpty(sortOrder))
+					sortOrder = Calls.SORT_ORDER_DEFAULT;
+				break;
+			case CALLS:
+			case SMS:
+			case MMS:
+			case BROWSER_VISITS:
+			case LOCATIONS:
+			case LOGCAT:
+				queryBuilder.setTables(match == LOGCAT ? DroidWatchDatabase.LOGCAT_VIEW : getTypedEventTable(match));
+				if (TextUtils.isEmpty(sortOrder))
+					sortOrder = Calls.SORT_ORDER_DEFAULT;
+				break;
 			default:
 				throw new IllegalArgumentException("Unknown URI");
 		}
-		Cursor cursor = queryBuilder.query(sqlDB, projection, selection, selectionArgs, null, null, sortOrder);
+		
+		// Restrict paged queries to one bounded page after the given key
+		String limit = null;
+		String afterID = uri.getQueryParameter(PARAM_AFTER_ID);
+		String pageSize = uri.getQueryParameter(PARAM_LIMIT);
+		String keyColumn = getKeyColumn(match);
+		if (keyColumn != null && (afterID != null || pageSize != null))
+		{
+			String keyClause = keyColumn + " > " + (afterID == null ? 0 : Long.parseLong(afterID));
+			selection = TextUtils.isEmpty(selection) ? keyClause : keyClause + " AND (" + selection + ")";
+			sortOrder = keyColumn + " ASC";
+			int rows = (pageSize == null) ? DEFAULT_PAGE_SIZE : Integer.parseInt(pageSize);
+			limit = String.valueOf(Math.max(1, Math.min(rows, MAX_PAGE_SIZE)));
+		}
+		
+		Cursor cursor;
+		if (match == EVENTS && limit != null)
+			cursor = queryEventPage(projection, selection, selectionArgs, sortOrder, Integer.parseInt(limit));
+		else
+			cursor = queryBuilder.query(sqlDB, projection, selection, selectionArgs, null, null, sortOrder, limit);
+		cursor = CompressedTextCursor.wrap(cursor, COMPRESSED_COLUMNS);
 		cursor.setNotificationUri(getContext().getContentResolver(), uri);
 		return cursor;
 	}
 
+	/**
+	 * This method reads one page of events partition by partition (oldest first, so the page
+	 * stays in event ID order).  SQLite cannot flatten the UNION ALL of the events view under
+	 * its joins, so paging the view would build every partition's rows for each page; a single
+	 * partition is flattened, and its page is found by seeking the event ID.
+	 * 
+	 * @param projection	The columns to be returned.
+	 * @param selection		The content fields selected (including the page key clause).
+	 * @param selectionArgs	The content selected.
+	 * @param sortOrder		The sorting order (the page key).
+	 * @param rows			The maximum number of rows in the page.
+	 * @return				The page of events.
+	 */
+	private Cursor queryEventPage(String[] projection, String selection, String[] selectionArgs, String sortOrder, int rows)
+	{
+		ArrayList<Cursor> cursors = new ArrayList<Cursor>();
+		for (long partition : livePartitions)
+		{
+			SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+			queryBuilder.setTables("(" + DroidWatchDatabase.getEventsViewSelect(Collections.singletonList(partition)) + ") " +
+					DroidWatchDatabase.EVENTS_TABLE);
+			Cursor cursor = queryBuilder.query(sqlDB, projection, selection, selectionArgs, null, null, sortOrder, String.valueOf(rows));
+			cursors.add(cursor);
+			rows -= cursor.getCount();
+			if (rows <= 0)
+				break;
+		}
+		if (cursors.size() == 1)
+			return cursors.get(0);
+		return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+	}
+
 	/**
 	 * This method provides the update capabilities to available content provider URIs.
 	 * 
@@ -371,14 +1525,14 @@ public class DroidWatchProvider extends ContentProvider
 		switch (URI_MATCHER.match(uri))
 		{
 			case EVENTS:
-				updateCount = sqlDB.update(DroidWatchDatabase.EVENTS_TABLE, values, selection, selectionArgs);
+				updateCount = updateEvents(values, selection, selectionArgs);
 				break;
 			case EVENT_ID:
 				String eventID = uri.getLastPathSegment();  
 				String eventWhereClause = Events._ID + " = " + eventID;
 				if (!TextUtils.isEmpty(selection))
 					eventWhereClause += " AND " + selection;
-				updateCount = sqlDB.update(DroidWatchDatabase.EVENTS_TABLE, values, eventWhereClause, selectionArgs);
+				updateCount = updateEvents(values, eventWhereClause, selectionArgs);
 				break;
 			case TRANSFERS:
 				updateCount = sqlDB.update(DroidWatchDatabase.TRANSFERS_TABLE, values, selection, selectionArgs);
@@ -413,12 +1567,49 @@ public class DroidWatchProvider extends ContentProvider
 			case STATUS:
 				updateCount = sqlDB.update(DroidWatchDatabase.STATUS_TABLE, values, selection, selectionArgs);
 				break;
+			case WATERMARKS:
+				updateCount = sqlDB.update(DroidWatchDatabase.WATERMARKS_TABLE, values, selection, selectionArgs);
+				break;
+			case VACUUM:
+				// Reclaims one slice of free pages (returns the number of pages reclaimed)
+				return DroidWatchDatabase.reclaimFreePages(sqlDB, values.getAsInteger(Vacuum.PAGES));
 			default:  
 				throw new IllegalArgumentException("Unsupported URI: " + uri);
 		}
 		
 		if (updateCount > 0)
-			getContext().getContentResolver().notifyChange(uri, null);
+			notifyChange(uri);
+		return updateCount;
+	}
+
+	/**
+	 * This method updates events in every live partition.
+	 * 
+	 * @param values		Key:value pairs.
+	 * @param selection		The content fields selected.
+	 * @param selectionArgs	The content selected.
+	 * @return				The number of events updated.
+	 */
+	private int updateEvents(ContentValues values, String selection, String[] selectionArgs)
+	{
+		int updateCount = 0;
+		values = new ContentValues(values);
+		internString(values, Events.DETECTOR, DroidWatchDatabase.DETECTOR_ID_COLUMN);
+		internString(values, Events.ACTION, DroidWatchDatabase.EVENT_ACTION_ID_COLUMN);
+		selection = translateEventSelection(selection);
+		TextCompressor.compress(values, Events.DESCRIPTION);
+		TextCompressor.compress(values, Events.ADDITIONAL_INFO);
+		sqlDB.beginTransaction();
+		try
+		{
+			for (long partition : livePartitions)
+				updateCount += sqlDB.update(DroidWatchDatabase.getPartitionTable(partition), values, selection, selectionArgs);
+			sqlDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+		}
 		return updateCount;
 	}
 }
@@ -0,0 +1,391 @@
+package com.droidwatch;
+
+/**
+ * EventExporter.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import org.json.JSONObject;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * This class streams new events in ID order to an event writer: as NDJSON (a header line, one
+ * JSON object per event, and a trailer line with the event count and last event ID) or in the
+ * columnar format of ColumnarEncoder.  Events are read one page at a time and written straight
+ * to the output stream.
+ **/
+public class EventExporter
+{
+	// Initialize constants and variables
+	public static final String TAG = "EventExporter";
+	public static final String CONTENT_TYPE = "application/x-ndjson";
+	public static final String FILENAME = "events.ndjson";
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8192;
+	
+	// Exported in the order of the column indexes of the upload formats (see ColumnarDecoder)
+	private static final String[] EVENT_COLUMNS = new String[]{
+			DroidWatchProvider.Events._ID, DroidWatchProvider.Events.DETECTOR, DroidWatchProvider.Events.DETECTED,
+			DroidWatchProvider.Events.ACTION, DroidWatchProvider.Events.EVENT_DATE, DroidWatchProvider.Events.DESCRIPTION,
+			DroidWatchProvider.Events.ADDITIONAL_INFO};
+
+	private final Context context;
+	private long eventCount = 0;
+	private long lastEventID = 0;
+
+	/**
+	 * Constructor used to set the context.
+	 *
+	 * @param context	The application context.
+	 */
+	public EventExporter(Context context)
+	{
+		this.context = context;
+	}
+
+	/**
+	 * This method returns the ID of the last event acknowledged by the server.
+	 *
+	 * @param context	The application context.
+	 * @return			The last acknowledged event ID (0 if none), or -1 on failure.
+	 */
+	public static long getLastAcknowledgedID(Context context)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(DroidWatchProvider.Transfers.CONTENT_URI,
+					new String[]{"IFNULL(MAX("+DroidWatchProvider.Transfers.LAST_EVENT_ID+"),0)"}, null, null, null);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Unable to query transfers table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(TAG, "Unable to query transfers table");
+			return -1;
+		}
+
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method returns the writer of an upload format.
+	 *
+	 * @param format	The transfer format ("events" for NDJSON or "columnar").
+	 * @param output	The output stream.
+	 * @return			The event writer.
+	 */
+	public static EventWriter createWriter(String format, OutputStream output)
+	{
+		if (Transfer.FORMAT_COLUMNAR.equals(format))
+			return new ColumnarEncoder(output);
+		return new JsonWriter(output);
+	}
+
+	/**
+	 * This method returns the uploaded file name of a format.
+	 *
+	 * @param format	The transfer format ("events" for NDJSON or "columnar").
+	 * @return			The file name.
+	 */
+	public static String getFileName(String format)
+	{
+		if (Transfer.FORMAT_COLUMNAR.equals(format))
+			return ColumnarEncoder.FILENAME;
+		return FILENAME;
+	}
+
+	/**
+	 * This method writes the events in an ID range to an output stream.  The stream is flushed
+	 * but not closed.
+	 *
+	 * @param writer		The event writer.
+	 * @param transferID	The transfer ID (written in the header).
+	 * @param deviceID		The device ID (written in the header).
+	 * @param afterID		The last event ID already exported (excluded).
+	 * @param beforeID		The first event ID not covered by this export (excluded).
+	 * @return				True if every event was written, false otherwise.
+	 * @throws IOException
+	 */
+	public boolean export(EventWriter writer, long transferID, String deviceID, long afterID, long beforeID) throws IOException
+	{
+		return export(writer, transferID, deviceID, afterID, beforeID, null, 0);
+	}
+
+	/**
+	 * This method writes up to a given number of events of some detectors in an ID range to an
+	 * output stream.  The stream is flushed but not closed.
+	 *
+	 * @param writer		The event writer.
+	 * @param transferID	The transfer ID (written in the header).
+	 * @param deviceID		The device ID (written in the header).
+	 * @param afterID		The last event ID already exported (excluded).
+	 * @param beforeID		The first event ID not covered by this export (excluded).
+	 * @param detectors		The detectors to export (null for all).
+	 * @param maxEvents		The maximum number of events (0 for no limit).
+	 * @return				True if every selected event was written, false otherwise.
+	 * @throws IOException
+	 */
+	public boolean export(EventWriter writer, long transferID, String deviceID, long afterID, long beforeID, String[] detectors,
+			int maxEvents) throws IOException
+	{
+		writer.writeHeader(transferID, deviceID, afterID);
+
+		eventCount = 0;
+		lastEventID = afterID;
+		String[] selectionArgs = getSelectionArgs(beforeID, detectors);
+		String selection = getSelection(detectors);
+		boolean full = false;
+		while (!full)
+		{
+			Cursor cursor = null;
+			try
+			{
+				cursor = context.getContentResolver().query(DroidWatchProvider.getPageUri(DroidWatchProvider.Events.CONTENT_URI, lastEventID,
+						DroidWatchProvider.DEFAULT_PAGE_SIZE), EVENT_COLUMNS, selection, selectionArgs, null);
+			}
+			catch (Exception e)
+			{
+				Log.e(TAG, "Unable to query events table: "+e.getMessage());
+				return false;
+			}
+			if (cursor == null)
+			{
+				Log.e(TAG, "Unable to query events table");
+				return false;
+			}
+
+			// An empty page ends the export
+			try
+			{
+				if (!cursor.moveToFirst())
+					break;
+				do
+				{
+					writer.writeEvent(cursor);
+					lastEventID = cursor.getLong(ColumnarDecoder.ID_INDEX);
+					eventCount++;
+					full = maxEvents > 0 && eventCount >= maxEvents;
+				}
+				while (!full && cursor.moveToNext());
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+
+		writer.writeTrailer(eventCount, lastEventID);
+		return true;
+	}
+
+	/**
+	 * This method checks whether any event of some detectors follows an ID.
+	 *
+	 * @param afterID		The last event ID already exported (excluded).
+	 * @param detectors		The detectors to check (null for all).
+	 * @return				True if an event is waiting (or on failure, so the caller tries the export).
+	 */
+	public boolean hasEvents(long afterID, String[] detectors)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(DroidWatchProvider.getPageUri(DroidWatchProvider.Events.CONTENT_URI, afterID, 1),
+					new String[]{DroidWatchProvider.Events._ID}, getSelection(detectors), getSelectionArgs(Long.MAX_VALUE, detectors), null);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Unable to query events table: "+e.getMessage());
+			return true;
+		}
+		if (cursor == null)
+			return true;
+
+		try
+		{
+			return cursor.moveToFirst();
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method builds the selection of an export (events below an ID, of some detectors).
+	 * Detectors are matched on their interned ID rather than on the name decoded by the view.
+	 *
+	 * @param detectors		The detectors to export (null for all).
+	 * @return				The selection.
+	 */
+	static String getSelection(String[] detectors)
+	{
+		StringBuilder selection = new StringBuilder(DroidWatchProvider.Events._ID+" < ?");
+		if (detectors != null)
+		{
+			selection.append(" AND "+DroidWatchProvider.Events.DETECTOR_ID+" IN (SELECT "+DroidWatchDatabase.STRING_ID_COLUMN+" FROM "+
+					DroidWatchDatabase.STRINGS_TABLE+" WHERE "+DroidWatchDatabase.STRING_VALUE_COLUMN+" IN (");
+			for (int i = 0; i < detectors.length; i++)
+				selection.append(i == 0 ? "?" : ",?");
+			selection.append("))");
+		}
+		return selection.toString();
+	}
+
+	/**
+	 * This method builds the selection arguments of an export.
+	 *
+	 * @param beforeID		The first event ID not covered by the export.
+	 * @param detectors		The detectors to export (null for all).
+	 * @return				The selection arguments.
+	 */
+	static String[] getSelectionArgs(long beforeID, String[] detectors)
+	{
+		int detectorCount = detectors == null ? 0 : detectors.length;
+		String[] selectionArgs = new String[detectorCount + 1];
+		selectionArgs[0] = String.valueOf(beforeID);
+		for (int i = 0; i < detectorCount; i++)
+			selectionArgs[i + 1] = detectors[i];
+		return selectionArgs;
+	}
+
+	/**
+	 * This method returns the number of events written by the last export.
+	 *
+	 * @return	The event count.
+	 */
+	public long getEventCount()
+	{
+		return eventCount;
+	}
+
+	/**
+	 * This method returns the ID of the last event written by the last export.
+	 *
+	 * @return	The last event ID (the starting ID if no event was written).
+	 */
+	public long getLastEventID()
+	{
+		return lastEventID;
+	}
+
+	/** This interface writes exported events in an upload format. **/
+	public static interface EventWriter
+	{
+		/**
+		 * This method writes the header of an export.
+		 *
+		 * @param transferID	The transfer ID.
+		 * @param deviceID		The device ID.
+		 * @param afterID		The last event ID already exported.
+		 * @throws IOException
+		 */
+		public void writeHeader(long transferID, String deviceID, long afterID) throws IOException;
+
+		/**
+		 * This method writes an event.
+		 *
+		 * @param cursor	The cursor positioned on the event (exported columns, see the indexes).
+		 * @throws IOException
+		 */
+		public void writeEvent(Cursor cursor) throws IOException;
+
+		/**
+		 * This method writes the trailer of an export and flushes the output stream.
+		 *
+		 * @param eventCount	The number of events written.
+		 * @param lastEventID	The last event ID written.
+		 * @throws IOException
+		 */
+		public void writeTrailer(long eventCount, long lastEventID) throws IOException;
+	}
+
+	/** This class writes events as NDJSON lines. **/
+	private static final class JsonWriter implements EventWriter
+	{
+		private final Writer writer;
+
+		/**
+		 * Constructor used to set the output stream.
+		 *
+		 * @param output	The output stream.
+		 */
+		private JsonWriter(OutputStream output)
+		{
+			try
+			{
+				writer = new BufferedWriter(new OutputStreamWriter(output, CHARSET), BUFFER_SIZE);
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+
+		public void writeHeader(long transferID, String deviceID, long afterID) throws IOException
+		{
+			writer.write("{\"transfer_id\":"+transferID+",\"device_id\":"+JSONObject.quote(deviceID)+",\"after_id\":"+afterID+"}\n");
+		}
+
+		public void writeEvent(Cursor cursor) throws IOException
+		{
+			writer.write('{');
+			for (int i = 0; i < EVENT_COLUMNS.length; i++)
+			{
+				if (i > 0)
+					writer.write(',');
+				writer.write('"');
+				writer.write(EVENT_COLUMNS[i]);
+				writer.write("\":");
+				if (cursor.isNull(i))
+					writer.write("null");
+				else if (i == ColumnarDecoder.ID_INDEX || i == ColumnarDecoder.EVENT_DATE_INDEX || i == ColumnarDecoder.DETECTED_INDEX)
+					writer.write(String.valueOf(cursor.getLong(i)));
+				else
+					writer.write(JSONObject.quote(cursor.getString(i)));
+			}
+			writer.write("}\n");
+		}
+
+		public void writeTrailer(long eventCount, long lastEventID) throws IOException
+		{
+			writer.write("{\"event_count\":"+eventCount+",\"last_id\":"+lastEventID+"}\n");
+			writer.flush();
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.droidwatch;
+
+/**
+ * EventSink.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+/** This class queues detected events and writes them to the DroidWatch database in batches. **/
+public class EventSink implements Runnable
+{
+	// Initialize constants and variables
+	public static final String TAG = "EventSink";
+	public static int QUEUE_CAPACITY = 2000;
+	public static long MAX_LATENCY = 1000 * 2;
+	private static final int BATCH_SIZE = 200;
+	private static EventSink instance = null;
+
+	private final Context context;
+	private final ConcurrentLinkedQueue<EventRecord> queue = new ConcurrentLinkedQueue<EventRecord>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final Object signal = new Object();
+	private boolean flushRequested = false;
+
+	/** This class holds a single queued event. **/
+	private static final class EventRecord
+	{
+		private final Uri uri;
+		private final ContentValues values;
+
+		/**
+		 * Constructor used to copy the event values (the queued insert skips change notifications).
+		 *
+		 * @param uri		The content provider URI to insert into.
+		 * @param values	The event values.
+		 */
+		private EventRecord(Uri uri, ContentValues values)
+		{
+			this.uri = uri.buildUpon().appendQueryParameter(DroidWatchProvider.PARAM_NOTIFY, "false").build();
+			this.values = new ContentValues(values);
+		}
+	}
+
+	/**
+	 * Constructor used to set the context.
+	 *
+	 * @param context	The application context.
+	 */
+	private EventSink(Context context)
+	{
+		this.context = context;
+	}
+
+	/**
+	 * This method sets the queue properties.
+	 *
+	 * @param capacity		Maximum number of queued events.
+	 * @param maxLatency	Maximum time an event waits in the queue (milliseconds).
+	 */
+	public static void setQueueProperties(int capacity, long maxLatency)
+	{
+		QUEUE_CAPACITY = capacity;
+		MAX_LATENCY = maxLatency;
+	}
+
+	/**
+	 * This method returns the process-wide event sink, starting its writer thread if needed.
+	 *
+	 * @param context	The application context.
+	 * @return			The event sink.
+	 */
+	public static synchronized EventSink getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new EventSink(context.getApplicationContext());
+			Thread writer = new Thread(instance, TAG);
+			writer.setDaemon(true);
+			writer.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * This method queues an event for insertion.  If the queue is full, the event is
+	 * inserted on the calling thread instead.
+	 *
+	 * @param uri		The content provider URI to insert into.
+	 * @param values	The event values.
+	 */
+	public void post(Uri uri, ContentValues values)
+	{
+		int count = pendingCount.incrementAndGet();
+		if (count > QUEUE_CAPACITY)
+		{
+			pendingCount.decrementAndGet();
+			context.getContentResolver().insert(uri, values);
+			return;
+		}
+		queue.offer(new EventRecord(uri, values));
+
+		// Wake the writer once a full batch is waiting
+		if (count == BATCH_SIZE)
+		{
+			synchronized (signal)
+			{
+				signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * This method waits until every event queued so far has been written.
+	 *
+	 * @param timeout	Maximum time to wait (milliseconds).
+	 * @return			True if the queue was flushed, false on timeout.
+	 */
+	public boolean flush(long timeout)
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (signal)
+		{
+			flushRequested = true;
+			signal.notifyAll();
+			while (pendingCount.get() > 0)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				try
+				{
+					signal.wait(remaining);
+				}
+				catch (InterruptedException e)
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This method runs the writer thread.
+	 */
+	@Override
+	public void run()
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		while (true)
+		{
+			// Wait for a full batch, a flush request, or the maximum latency
+			synchronized (signal)
+			{
+				if (!flushRequested && pendingCount.get() < BATCH_SIZE)
+				{
+					try
+					{
+						signal.wait(MAX_LATENCY);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+				flushRequested = false;
+			}
+			drainQueue();
+		}
+	}
+
+	/**
+	 * This method writes all queued events in batches.
+	 */
+	private void drainQueue()
+	{
+		ArrayList<EventRecord> batch = new ArrayList<EventRecord>(BATCH_SIZE);
+		EventRecord record;
+		while ((record = queue.poll()) != null)
+		{
+			batch.add(record);
+			if (batch.size() >= BATCH_SIZE)
+			{
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			writeBatch(batch);
+	}
+
+	/**
+	 * This method writes one batch of events in a single transaction.  If the batch fails, its
+	 * events are written one at a time, so a single bad event does not lose the others.
+	 *
+	 * @param batch		The events to write.
+	 */
+	private void writeBatch(ArrayList<EventRecord> batch)
+	{
+		// Queued writes are not observed, so the inserts skip change notifications
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(batch.size());
+		for (EventRecord record : batch)
+			operations.add(ContentProviderOperation.newInsert(record.uri).withValues(record.values).build());
+
+		try
+		{
+			context.getContentResolver().applyBatch(DroidWatchProvider.AUTHORITY, operations);
+		}
+		catch (Exception e)
+		{
+			Log.w(TAG, "Unable to write queued batch, writing its events one at a time: "+e.getMessage());
+			int failedCount = 0;
+			for (EventRecord record : batch)
+			{
+				try
+				{
+					context.getContentResolver().insert(record.uri, record.values);
+				}
+				catch (Exception rowException)
+				{
+					failedCount++;
+				}
+			}
+			if (failedCount > 0)
+				Log.e(TAG, "Unable to write "+failedCount+" of "+batch.size()+" queued events");
+		}
+
+		// Release any threads waiting on a flush
+		synchronized (signal)
+		{
+			pendingCount.addAndGet(-batch.size());
+			signal.notifyAll();
+		}
+	}
+}
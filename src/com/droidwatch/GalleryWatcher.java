@@ -21,8 +21,9 @@ package com.droidwatch;
  * limitations under the License.
  */
 
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -49,6 +50,9 @@ public class GalleryWatcher extends ContentObserver
     {
         super( handler );
         this.context = context;
+        
+        // Checkpoint the watched content provider before its first change notification
+        WatermarkManager.getWatermark(context, Media.EXTERNAL_CONTENT_URI);
     }
 	
 	/**
@@ -64,16 +68,21 @@ public class GalleryWatcher extends ContentObserver
 	 }
 	 
 	 /**
-	  * This method finds and identifies newly added pictures.
+	  * This method logs the pictures added since the last seen picture.
 	  */
 	 private void queryPhotos()
 	 {
-		 // Query photo database
+		 // Get the last seen picture
+		 long watermark = WatermarkManager.getWatermark(context, Media.EXTERNAL_CONTENT_URI);
+		 if (watermark < 0)
+			 return;
+		 
+		 // Query photo database for new pictures (oldest first)
 		 Cursor photoCursor = null;
 		 String[] photoProj = new String[]{ Media._ID, Media.DISPLAY_NAME, Media.DATE_TAKEN };
 		 try
 		 {
-			 photoCursor = context.getContentResolver().query(Media.EXTERNAL_CONTENT_URI, photoProj, null, null, "date_added DESC");
+			 photoCursor = context.getContentResolver().query(Media.EXTERNAL_CONTENT_URI, photoProj, Media._ID + " > ?", new String[]{String.valueOf(watermark)}, Media._ID + " ASC");
 		 }
 		 catch(Exception e)
 		 {
@@ -88,66 +97,43 @@ public class GalleryWatcher extends ContentObserver
 			 return;
 		 }
 		 
-		 // Get most recent photo
-		 long id = -1;
-		 Date date = null;
-		 String fileName = null;
-		 if (photoCursor.moveToFirst() && photoCursor.getCount() > 0) 
-		 {
-			 id = photoCursor.getLong(photoCursor.getColumnIndex(Media._ID));
-			 fileName = photoCursor.getString(photoCursor.getColumnIndex(Media.DISPLAY_NAME));
-			 date = new Date(photoCursor.getLong(photoCursor.getColumnIndex(Media.DATE_TAKEN)));
-		 }
-		 
-		 if (id == -1 || fileName == null || date == null)
-		 {
-			 Log.e(TAG, "Unable to query photo database");
-			 return;
-		 }
-		 
-		 // Check the photo's date_added time to see if it's new
-		 Calendar cal = Calendar.getInstance();
-		 cal.add(Calendar.SECOND, -5);
-		 long fiveSecondsAgo = cal.getTimeInMillis();
-		 if (date.getTime() > fiveSecondsAgo)
+		 // Initialize DroidWatch events table URI
+		 Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+		 ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		 long lastID = watermark;
+		 long lastDate = 0;
+		 while (photoCursor.moveToNext()) 
 		 {
-			 // Initialize DroidWatch events table URI
-			 Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+			 long id = photoCursor.getLong(photoCursor.getColumnIndex(Media._ID));
+			 String fileName = photoCursor.getString(photoCursor.getColumnIndex(Media.DISPLAY_NAME));
+			 Date date = new Date(photoCursor.getLong(photoCursor.getColumnIndex(Media.DATE_TAKEN)));
+			 lastID = id;
+			 lastDate = date.getTime();
 			 
-			 // Check to see if the photo is already in the local database
-			 String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN};
-			 String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN+" = ?";
-			 String[] selectionArgs = new String[]{TAG, fileName};
-			 Cursor cursor = null;
-			 try
+			 if (fileName == null)
 			 {
-				 cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-			 }
-			 catch(Exception e)
-			 {
-				 Log.e(TAG, "Unable to query events table");
-				 return;
+				 Log.e(TAG, "Unable to query photo database");
+				 continue;
 			 }
 			 
-			 if (cursor == null)
-			 {
-				 Log.e(TAG, "Unable to query events table");
-				 return;
-			 }
-			 
-			 if (cursor.getCount() == 0)
-			 {
-				 // Insert newly added picture to DroidWatch
-				 ContentValues values = new ContentValues();
-				 values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-				 values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Photo Added");
-				 values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
-				 values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, fileName);
-				 values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "PhotoID:"+id);
-				 context.getContentResolver().insert(eventsUri, values);
-				
-				 //Log.i(TAG, "ID: "+id+" FileName: "+fileName+" Date: "+date.toString());
-			 }
-		}
+			 // Insert newly added picture to DroidWatch (ignored if already logged)
+			 ContentValues values = new ContentValues();
+			 values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+			 values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Photo Added");
+			 values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
+			 values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, fileName);
+			 values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "PhotoID:"+id);
+			 values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, id));
+			 operations.add(ContentProviderOperation.newInsert(eventsUri).withValues(values).build());
+			
+			 //Log.i(TAG, "ID: "+id+" FileName: "+fileName+" Date: "+date.toString());
+		 }
+		 photoCursor.close();
+		 
+		 // Log the new pictures and advance the watermark together
+		 if (lastID == watermark)
+			 return;
+		 operations.add(WatermarkManager.advanceWatermark(Media.EXTERNAL_CONTENT_URI, lastID, lastDate));
+		 WatermarkManager.applyBatch(context, operations);
 	}
 }
\ No newline at end of file
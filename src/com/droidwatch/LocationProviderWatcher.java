@@ -73,7 +73,7 @@ public class LocationProviderWatcher extends BroadcastReceiver
 		values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Provider Status Changed");
 		values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
 		values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, "Network:"+networkStatus+"; GPS:"+gpsStatus+";");	
-		context.getContentResolver().insert(eventsUri, values);
+		EventSink.getInstance(context).post(eventsUri, values);
 		
 		//Log.i(TAG, "change in provider detected.  Network: "+networkStatus+" GPS: "+gpsStatus);
 	}
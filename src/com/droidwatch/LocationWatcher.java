@@ -27,7 +27,6 @@ import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationManager;
@@ -84,42 +83,19 @@ public class LocationWatcher extends BroadcastReceiver
 		if (lastLocation != null)
 		{
 			// Initialize the DroidWatch events content provider URI
-			Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+			Uri locationsUri = DroidWatchProvider.Locations.CONTENT_URI;
 			
-			// Make sure the location is not already listed
-			String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.EVENT_DATE_COLUMN};
-			String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.EVENT_DATE_COLUMN +" = ?";
-			String[] selectionArgs = new String[]{TAG, String.valueOf(lastLocation.getTime())};
-			Cursor cursor = null;
-			try
-			{
-				cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-			}
-			catch(Exception e)
-			{
-				Log.e(TAG, "Unable to query events table");
-				return;
-			}
-			
-			// Log search event
-			if (cursor == null)
-			{
-				Log.e(TAG, "Unable to query events table");
-				return;
-			}
-			
-			if (cursor.getCount() == 0)
-			{	
-				// Insert the new location into DroidWatch
-				ContentValues values = new ContentValues();
-				values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "LastKnownLocation Received");
-				values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, lastLocation.getTime());
-				values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, "Lat:"+lastLocation.getLatitude()+"; Lng:"+lastLocation.getLongitude());
-				context.getContentResolver().insert(eventsUri, values);
-	
-				//Log.i(TAG, "Time: "+lastLocation.getTime()+" Lat: " + lastLocation.getLatitude() +" Lng: " + lastLocation.getLongitude());
-			}
+			// Insert the location into DroidWatch (ignored if already logged)
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "LastKnownLocation Received");
+			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, lastLocation.getTime());
+			values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, lastLocation.getTime()));
+			values.put(DroidWatchDatabase.LOCATION_LATITUDE_COLUMN, lastLocation.getLatitude());
+			values.put(DroidWatchDatabase.LOCATION_LONGITUDE_COLUMN, lastLocation.getLongitude());
+			EventSink.getInstance(context).post(locationsUri, values);
+
+			//Log.i(TAG, "Time: "+lastLocation.getTime()+" Lat: " + lastLocation.getLatitude() +" Lng: " + lastLocation.getLongitude());
 		}
     }
 
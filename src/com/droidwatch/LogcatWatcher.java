@@ -24,6 +24,7 @@ package com.droidwatch;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -47,6 +48,7 @@ public class LogcatWatcher extends BroadcastReceiver
 	// Initialize constants and variables
 	public static final String TAG = "LogcatWatcher";
 	public static long COLLECTION_INTERVAL = 1000 * 60 * 60;
+	private static final int BATCH_SIZE = 500;
 	
 	/**
 	 * This method sets the collection interval.
@@ -77,7 +79,8 @@ public class LogcatWatcher extends BroadcastReceiver
 			Matcher dateMatcher;
 			Calendar cal=Calendar.getInstance();
 			int year=cal.get(Calendar.YEAR);
-			Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+			Uri logcatUri = DroidWatchProvider.Logcat.CONTENT_URI.buildUpon().appendQueryParameter(DroidWatchProvider.PARAM_NOTIFY, "false").build();
+			ArrayList<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
 			
 			// Get running processes
 			ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -157,15 +160,27 @@ public class LogcatWatcher extends BroadcastReceiver
 						values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
 						values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Logcat");
 						values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
-						values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, appName);
-						values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, line);
-						context.getContentResolver().insert(eventsUri, values);
+						values.put(DroidWatchDatabase.LOGCAT_PROCESS_COLUMN, appName);
+						values.put(DroidWatchDatabase.LOGCAT_PID_COLUMN, pid);
+						values.put(DroidWatchDatabase.LOGCAT_LINE_COLUMN, line);
+						batch.add(values);
+						
+						// Write full batches in a single transaction
+						if (batch.size() >= BATCH_SIZE)
+						{
+							context.getContentResolver().bulkInsert(logcatUri, batch.toArray(new ContentValues[batch.size()]));
+							batch.clear();
+						}
 						
 						//Log.i(TAG, "App: "+appName+" Log: "+line);
 					}
 				}
 			}
 			
+			// Write the remaining partial batch
+			if (!batch.isEmpty())
+				context.getContentResolver().bulkInsert(logcatUri, batch.toArray(new ContentValues[batch.size()]));
+			
 			// Clear logcat logs
 			bufferedReader.close();
 			Runtime.getRuntime().exec("logcat -c");
@@ -56,7 +56,7 @@ public class MMSIncomingWatcher extends BroadcastReceiver
 		
 		for (MMS mms:mmsArray)
 		{
-			Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+			Uri mmsUri = DroidWatchProvider.Mms.CONTENT_URI;
 			int messageID = mms.getId();
 			String address = mms.getAddress();
 			String displayName = ContactFinder.findContact(context, address);
@@ -78,8 +78,13 @@ public class MMSIncomingWatcher extends BroadcastReceiver
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "MMS Received");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
 			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, picName);
-			values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "MSG_ID:"+messageID+"; ReceiverAddress:"+address+"; ReceiverContact:"+displayName+"; Subject:"+subject+"; Text:"+text+";");
-			context.getContentResolver().insert(eventsUri, values);
+			values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, messageID));
+			values.put(DroidWatchDatabase.MMS_MESSAGE_ID_COLUMN, messageID);
+			values.put(DroidWatchDatabase.MMS_ADDRESS_COLUMN, address);
+			values.put(DroidWatchDatabase.MMS_CONTACT_COLUMN, displayName);
+			values.put(DroidWatchDatabase.MMS_SUBJECT_COLUMN, subject);
+			values.put(DroidWatchDatabase.MMS_TEXT_COLUMN, text);
+			EventSink.getInstance(context).post(mmsUri, values);
 			
 			//Log.i(TAG, "Dir: "+mms.getDirection()+" Address: "+address+" Name: "+displayName+" Sub: "+subject+" Text: "+text+" Pic: "+picName+ " Date: "+mms.getDate().toString()+" MessageID: "+messageID+" ThreadID: "+mms.getThreadId());
 		}
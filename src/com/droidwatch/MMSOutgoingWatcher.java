@@ -30,7 +30,6 @@ import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
@@ -112,41 +111,22 @@ public class MMSOutgoingWatcher extends BroadcastReceiver
 			if (text.equals(""))
 				text = "<Text Detected>";
 			
-			// Prepare to query DroidWatch content provider to check for duplicate events
-			Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
-			String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN};
-			String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.ADDITIONAL_INFO_COLUMN+" LIKE ?";
-			String[] selectionArgs = new String[]{TAG, "%MSG_ID:"+messageID+";%"};
-			Cursor cursor = null;
-			try
-			{
-				cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-			}
-			catch(Exception e)
-			{
-				Log.e(TAG, "Unable to query events table");
-				return;
-			}
+			// Insert new MMS message into DroidWatch (ignored if already logged)
+			Uri mmsUri = DroidWatchProvider.Mms.CONTENT_URI;
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "MMS Sent");
+			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
+			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, picName);
+			values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, messageID));
+			values.put(DroidWatchDatabase.MMS_MESSAGE_ID_COLUMN, messageID);
+			values.put(DroidWatchDatabase.MMS_ADDRESS_COLUMN, address);
+			values.put(DroidWatchDatabase.MMS_CONTACT_COLUMN, displayName);
+			values.put(DroidWatchDatabase.MMS_SUBJECT_COLUMN, subject);
+			values.put(DroidWatchDatabase.MMS_TEXT_COLUMN, text);
+			EventSink.getInstance(context).post(mmsUri, values);
 			
-			if (cursor == null)
-			{
-				Log.e(TAG, "Unable to query events table");
-				return;
-			}
-			
-			if (cursor.getCount() == 0)
-			{
-				// Insert new MMS message into DroidWatch 
-				ContentValues values = new ContentValues();
-				values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "MMS Sent");
-				values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
-				values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, picName);
-				values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "MSG_ID:"+messageID+"; ReceiverAddress:"+address+"; ReceiverContact:"+displayName+"; Subject:"+subject+"; Text:"+text+";");
-				context.getContentResolver().insert(eventsUri, values);
-				
-				//Log.i(TAG, "Dir: "+mms.getDirection()+" Address: "+address+" Name: "+displayName+" Sub: "+subject+" Text: "+text+" Pic: "+picName+ " Date: "+date.toString()+" MessageID: "+messageID+" ThreadID: "+mms.getThreadId());
-			}		
+			//Log.i(TAG, "Dir: "+mms.getDirection()+" Address: "+address+" Name: "+displayName+" Sub: "+subject+" Text: "+text+" Pic: "+picName+ " Date: "+date.toString()+" MessageID: "+messageID+" ThreadID: "+mms.getThreadId());
 		}
 	}
 
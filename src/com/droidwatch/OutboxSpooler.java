@@ -0,0 +1,508 @@
+package com.droidwatch;
+
+/**
+ * OutboxSpooler.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import android.content.Context;
+import android.os.Process;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * This class keeps an outbox of sealed batch files, written while events are collected so the
+ * transfer only has to send them.  Each batch holds the events of a contiguous ID range in the
+ * transfer format, compressed like the uploads, and its name records the range, the CRC32 of its
+ * bytes, the format and the encoding.  Batches are written to a temporary file that is synced
+ * and renamed once complete, so after a crash the outbox is recovered by scanning its directory.
+ * Batches are written on a background thread of their own, woken by the provider once a full
+ * batch of events has been inserted (whichever watcher or path wrote them), so exporting, compressing and syncing never delay the event writes.
+ **/
+public class OutboxSpooler implements Runnable
+{
+	// Initialize constants and variables
+	public static final String TAG = "OutboxSpooler";
+	public static int BATCH_SIZE = 1000;
+	private static final String DIRECTORY = "outbox";
+	private static final String BATCH_EXTENSION = ".batch";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final int BUFFER_SIZE = 8192;
+	private static OutboxSpooler instance = null;
+
+	private final Context context;
+	private final File directory;
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final Object signal = new Object();
+	private long watermark = 0;
+
+	/** This class describes a sealed batch file. **/
+	public static final class Batch
+	{
+		public final File file;
+		public final long afterID;
+		public final long throughID;
+		public final long crc;
+		public final String format;
+		public final String encoding;
+
+		/**
+		 * Constructor used to set the batch properties.
+		 *
+		 * @param file			The batch file.
+		 * @param afterID		The last event ID before the batch.
+		 * @param throughID		The last event ID of the batch.
+		 * @param crc			The CRC32 of the file bytes.
+		 * @param format		The transfer format of the events.
+		 * @param encoding		The encoding of the file (null if uncompressed).
+		 */
+		private Batch(File file, long afterID, long throughID, long crc, String format, String encoding)
+		{
+			this.file = file;
+			this.afterID = afterID;
+			this.throughID = throughID;
+			this.crc = crc;
+			this.format = format;
+			this.encoding = encoding;
+		}
+
+		/**
+		 * This method reads a batch from its file name.
+		 *
+		 * @param file	The batch file.
+		 * @return		The batch, or null if the name is not a batch name.
+		 */
+		private static Batch parse(File file)
+		{
+			String name = file.getName();
+			if (!name.endsWith(BATCH_EXTENSION))
+				return null;
+			String[] parts = name.substring(0, name.length() - BATCH_EXTENSION.length()).split("\\.");
+			if (parts.length < 2 || parts.length > 3)
+				return null;
+			String[] range = parts[0].split("_");
+			if (range.length != 3)
+				return null;
+			try
+			{
+				return new Batch(file, Long.parseLong(range[0]), Long.parseLong(range[1]), Long.parseLong(range[2], 16), parts[1],
+						parts.length == 3 ? parts[2] : null);
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+
+		/**
+		 * This method returns the file name of a batch.
+		 *
+		 * @param afterID		The last event ID before the batch.
+		 * @param throughID		The last event ID of the batch.
+		 * @param crc			The CRC32 of the file bytes.
+		 * @param format		The transfer format of the events.
+		 * @param encoding		The encoding of the file (null if uncompressed).
+		 * @return				The file name.
+		 */
+		private static String getName(long afterID, long throughID, long crc, String format, String encoding)
+		{
+			return afterID+"_"+throughID+"_"+Long.toHexString(crc)+"."+format+(encoding == null ? "" : "."+encoding)+BATCH_EXTENSION;
+		}
+
+		/**
+		 * This method returns the name the batch is uploaded under.
+		 *
+		 * @return	The uploaded file name.
+		 */
+		public String getUploadName()
+		{
+			return EventExporter.getFileName(format);
+		}
+
+		/**
+		 * This method checks the file bytes against the CRC32 recorded in its name.
+		 *
+		 * @return	True if the file is intact, false otherwise.
+		 */
+		public boolean verify()
+		{
+			CRC32 checksum = new CRC32();
+			InputStream input = null;
+			try
+			{
+				input = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+				while ((count = input.read(buffer)) > 0)
+					checksum.update(buffer, 0, count);
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "Unable to read batch "+file.getName()+": "+e.getMessage());
+				return false;
+			}
+			finally
+			{
+				if (input != null)
+				{
+					try
+					{
+						input.close();
+					}
+					catch (IOException e)
+					{
+						Log.w(TAG, "Unable to close batch: "+e.getMessage());
+					}
+				}
+			}
+			return checksum.getValue() == crc;
+		}
+
+		/**
+		 * This method deletes the batch file.
+		 */
+		public void delete()
+		{
+			if (file.exists() && !file.delete())
+				Log.w(TAG, "Unable to delete batch: "+file.getName());
+		}
+	}
+
+	/**
+	 * Constructor used to set the context and recover the outbox.
+	 *
+	 * @param context	The application context.
+	 */
+	private OutboxSpooler(Context context)
+	{
+		this.context = context;
+		directory = new File(context.getFilesDir(), DIRECTORY);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			Log.e(TAG, "Unable to create outbox: "+directory.getAbsolutePath());
+		recover();
+	}
+
+	/**
+	 * This method sets the number of events per batch.
+	 *
+	 * @param batchSize		The batch size (0 to export the events at transfer time instead).
+	 */
+	public static void setBatchSize(int batchSize)
+	{
+		BATCH_SIZE = batchSize;
+	}
+
+	/**
+	 * This method checks whether transfers send the outbox (it needs chunked uploads of events).
+	 *
+	 * @return	True if enabled, false otherwise.
+	 */
+	public static boolean isEnabled()
+	{
+		return BATCH_SIZE > 0 && Transfer.CHUNK_SIZE > 0 && !Transfer.FORMAT_DATABASE.equals(Transfer.TRANSFER_FORMAT);
+	}
+
+	/**
+	 * This method returns the process-wide outbox, recovering it from its directory and starting
+	 * its spooler thread if needed.
+	 *
+	 * @param context	The application context.
+	 * @return			The outbox.
+	 */
+	public static synchronized OutboxSpooler getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new OutboxSpooler(context.getApplicationContext());
+			Thread spooler = new Thread(instance, TAG);
+			spooler.setDaemon(true);
+			spooler.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * This method counts events written to the database, and wakes the spooler thread once a
+	 * full batch is waiting.  It is called by the provider after each committed insert and
+	 * does not block it.
+	 *
+	 * @param count		The number of events just written.
+	 */
+	public void onEventsWritten(int count)
+	{
+		if (pendingCount.addAndGet(count) < BATCH_SIZE)
+			return;
+		synchronized (signal)
+		{
+			signal.notifyAll();
+		}
+	}
+
+	/**
+	 * This method runs the spooler thread.
+	 */
+	@Override
+	public void run()
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		while (true)
+		{
+			// Wait for a full batch (while the outbox is enabled)
+			synchronized (signal)
+			{
+				while (!isEnabled() || pendingCount.get() < BATCH_SIZE)
+				{
+					try
+					{
+						signal.wait();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+			spoolPending();
+		}
+	}
+
+	/**
+	 * This method writes a batch for every full batch of events counted.  Once the outbox has
+	 * caught up with the database (or on failure), the count starts over.
+	 */
+	private synchronized void spoolPending()
+	{
+		while (BATCH_SIZE > 0 && pendingCount.get() >= BATCH_SIZE)
+		{
+			pendingCount.addAndGet(-BATCH_SIZE);
+			if (spool(Long.MAX_VALUE) < BATCH_SIZE)
+			{
+				pendingCount.set(0);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * This method writes the batches of the remaining events before an ID, so every event
+	 * covered by a transfer is in the outbox.
+	 *
+	 * @param beforeID	The first event ID not covered by the transfer.
+	 * @return			True if the outbox covers every event before the ID, false otherwise.
+	 */
+	public synchronized boolean seal(long beforeID)
+	{
+		int spooled;
+		do
+		{
+			spooled = spool(beforeID);
+			if (spooled < 0)
+				return false;
+		}
+		while (spooled == BATCH_SIZE);
+		watermark = Math.max(watermark, beforeID - 1);
+		pendingCount.set(0);
+		return true;
+	}
+
+	/**
+	 * This method lists the sealed batches in ID order.
+	 *
+	 * @return	The batches.
+	 */
+	public synchronized List<Batch> getBatches()
+	{
+		ArrayList<Batch> batches = new ArrayList<Batch>();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return batches;
+		for (File file : files)
+		{
+			Batch batch = Batch.parse(file);
+			if (batch != null)
+				batches.add(batch);
+		}
+		Collections.sort(batches, new Comparator<Batch>()
+		{
+			public int compare(Batch a, Batch b)
+			{
+				return a.afterID < b.afterID ? -1 : (a.afterID == b.afterID ? 0 : 1);
+			}
+		});
+		return batches;
+	}
+
+	/**
+	 * This method discards a batch and every later one, so their events are written again by
+	 * the next batches (used when a batch is found corrupt).
+	 *
+	 * @param from	The first batch to discard.
+	 */
+	public synchronized void rewind(Batch from)
+	{
+		for (Batch batch : getBatches())
+		{
+			if (batch.afterID >= from.afterID)
+				batch.delete();
+		}
+		watermark = from.afterID;
+		pendingCount.set(0);
+	}
+
+	/**
+	 * This method recovers the outbox after a restart: incomplete batches are deleted and the
+	 * events already spooled are found from the names of the sealed ones.
+	 */
+	private void recover()
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (file.getName().endsWith(TEMP_EXTENSION) && !file.delete())
+					Log.w(TAG, "Unable to delete incomplete batch: "+file.getName());
+			}
+		}
+		for (Batch batch : getBatches())
+			watermark = Math.max(watermark, batch.throughID);
+	}
+
+	/**
+	 * This method writes the events following the outbox (or the last acknowledged event, if
+	 * later) to a new batch.
+	 *
+	 * @param beforeID	The first event ID not covered by the batch.
+	 * @return			The number of events written (0 if none), or -1 on failure.
+	 */
+	private int spool(long beforeID)
+	{
+		long acknowledgedID = EventExporter.getLastAcknowledgedID(context);
+		if (acknowledgedID < 0)
+			return -1;
+		long afterID = Math.max(watermark, acknowledgedID);
+		String format = Transfer.TRANSFER_FORMAT;
+		String encoding = Transfer.COMPRESSION_LEVEL > 0 ? TransferManager.UPLOAD_ENCODING : null;
+
+		File temp = new File(directory, afterID+TEMP_EXTENSION);
+		EventExporter exporter = new EventExporter(context);
+		CRC32 checksum = new CRC32();
+		boolean written = false;
+		FileOutputStream file = null;
+		OutputStream output = null;
+		Deflater deflater = null;
+		try
+		{
+			file = new FileOutputStream(temp);
+			output = new BufferedOutputStream(new CheckedOutputStream(file, checksum), BUFFER_SIZE);
+			if (encoding != null)
+			{
+				deflater = new Deflater(Math.min(Transfer.COMPRESSION_LEVEL, Deflater.BEST_COMPRESSION));
+				output = new DeflaterOutputStream(output, deflater, BUFFER_SIZE);
+			}
+			written = exporter.export(EventExporter.createWriter(format, output), 0, getDeviceID(), afterID, beforeID, null, BATCH_SIZE);
+
+			// End the compressed data and sync the file, so the batch is durable before it is sealed
+			if (deflater != null)
+				((DeflaterOutputStream) output).finish();
+			output.flush();
+			file.getFD().sync();
+			output.close();
+			output = null;
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Error writing batch: "+e.getMessage());
+			written = false;
+		}
+		finally
+		{
+			if (output != null)
+			{
+				try
+				{
+					output.close();
+				}
+				catch (IOException e)
+				{
+					Log.e(TAG, "Error: "+e.getMessage());
+				}
+			}
+			else if (file != null && !written)
+			{
+				try
+				{
+					file.close();
+				}
+				catch (IOException e)
+				{
+					Log.e(TAG, "Error: "+e.getMessage());
+				}
+			}
+			if (deflater != null)
+				deflater.end();
+		}
+
+		if (!written || exporter.getEventCount() == 0)
+		{
+			temp.delete();
+			return written ? 0 : -1;
+		}
+
+		// Seal the batch
+		long throughID = exporter.getLastEventID();
+		File sealed = new File(directory, Batch.getName(afterID, throughID, checksum.getValue(), format, encoding));
+		if (!temp.renameTo(sealed))
+		{
+			Log.e(TAG, "Unable to seal batch: "+sealed.getName());
+			temp.delete();
+			return -1;
+		}
+		watermark = throughID;
+		return (int) exporter.getEventCount();
+	}
+
+	/**
+	 * This method gets a device ID.
+	 *
+	 * @return	The device ID.
+	 */
+	private String getDeviceID()
+	{
+		TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+		return tm.getDeviceId();
+	}
+}
@@ -66,14 +66,15 @@ public class SMSIncomingWatcher extends BroadcastReceiver
 			String displayName = ContactFinder.findContact(context, sender);
 			
 			// Insert new incoming SMS message into DroidWatch
-			Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+			Uri smsUri = DroidWatchProvider.Sms.CONTENT_URI;
 			ContentValues values = new ContentValues();
 			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "SMS Received");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
 			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, body);
-			values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "SenderAddress:"+sender+"; SenderContact:"+displayName);
-			context.getContentResolver().insert(eventsUri, values);
+			values.put(DroidWatchDatabase.SMS_ADDRESS_COLUMN, sender);
+			values.put(DroidWatchDatabase.SMS_CONTACT_COLUMN, displayName);
+			EventSink.getInstance(context).post(smsUri, values);
     		
 			//Log.i(TAG, "Address: "+sender +" Contact: "+displayName+" Body: "+body +" Time: "+date.toString());
         }
@@ -21,8 +21,9 @@ package com.droidwatch;
  * limitations under the License.
  */
 
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -36,6 +37,9 @@ public class SMSOutgoingWatcher extends ContentObserver
 {
 	// Initialize constants and variables
 	public static final String TAG = "OutgoingSMSWatcher";
+	private static final int MESSAGE_TYPE_SENT = 2;
+	private static final int MESSAGE_TYPE_OUTBOX = 4;
+	private static final int MESSAGE_TYPE_QUEUED = 6;
 	private Context context;
 	
 	/**
@@ -48,6 +52,9 @@ public class SMSOutgoingWatcher extends ContentObserver
     {
         super( handler );
         this.context = context;
+        
+        // Checkpoint the watched content provider before its first change notification
+        WatermarkManager.getWatermark(context, Uri.parse("content://sms"));
     }
 
     /**
@@ -63,19 +70,27 @@ public class SMSOutgoingWatcher extends ContentObserver
     }
     
     /**
-     * This method attempts to find newly logged outgoing SMS messages.
+     * This method logs the outgoing SMS messages added since the last seen message.
      */
     private void querySMSLog()
     {	
     	// Initialize SMS content provider URI (undocumented)
     	Uri uriSMS = Uri.parse("content://sms");
     	
-    	// Query for SMS id, body, address, date, and type
+    	// Get the last seen message
+    	long watermark = WatermarkManager.getWatermark(context, uriSMS);
+    	long watermarkDate = WatermarkManager.getWatermarkDate(context, uriSMS);
+    	if (watermark < 0 || watermarkDate < 0)
+    		return;
+    	
+    	// Query for new SMS id, body, address, date, and type (oldest first).  Message IDs are
+    	// reused, and a draft keeps its ID when it is sent, so newer dates are checked as well.
     	String[] smsProj = new String[]{"_id","body","address","date","type"};
     	Cursor smsCursor = null;
     	try
     	{
-    		smsCursor = context.getContentResolver().query(uriSMS, smsProj, null, null, null);
+    		smsCursor = context.getContentResolver().query(uriSMS, smsProj, "_id > ? OR date > ?",
+    				new String[]{String.valueOf(watermark), String.valueOf(watermarkDate)}, "_id ASC");
     	}
     	catch(Exception e)
     	{
@@ -90,9 +105,14 @@ public class SMSOutgoingWatcher extends ContentObserver
     		return;
     	}
     	
-    	if (smsCursor.moveToFirst() && smsCursor.getCount() > 0)
+    	Uri smsUri = DroidWatchProvider.Sms.CONTENT_URI;
+    	ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    	long lastID = watermark;
+    	long lastDate = watermarkDate;
+    	while (smsCursor.moveToNext())
 		{	
-    		int messageID 		= -1;
+    		long id 			= smsCursor.getLong(smsCursor.getColumnIndex("_id"));
+    		lastID 				= Math.max(lastID, id);
     		String body 		= null;
     		String address 		= null;
     		Date date 			= null;
@@ -101,7 +121,6 @@ public class SMSOutgoingWatcher extends ContentObserver
 			// Get SMS message
 			try
 			{
-				messageID		= smsCursor.getInt(smsCursor.getColumnIndex("_id"));
 				body 			= smsCursor.getString(smsCursor.getColumnIndex("body"));
 				address 		= smsCursor.getString(smsCursor.getColumnIndex("address"));
 				date 			= new Date(smsCursor.getLong(smsCursor.getColumnIndex("date")));
@@ -110,60 +129,43 @@ public class SMSOutgoingWatcher extends ContentObserver
 			catch (Exception e) 
 			{
 				Log.e(TAG, "Unable to log SMS");
-				return;
+				continue;
 			}
 			
-			if (messageID == -1 || body == null || address == null || date == null || smsType == -1)
+			if (body == null || address == null || date == null || smsType == -1)
 			{
 				Log.e(TAG, "Unable to log SMS");
-				return;
+				continue;
 			}
+			lastDate = Math.max(lastDate, date.getTime());
+			
+			// Only outgoing messages are logged (incoming messages are logged by SMSIncomingWatcher)
+			if (smsType != MESSAGE_TYPE_SENT && smsType != MESSAGE_TYPE_OUTBOX && smsType != MESSAGE_TYPE_QUEUED)
+				continue;
 			
 			// Get contact name
 			String displayName = ContactFinder.findContact(context, address);
 			
-			// Log any newly logged outgoing SMS messages
-			Calendar cal = Calendar.getInstance();
-			cal.add(Calendar.SECOND, -5);
-			long fiveSecondsAgo = cal.getTimeInMillis();
-			if (date.getTime() > fiveSecondsAgo && smsType == 4)
-			{
-				// Check the DroidWatch content provider to make sure event is not a duplicate
-				Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
-				String[] projection = new String[]{DroidWatchDatabase.DETECTOR_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN};
-				String selection = DroidWatchDatabase.DETECTOR_COLUMN+" = ? AND "+DroidWatchDatabase.ADDITIONAL_INFO_COLUMN+" LIKE ?";
-				String[] selectionArgs = new String[]{TAG, "%MSG_ID:"+messageID+";%"};
-				Cursor cursor = null;
-				try
-				{
-					cursor = context.getContentResolver().query(eventsUri, projection, selection, selectionArgs, null);
-				}
-				catch(Exception e)
-				{
-					Log.e(TAG, "Unable to query events table");
-					return;
-				}
-				
-				if (cursor == null)
-				{
-					Log.e(TAG, "Unable to query events table");
-					return;
-				}
-				
-				if (cursor.getCount() == 0)
-				{
-					// Insert new event into DroidWatch
-					ContentValues values = new ContentValues();
-					values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
-					values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "SMS Sent");
-					values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
-					values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, body);
-					values.put(DroidWatchDatabase.ADDITIONAL_INFO_COLUMN, "MSG_ID:"+messageID+"; ReceiverAddress:"+address+"; ReceiverContact:"+displayName+";");
-					context.getContentResolver().insert(eventsUri, values);
-					
-					//Log.i(TAG, "SMS Type: "+smsType+" DisplayName: "+displayName+" Number: "+address+ " Date: "+date.toString()+" Body: "+body+" ID: "+messageID);
-				}	
-			}
-    	}       
+			// Insert new event into DroidWatch (ignored if already logged)
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
+			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "SMS Sent");
+			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date.getTime());
+			values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, body);
+			values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(TAG, id, date.getTime()));
+			values.put(DroidWatchDatabase.SMS_MESSAGE_ID_COLUMN, id);
+			values.put(DroidWatchDatabase.SMS_ADDRESS_COLUMN, address);
+			values.put(DroidWatchDatabase.SMS_CONTACT_COLUMN, displayName);
+			operations.add(ContentProviderOperation.newInsert(smsUri).withValues(values).build());
+			
+			//Log.i(TAG, "SMS Type: "+smsType+" DisplayName: "+displayName+" Number: "+address+ " Date: "+date.toString()+" Body: "+body+" ID: "+id);
+    	}
+    	smsCursor.close();
+    	
+    	// Log the new messages and advance the watermark together
+    	if (lastID == watermark && lastDate == watermarkDate)
+    		return;
+    	operations.add(WatermarkManager.advanceWatermark(uriSMS, lastID, lastDate));
+    	WatermarkManager.applyBatch(context, operations);
     }
-}
+}
\ No newline at end of file
@@ -55,7 +55,7 @@ public class ScreenWatcher extends BroadcastReceiver
 			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Screen Off");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
-			context.getContentResolver().insert(eventsUri, values);
+			EventSink.getInstance(context).post(eventsUri, values);
 			
 			//Log.i(TAG, "Screen Off");
 		}
@@ -66,7 +66,7 @@ public class ScreenWatcher extends BroadcastReceiver
 			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Screen Locked");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
-			context.getContentResolver().insert(eventsUri, values);
+			EventSink.getInstance(context).post(eventsUri, values);
 		
 			//Log.i(TAG, "Screen Locked");
 		}
@@ -77,7 +77,7 @@ public class ScreenWatcher extends BroadcastReceiver
 			values.put(DroidWatchDatabase.DETECTOR_COLUMN, TAG);
 			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Screen Unlocked");
 			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, System.currentTimeMillis());
-			context.getContentResolver().insert(eventsUri, values);
+			EventSink.getInstance(context).post(eventsUri, values);
 			
 			//Log.i(TAG, "Screen Unlocked");
 		}
@@ -0,0 +1,298 @@
+package com.droidwatch;
+
+/**
+ * SectionExporter.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONObject;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * This class streams the tables that the event formats do not carry (contacts, calendar, hourly
+ * counts and eviction summaries) as NDJSON: a header line, one JSON object per row tagged with
+ * its section, and a trailer line with the row count, the last eviction summary written and the
+ * new watermark of each section.  They are uploaded after the events of a transfer, as the
+ * database snapshot carries them.
+ * 
+ * Each section is exported incrementally: only the rows past its watermark (the last row ID
+ * uploaded, kept in the watermarks table) are written.  Contacts, calendar entries and eviction
+ * summaries are only ever added, so they are sent once.  An hourly count is sent again whenever
+ * an event is counted in it (it records the ID of the last event counted), and replaces the
+ * count of the same detector, action and hour (or process and hour) already uploaded.
+ **/
+public class SectionExporter
+{
+	// Initialize constants and variables
+	public static final String TAG = "SectionExporter";
+	public static final String FILENAME = "sections.ndjson";
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 8192;
+
+	/** This class describes one exported table. **/
+	private static final class Section
+	{
+		private final String name;
+		private final Uri uri;
+		private final Uri source;
+		private final String watermarkColumn;
+		private final String[] columns;
+		private final List<String> numericColumns;
+
+		/**
+		 * Constructor used to describe a table.
+		 *
+		 * @param name				The section name.
+		 * @param uri				The content provider URI of the table.
+		 * @param watermarkColumn	The increasing ID column compared with the watermark.
+		 * @param columns			The exported columns.
+		 * @param numericColumns	The columns written as JSON numbers (the others are strings).
+		 */
+		private Section(String name, Uri uri, String watermarkColumn, String[] columns, String[] numericColumns)
+		{
+			this.name = name;
+			this.uri = uri;
+			this.source = Uri.parse("section://"+name);
+			this.watermarkColumn = watermarkColumn;
+			this.columns = columns;
+			this.numericColumns = Arrays.asList(numericColumns);
+		}
+	}
+
+	private static final Section CONTACTS = new Section("contacts", DroidWatchProvider.Contacts.CONTENT_URI, DroidWatchProvider.Contacts._ID,
+			new String[]{DroidWatchProvider.Contacts.ID, DroidWatchProvider.Contacts.NAME, DroidWatchProvider.Contacts.NUMBER,
+					DroidWatchProvider.Contacts.ADDED},
+			new String[]{DroidWatchProvider.Contacts.ID, DroidWatchProvider.Contacts.ADDED});
+	private static final Section CALENDAR = new Section("calendar", DroidWatchProvider.Calendar.CONTENT_URI, DroidWatchProvider.Calendar._ID,
+			new String[]{DroidWatchProvider.Calendar.ID, DroidWatchProvider.Calendar.NAME, DroidWatchProvider.Calendar.EVENT_DATE,
+					DroidWatchProvider.Calendar.DATE_ADDED},
+			new String[]{DroidWatchProvider.Calendar.ID, DroidWatchProvider.Calendar.EVENT_DATE, DroidWatchProvider.Calendar.DATE_ADDED});
+	private static final Section ROLLUPS = new Section("rollups", DroidWatchProvider.Rollups.CONTENT_URI, DroidWatchProvider.Rollups.LAST_EVENT_ID,
+			new String[]{DroidWatchProvider.Rollups.DETECTOR, DroidWatchProvider.Rollups.ACTION, DroidWatchProvider.Rollups.HOUR,
+					DroidWatchProvider.Rollups.EVENT_COUNT, DroidWatchProvider.Rollups.FIRST_EVENT_DATE, DroidWatchProvider.Rollups.LAST_EVENT_DATE},
+			new String[]{DroidWatchProvider.Rollups.HOUR, DroidWatchProvider.Rollups.EVENT_COUNT, DroidWatchProvider.Rollups.FIRST_EVENT_DATE,
+					DroidWatchProvider.Rollups.LAST_EVENT_DATE});
+	private static final Section LOGCAT_ROLLUPS = new Section("logcat_rollups", DroidWatchProvider.LogcatRollups.CONTENT_URI,
+			DroidWatchProvider.LogcatRollups.LAST_LINE_ID,
+			new String[]{DroidWatchProvider.LogcatRollups.PROCESS, DroidWatchProvider.LogcatRollups.HOUR, DroidWatchProvider.LogcatRollups.LINE_COUNT,
+					DroidWatchProvider.LogcatRollups.FIRST_LINE_DATE, DroidWatchProvider.LogcatRollups.LAST_LINE_DATE},
+			new String[]{DroidWatchProvider.LogcatRollups.HOUR, DroidWatchProvider.LogcatRollups.LINE_COUNT,
+					DroidWatchProvider.LogcatRollups.FIRST_LINE_DATE, DroidWatchProvider.LogcatRollups.LAST_LINE_DATE});
+	private static final Section EVICTIONS = new Section("evictions", DroidWatchProvider.Evictions.CONTENT_URI, DroidWatchProvider.Evictions._ID,
+			new String[]{DroidWatchProvider.Evictions._ID, DroidWatchProvider.Evictions.EVICTED, DroidWatchProvider.Evictions.DETECTOR,
+					DroidWatchProvider.Evictions.EVENT_COUNT, DroidWatchProvider.Evictions.FIRST_EVENT_DATE, DroidWatchProvider.Evictions.LAST_EVENT_DATE},
+			new String[]{DroidWatchProvider.Evictions._ID, DroidWatchProvider.Evictions.EVICTED, DroidWatchProvider.Evictions.EVENT_COUNT,
+					DroidWatchProvider.Evictions.FIRST_EVENT_DATE, DroidWatchProvider.Evictions.LAST_EVENT_DATE});
+	private static final Section[] SECTIONS = {CONTACTS, CALENDAR, ROLLUPS, LOGCAT_ROLLUPS, EVICTIONS};
+
+	private final Context context;
+	private long rowCount = 0;
+	private long lastEvictionID = 0;
+	private final ArrayList<ContentProviderOperation> watermarks = new ArrayList<ContentProviderOperation>();
+
+	/**
+	 * Constructor used to set the context.
+	 *
+	 * @param context	The application context.
+	 */
+	public SectionExporter(Context context)
+	{
+		this.context = context;
+	}
+
+	/**
+	 * This method writes the rows of every section past its watermark to an output stream.  The
+	 * rows written are the ones stored before the export started, and the watermarks that cover
+	 * them are only advanced once the upload succeeds (see getWatermarks).  The stream is flushed
+	 * but not closed.
+	 *
+	 * @param output		The output stream.
+	 * @param transferID	The transfer ID (written in the header).
+	 * @param deviceID		The device ID (written in the header).
+	 * @return				True if every section was written, false otherwise.
+	 * @throws IOException
+	 */
+	public boolean export(OutputStream output, long transferID, String deviceID) throws IOException
+	{
+		rowCount = 0;
+		lastEvictionID = 0;
+		watermarks.clear();
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, CHARSET), BUFFER_SIZE);
+		writer.write("{\"transfer_id\":"+transferID+",\"device_id\":"+JSONObject.quote(deviceID)+"}\n");
+		StringBuilder trailer = new StringBuilder();
+		for (Section section : SECTIONS)
+		{
+			long lastID = exportSection(writer, section);
+			if (lastID < 0)
+				return false;
+			if (section == EVICTIONS)
+				lastEvictionID = lastID;
+			trailer.append(trailer.length() == 0 ? "" : ",").append(JSONObject.quote(section.name)).append(':').append(lastID);
+		}
+		writer.write("{\"row_count\":"+rowCount+",\"last_eviction_id\":"+lastEvictionID+",\"watermarks\":{"+trailer+"}}\n");
+		writer.flush();
+		return true;
+	}
+
+	/**
+	 * This method writes the rows of one section stored since its watermark, and queues the
+	 * operation that advances it.
+	 *
+	 * @param writer		The NDJSON writer.
+	 * @param section		The section.
+	 * @return				The new watermark of the section, or -1 on failure.
+	 * @throws IOException
+	 */
+	private long exportSection(Writer writer, Section section) throws IOException
+	{
+		long afterID = WatermarkManager.getRecordedWatermark(context, section.source);
+		long lastID = queryLastID(section);
+		if (afterID < 0 || lastID < 0)
+			return -1;
+		if (lastID <= afterID)
+			return afterID;
+
+		String selection = section.watermarkColumn+" > ? AND "+section.watermarkColumn+" <= ?";
+		String[] selectionArgs = new String[]{String.valueOf(afterID), String.valueOf(lastID)};
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(section.uri, section.columns, selection, selectionArgs, null);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Unable to query "+section.name+" table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(TAG, "Unable to query "+section.name+" table");
+			return -1;
+		}
+
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				writer.write("{\"section\":\"");
+				writer.write(section.name);
+				writer.write('"');
+				for (int i = 0; i < section.columns.length; i++)
+				{
+					writer.write(",\"");
+					writer.write(section.columns[i]);
+					writer.write("\":");
+					if (cursor.isNull(i))
+						writer.write("null");
+					else if (section.numericColumns.contains(section.columns[i]))
+						writer.write(String.valueOf(cursor.getLong(i)));
+					else
+						writer.write(JSONObject.quote(cursor.getString(i)));
+				}
+				writer.write("}\n");
+				rowCount++;
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+		watermarks.add(WatermarkManager.advanceWatermark(section.source, lastID, System.currentTimeMillis()));
+		return lastID;
+	}
+
+	/**
+	 * This method queries the newest ID of a section (compared with its watermark).
+	 *
+	 * @param section	The section.
+	 * @return			The newest ID (0 if none), or -1 on failure.
+	 */
+	private long queryLastID(Section section)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(section.uri, new String[]{"IFNULL(MAX("+section.watermarkColumn+"),0)"}, null, null, null);
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Unable to query "+section.name+" table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(TAG, "Unable to query "+section.name+" table");
+			return -1;
+		}
+
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method returns the number of rows written by the last export.
+	 *
+	 * @return	The row count.
+	 */
+	public long getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * This method returns the ID of the last eviction summary covered by the last export (written
+	 * by it or by an earlier one).
+	 *
+	 * @return	The eviction summary ID (0 if none).
+	 */
+	public long getLastEvictionID()
+	{
+		return lastEvictionID;
+	}
+
+	/**
+	 * This method returns the operations that advance the watermarks of the sections written by
+	 * the last export.  They are applied once the server has acknowledged the upload.
+	 *
+	 * @return	The watermark operations.
+	 */
+	public ArrayList<ContentProviderOperation> getWatermarks()
+	{
+		return watermarks;
+	}
+}
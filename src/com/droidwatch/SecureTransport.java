@@ -0,0 +1,302 @@
+package com.droidwatch;
+
+/**
+ * SecureTransport.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * This class holds the process-wide TLS context trusting the central server certificate.  The
+ * context is built once, and its client session cache lets later connections to the same server
+ * resume their session instead of performing a full handshake.  Handshakes are counted and timed.
+ **/
+public class SecureTransport
+{
+	// Initialize constants and variables
+	public static final String TAG = "SecureTransport";
+	private static final int SESSION_CACHE_SIZE = 16;
+	private static final int SESSION_TIMEOUT = 60 * 60 * 24;
+	private static SecureTransport instance = null;
+
+	private final String certFileName;
+	private final SSLSocketFactory socketFactory;
+	private final AtomicInteger handshakeCount = new AtomicInteger();
+	private final AtomicInteger resumedCount = new AtomicInteger();
+	private final AtomicLong handshakeTime = new AtomicLong();
+
+	/**
+	 * Constructor used to set the certificate and TLS context.
+	 *
+	 * @param certFileName	The filename of the SSL certificate included in the assets.
+	 * @param sslContext	The TLS context.
+	 */
+	private SecureTransport(String certFileName, SSLContext sslContext)
+	{
+		this.certFileName = certFileName;
+		this.socketFactory = new TrackingSocketFactory(sslContext.getSocketFactory());
+	}
+
+	/**
+	 * This method returns the process-wide transport, building its TLS context on first use
+	 * (or when the certificate changes).
+	 *
+	 * @param context		The application context.
+	 * @param certFileName	The filename of the SSL certificate included in the assets.
+	 * @return				The transport, or null if the TLS context cannot be built.
+	 */
+	public static synchronized SecureTransport getInstance(Context context, String certFileName)
+	{
+		if (instance == null || !instance.certFileName.equals(certFileName))
+		{
+			SSLContext sslContext = createContext(context, certFileName);
+			if (sslContext == null)
+				return null;
+			instance = new SecureTransport(certFileName, sslContext);
+		}
+		return instance;
+	}
+
+	/**
+	 * This method builds a TLS context trusting the self-signed certificate of the central server,
+	 * with a client session cache.
+	 *
+	 * @param context		The application context.
+	 * @param certFileName	The filename of the SSL certificate included in the assets.
+	 * @return				The TLS context, or null on failure.
+	 */
+	private static SSLContext createContext(Context context, String certFileName)
+	{
+		// Retrieve self-signed certificate
+		Certificate ca = null;
+		InputStream caInput = null;
+		try
+		{
+			caInput = new BufferedInputStream(context.getAssets().open(certFileName));
+			ca = CertificateFactory.getInstance("X.509").generateCertificate(caInput);
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "IOError: "+e.getMessage());
+			return null;
+		}
+		catch (GeneralSecurityException e)
+		{
+			Log.e(TAG, "Certificate Error: "+e.getMessage());
+			return null;
+		}
+		finally
+		{
+			if (caInput != null)
+			{
+				try
+				{
+					caInput.close();
+				}
+				catch (IOException e)
+				{
+					Log.e(TAG, "IOError: "+e.getMessage());
+				}
+			}
+		}
+
+		// Create a KeyStore containing the trusted certificate
+		SSLContext sslContext = null;
+		try
+		{
+			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			keyStore.load(null, null);
+			keyStore.setCertificateEntry("ca", ca);
+
+			TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
+			tmf.init(keyStore);
+			sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, tmf.getTrustManagers(), null);
+		}
+		catch (GeneralSecurityException e)
+		{
+			Log.e(TAG, "TLS Error: "+e.getMessage());
+			return null;
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "IOException Error: "+e.getMessage());
+			return null;
+		}
+
+		// Keep sessions so later connections to the server resume them
+		SSLSessionContext sessions = sslContext.getClientSessionContext();
+		if (sessions != null)
+		{
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT);
+		}
+		return sslContext;
+	}
+
+	/**
+	 * This method returns the socket factory shared by every connection to the central server.
+	 *
+	 * @return	The socket factory.
+	 */
+	public SSLSocketFactory getSocketFactory()
+	{
+		return socketFactory;
+	}
+
+	/**
+	 * This method returns the number of handshakes completed so far.
+	 *
+	 * @return	The handshake count.
+	 */
+	public int getHandshakeCount()
+	{
+		return handshakeCount.get();
+	}
+
+	/**
+	 * This method returns the number of handshakes that resumed a cached session.
+	 *
+	 * @return	The resumed handshake count.
+	 */
+	public int getResumedCount()
+	{
+		return resumedCount.get();
+	}
+
+	/**
+	 * This method returns the time spent in handshakes so far.
+	 *
+	 * @return	The handshake time (milliseconds).
+	 */
+	public long getHandshakeTime()
+	{
+		return handshakeTime.get();
+	}
+
+	/** This class creates TLS sockets that report their handshake to the transport. **/
+	private final class TrackingSocketFactory extends SSLSocketFactory
+	{
+		private final SSLSocketFactory factory;
+
+		/**
+		 * Constructor used to set the wrapped factory.
+		 *
+		 * @param factory	The socket factory of the TLS context.
+		 */
+		private TrackingSocketFactory(SSLSocketFactory factory)
+		{
+			this.factory = factory;
+		}
+
+		/**
+		 * This method times the handshake of a new socket, from its creation until the handshake
+		 * completes.  A session created before the socket was resumed from the cache.
+		 *
+		 * @param socket	The new socket.
+		 * @return			The socket.
+		 */
+		private Socket track(Socket socket)
+		{
+			if (socket instanceof SSLSocket)
+			{
+				final long created = System.currentTimeMillis();
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener()
+				{
+					public void handshakeCompleted(HandshakeCompletedEvent event)
+					{
+						handshakeTime.addAndGet(System.currentTimeMillis() - created);
+						handshakeCount.incrementAndGet();
+						if (event.getSession().getCreationTime() < created)
+							resumedCount.incrementAndGet();
+					}
+				});
+			}
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+		{
+			return track(factory.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket() throws IOException
+		{
+			return track(factory.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException
+		{
+			return track(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+		{
+			return track(factory.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException
+		{
+			return track(factory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+		{
+			return track(factory.createSocket(address, port, localAddress, localPort));
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites()
+		{
+			return factory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites()
+		{
+			return factory.getSupportedCipherSuites();
+		}
+	}
+}
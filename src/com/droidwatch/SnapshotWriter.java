@@ -0,0 +1,322 @@
+package com.droidwatch;
+
+/**
+ * SnapshotWriter.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * This class copies the events sealed by a transfer (the partitions older than the one it started)
+ * and the bookkeeping tables into a separate snapshot database.  Sealed partitions no longer receive
+ * inserts, so they are copied in small steps, each in its own short transaction, and writers are
+ * never blocked for long.  Text stored compressed (see TextCompressor) is inflated as it is copied,
+ * so the snapshot only holds plain text.
+ **/
+public class SnapshotWriter
+{
+	// Initialize constants and variables
+	public static final String TAG = "SnapshotWriter";
+	private static final String SCHEMA = "snapshot";
+	private static final int STEP_ROWS = 500;
+	private static final long STEP_PAUSE = 20;
+	private static final String[] EVENT_TEXT_COLUMNS = {DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, DroidWatchDatabase.ADDITIONAL_INFO_COLUMN};
+	private static final String[] LOGCAT_TEXT_COLUMNS = {DroidWatchDatabase.LOGCAT_LINE_COLUMN};
+
+	private final SQLiteDatabase sqlDB;
+
+	/**
+	 * Constructor used to set the database.
+	 *
+	 * @param sqlDB		The DroidWatch database.
+	 */
+	public SnapshotWriter(SQLiteDatabase sqlDB)
+	{
+		this.sqlDB = sqlDB;
+	}
+
+	/**
+	 * This method writes the snapshot of a transfer.
+	 *
+	 * @param file				The snapshot file (replaced if it exists).
+	 * @param transferID		The transfer ID.
+	 * @param partitions		The sealed partition numbers, oldest first.
+	 * @param firstEventID		The first event ID of the partition started by the transfer.
+	 * @return					True if the snapshot was written, false otherwise.
+	 */
+	public boolean write(File file, long transferID, List<Long> partitions, long firstEventID)
+	{
+		if (file.exists() && !file.delete())
+		{
+			Log.e(TAG, "Unable to replace snapshot: "+file.getName());
+			return false;
+		}
+
+		try
+		{
+			sqlDB.execSQL("ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(file.getAbsolutePath()) + " AS " + SCHEMA);
+		}
+		catch (SQLException e)
+		{
+			Log.e(TAG, "Unable to create snapshot: "+e.getMessage());
+			return false;
+		}
+
+		boolean written = false;
+		try
+		{
+			long lastEvictionID = copyTables(partitions);
+			for (long partition : partitions)
+				copyRows(DroidWatchDatabase.getPartitionTable(partition), DroidWatchDatabase.EVENT_ID_COLUMN, null, EVENT_TEXT_COLUMNS);
+			for (String typedTable : DroidWatchDatabase.TYPED_EVENT_TABLES)
+				copyRows(typedTable, DroidWatchDatabase.TYPED_EVENT_ID_COLUMN, DroidWatchDatabase.TYPED_EVENT_ID_COLUMN + " < " + firstEventID,
+						typedTable.equals(DroidWatchDatabase.LOGCAT_TABLE) ? LOGCAT_TEXT_COLUMNS : null);
+			copyViews(partitions);
+
+			// The eviction summaries included in the snapshot are deleted by the wipe
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.TRANSFERS_SNAPSHOT_EVICTION_COLUMN, lastEvictionID);
+			sqlDB.update(DroidWatchDatabase.TRANSFERS_TABLE, values, DroidWatchDatabase.TRANSFER_ID_COLUMN + " = " + transferID, null);
+			written = true;
+		}
+		catch (SQLException e)
+		{
+			Log.e(TAG, "Unable to write snapshot: "+e.getMessage());
+		}
+		catch (InterruptedException e)
+		{
+			Log.w(TAG, "Snapshot interrupted");
+		}
+		finally
+		{
+			sqlDB.execSQL("DETACH DATABASE " + SCHEMA);
+		}
+
+		if (!written)
+			file.delete();
+		return written;
+	}
+
+	/**
+	 * This method creates the snapshot tables and copies the bookkeeping tables (everything but
+	 * the events) within a single transaction.
+	 *
+	 * @param partitions	The sealed partition numbers.
+	 * @return				The ID of the last eviction summary copied (0 if none).
+	 */
+	private long copyTables(List<Long> partitions)
+	{
+		long lastEvictionID;
+		sqlDB.beginTransaction();
+		try
+		{
+			ArrayList<String[]> tables = getSchema("table");
+			for (String[] table : tables)
+			{
+				String name = table[0];
+				boolean partition = name.startsWith(DroidWatchDatabase.EVENT_LOG_TABLE + "_");
+				if (partition && !partitions.contains(Long.parseLong(name.substring(DroidWatchDatabase.EVENT_LOG_TABLE.length() + 1))))
+					continue;
+				sqlDB.execSQL(qualify(table[1], "CREATE TABLE ", name));
+			}
+
+			lastEvictionID = DatabaseUtils.longForQuery(sqlDB, "SELECT IFNULL(MAX(" + DroidWatchDatabase.EVICTION_ID_COLUMN + "),0) FROM " +
+					DroidWatchDatabase.EVICTIONS_TABLE, null);
+			for (String[] table : tables)
+			{
+				String name = table[0];
+				if (name.startsWith(DroidWatchDatabase.EVENT_LOG_TABLE + "_") || isTypedTable(name))
+					continue;
+				String where = "";
+				if (name.equals(DroidWatchDatabase.EVICTIONS_TABLE))
+					where = " WHERE " + DroidWatchDatabase.EVICTION_ID_COLUMN + " <= " + lastEvictionID;
+				else if (name.equals(DroidWatchDatabase.PARTITIONS_TABLE))
+					where = " WHERE " + DroidWatchDatabase.PARTITION_ID_COLUMN + " IN (" + TextUtils.join(",", partitions) + ")";
+				sqlDB.execSQL("INSERT INTO " + SCHEMA + "." + name + " SELECT * FROM main." + name + where);
+			}
+			sqlDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+		}
+		return lastEvictionID;
+	}
+
+	/**
+	 * This method copies the rows of a table in key order, one small transaction per step.
+	 *
+	 * @param table			The table to copy.
+	 * @param keyColumn		The integer key column.
+	 * @param where			The rows to copy (null for all).
+	 * @param textColumns	The text columns that may be stored compressed (null for none).
+	 * @throws InterruptedException
+	 */
+	private void copyRows(String table, String keyColumn, String where, String[] textColumns) throws InterruptedException
+	{
+		String lastKeyQuery = "SELECT IFNULL(MAX(" + keyColumn + "),0) FROM " + SCHEMA + "." + table;
+		long lastKey = 0;
+		while (true)
+		{
+			long copiedKey;
+			sqlDB.beginTransaction();
+			try
+			{
+				sqlDB.execSQL("INSERT INTO " + SCHEMA + "." + table + " SELECT * FROM main." + table +
+						" WHERE " + keyColumn + " > " + lastKey + (where == null ? "" : " AND " + where) +
+						" ORDER BY " + keyColumn + " LIMIT " + STEP_ROWS);
+				copiedKey = DatabaseUtils.longForQuery(sqlDB, lastKeyQuery, null);
+				if (textColumns != null)
+				{
+					for (String column : textColumns)
+						inflateRows(table, keyColumn, column, lastKey, copiedKey);
+				}
+				sqlDB.setTransactionSuccessful();
+			}
+			finally
+			{
+				sqlDB.endTransaction();
+			}
+			if (copiedKey == lastKey)
+				return;
+			lastKey = copiedKey;
+
+			// Let queued inserts through between steps
+			Thread.sleep(STEP_PAUSE);
+		}
+	}
+
+	/**
+	 * This method replaces the compressed values of a text column with their text, for the rows
+	 * of one copy step.  A value that cannot be inflated is left as it is (and logged).
+	 *
+	 * @param table			The snapshot table.
+	 * @param keyColumn		The integer key column.
+	 * @param column		The text column.
+	 * @param afterKey		The last key of the previous step.
+	 * @param lastKey		The last key copied by this step.
+	 */
+	private void inflateRows(String table, String keyColumn, String column, long afterKey, long lastKey)
+	{
+		Cursor cursor = sqlDB.rawQuery("SELECT " + keyColumn + ", " + column + " FROM " + SCHEMA + "." + table +
+				" WHERE " + keyColumn + " > " + afterKey + " AND " + keyColumn + " <= " + lastKey + " AND typeof(" + column + ") = 'blob'", null);
+		SQLiteStatement update = null;
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				byte[] stored = cursor.getBlob(1);
+				if (!TextCompressor.isCompressed(stored))
+					continue;
+				String text = TextCompressor.inflate(stored);
+				if (text == null)
+				{
+					Log.w(TAG, "Unable to inflate "+table+"."+column+" of row "+cursor.getLong(0));
+					continue;
+				}
+				if (update == null)
+					update = sqlDB.compileStatement("UPDATE " + SCHEMA + "." + table + " SET " + column + " = ? WHERE " + keyColumn + " = ?");
+				update.bindString(1, text);
+				update.bindLong(2, cursor.getLong(0));
+				update.execute();
+			}
+		}
+		finally
+		{
+			cursor.close();
+			if (update != null)
+				update.close();
+		}
+	}
+
+	/**
+	 * This method creates the snapshot views (the events view only covers the sealed partitions).
+	 *
+	 * @param partitions	The sealed partition numbers, oldest first.
+	 */
+	private void copyViews(List<Long> partitions)
+	{
+		for (String[] view : getSchema("view"))
+		{
+			if (!view[0].equals(DroidWatchDatabase.EVENTS_TABLE))
+				sqlDB.execSQL(qualify(view[1], "CREATE VIEW ", view[0]));
+		}
+		if (!partitions.isEmpty())
+			sqlDB.execSQL("CREATE VIEW " + SCHEMA + "." + DroidWatchDatabase.EVENTS_TABLE + " AS " + DroidWatchDatabase.getEventsViewSelect(partitions));
+	}
+
+	/**
+	 * This method lists the tables or views of the DroidWatch database.
+	 *
+	 * @param type		The object type ("table" or "view").
+	 * @return			The name and SQL of each object.
+	 */
+	private ArrayList<String[]> getSchema(String type)
+	{
+		ArrayList<String[]> objects = new ArrayList<String[]>();
+		Cursor cursor = sqlDB.rawQuery("SELECT name, sql FROM main.sqlite_master WHERE type = ? " +
+				"AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", new String[]{type});
+		while (cursor.moveToNext())
+			objects.add(new String[]{cursor.getString(0), cursor.getString(1)});
+		cursor.close();
+		return objects;
+	}
+
+	/**
+	 * This method rewrites a CREATE statement of the DroidWatch database for the snapshot.
+	 *
+	 * @param sql		The CREATE statement.
+	 * @param prefix	The statement prefix ("CREATE TABLE " or "CREATE VIEW ").
+	 * @param name		The object name.
+	 * @return			The CREATE statement for the snapshot.
+	 */
+	private static String qualify(String sql, String prefix, String name)
+	{
+		if (!sql.startsWith(prefix + name))
+			throw new SQLException("Unexpected schema: " + sql);
+		return prefix + SCHEMA + "." + sql.substring(prefix.length());
+	}
+
+	/**
+	 * This method checks whether a table holds typed event details.
+	 *
+	 * @param name		The table name.
+	 * @return			True if a typed event table, false otherwise.
+	 */
+	private static boolean isTypedTable(String name)
+	{
+		for (String typedTable : DroidWatchDatabase.TYPED_EVENT_TABLES)
+		{
+			if (typedTable.equals(name))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,326 @@
+package com.droidwatch;
+
+/**
+ * StorageGovernor.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.util.Log;
+
+/** This class keeps the DroidWatch database within its storage budget by evicting low priority events. **/
+public class StorageGovernor implements Runnable
+{
+	// Initialize constants and variables
+	public static final String TAG = "StorageGovernor";
+	public static long MAX_BYTES = 0;
+	public static long MAX_ROWS = 0;
+	public static String[] EVICTION_ORDER = new String[0];
+	private static final int EVICTION_BATCH = 200;
+	private static final int CHECK_INTERVAL = 100;
+	private static final long STEP_PAUSE = 50;
+	private static final double LOW_WATER_MARK = 0.9;
+
+	private final SQLiteDatabase sqlDB;
+	private final List<Long> livePartitions;
+	private final StringDictionary stringDictionary;
+	private final AtomicLong eventCount = new AtomicLong();
+	private final AtomicInteger insertsSinceCheck = new AtomicInteger();
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+	/**
+	 * Constructor used to set the database, its live event partitions, and its interned strings.
+	 *
+	 * @param sqlDB				The DroidWatch database.
+	 * @param livePartitions	The live partition numbers, oldest first.
+	 * @param stringDictionary	The interned strings (detectors are stored as string IDs).
+	 */
+	public StorageGovernor(SQLiteDatabase sqlDB, List<Long> livePartitions, StringDictionary stringDictionary)
+	{
+		this.sqlDB = sqlDB;
+		this.livePartitions = livePartitions;
+		this.stringDictionary = stringDictionary;
+	}
+
+	/**
+	 * This method sets the storage budget.
+	 *
+	 * @param maxBytes		Maximum bytes used by the database (0 for no limit).
+	 * @param maxRows		Maximum number of stored events (0 for no limit).
+	 * @param evictionOrder	Comma-separated detectors, evicted first to last.
+	 */
+	public static void setStorageProperties(long maxBytes, long maxRows, String evictionOrder)
+	{
+		MAX_BYTES = maxBytes;
+		MAX_ROWS = maxRows;
+		EVICTION_ORDER = evictionOrder.trim().length() == 0 ? new String[0] : evictionOrder.trim().split("\\s*,\\s*");
+	}
+
+	/**
+	 * This method counts the stored events.
+	 */
+	public void load()
+	{
+		long count = 0;
+		for (long partition : livePartitions)
+			count += DatabaseUtils.queryNumEntries(sqlDB, DroidWatchDatabase.getPartitionTable(partition));
+		eventCount.set(count);
+	}
+
+	/**
+	 * This method accounts for inserted events and starts an eviction run if the budget is exceeded.
+	 *
+	 * @param count		The number of events inserted.
+	 */
+	public void onEventsInserted(int count)
+	{
+		long rows = eventCount.addAndGet(count);
+		if (MAX_ROWS > 0 && rows > MAX_ROWS)
+		{
+			startEviction();
+			return;
+		}
+
+		// The file size is only checked periodically
+		if (MAX_BYTES > 0 && insertsSinceCheck.addAndGet(count) >= CHECK_INTERVAL)
+		{
+			insertsSinceCheck.set(0);
+			if (getUsedBytes() > MAX_BYTES)
+				startEviction();
+		}
+	}
+
+	/**
+	 * This method accounts for deleted events.
+	 *
+	 * @param count		The number of events deleted.
+	 */
+	public void onEventsDeleted(int count)
+	{
+		eventCount.addAndGet(-count);
+	}
+
+	/**
+	 * This method starts an eviction run unless one is already running.
+	 */
+	private void startEviction()
+	{
+		if (evicting.compareAndSet(false, true))
+			new Thread(this, TAG).start();
+	}
+
+	/**
+	 * This method returns the number of bytes used by the database (free pages excluded).
+	 *
+	 * @return	The used bytes.
+	 */
+	private long getUsedBytes()
+	{
+		long pageCount = DatabaseUtils.longForQuery(sqlDB, "PRAGMA page_count", null);
+		long freePages = DatabaseUtils.longForQuery(sqlDB, "PRAGMA freelist_count", null);
+		long pageSize = DatabaseUtils.longForQuery(sqlDB, "PRAGMA page_size", null);
+		return (pageCount - freePages) * pageSize;
+	}
+
+	/**
+	 * This method checks whether the database is above a fraction of its budget.
+	 *
+	 * @param fraction	The fraction of the budget.
+	 * @return			True if above the budget, false otherwise.
+	 */
+	private boolean isOverBudget(double fraction)
+	{
+		if (MAX_ROWS > 0 && eventCount.get() > MAX_ROWS * fraction)
+			return true;
+		if (MAX_BYTES > 0 && getUsedBytes() > MAX_BYTES * fraction)
+			return true;
+		return false;
+	}
+
+	/**
+	 * This method runs an eviction, one small transaction at a time, until the database is
+	 * back below the low water mark of its budget.
+	 */
+	@Override
+	public void run()
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		HashMap<String,Long> summaries = new HashMap<String,Long>();
+		try
+		{
+			while (isOverBudget(LOW_WATER_MARK))
+			{
+				long detectorID = getNextDetector();
+				if (detectorID < 0 || evictEvents(detectorID, summaries) <= 0)
+					break;
+
+				// Let queued inserts through between steps
+				Thread.sleep(STEP_PAUSE);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Log.w(TAG, "Eviction interrupted");
+		}
+		catch (SQLException e)
+		{
+			Log.e(TAG, "Unable to evict events: "+e.getMessage());
+		}
+		finally
+		{
+			evicting.set(false);
+		}
+
+		if (!summaries.isEmpty())
+			Log.w(TAG, "Evicted events from "+summaries.size()+" detector(s) to stay within the storage budget");
+	}
+
+	/**
+	 * This method selects the detector to evict next: the first configured detector that still has
+	 * events, otherwise the detector of the oldest event.
+	 *
+	 * @return	The detector's string ID, or -1 if no events are left.
+	 */
+	private long getNextDetector()
+	{
+		for (String detector : EVICTION_ORDER)
+		{
+			long detectorID = stringDictionary.lookup(detector);
+			if (detectorID < 0)
+				continue;
+			for (long partition : livePartitions)
+			{
+				if (DatabaseUtils.longForQuery(sqlDB, "SELECT COUNT(*) FROM (SELECT 1 FROM " + DroidWatchDatabase.getPartitionTable(partition) +
+						" WHERE " + DroidWatchDatabase.DETECTOR_ID_COLUMN + " = " + detectorID + " LIMIT 1)", null) > 0)
+					return detectorID;
+			}
+		}
+
+		for (long partition : livePartitions)
+		{
+			Cursor cursor = sqlDB.query(DroidWatchDatabase.getPartitionTable(partition), new String[]{DroidWatchDatabase.DETECTOR_ID_COLUMN},
+					DroidWatchDatabase.DETECTOR_ID_COLUMN + " IS NOT NULL", null, null, null, DroidWatchDatabase.EVENT_ID_COLUMN + " ASC", "1");
+			try
+			{
+				if (cursor.moveToFirst())
+					return cursor.getLong(0);
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * This method evicts the oldest events of a detector (at most one batch) within a single transaction.
+	 *
+	 * @param detectorID	The string ID of the detector to evict.
+	 * @param summaries		The summary row of each detector evicted during this run.
+	 * @return				The number of events evicted.
+	 */
+	private int evictEvents(long detectorID, HashMap<String,Long> summaries)
+	{
+		int evictCount = 0;
+		String detector = stringDictionary.decode(detectorID);
+		sqlDB.beginTransaction();
+		try
+		{
+			for (long partition : livePartitions)
+			{
+				int limit = EVICTION_BATCH - evictCount;
+				if (limit <= 0)
+					break;
+
+				String partitionTable = DroidWatchDatabase.getPartitionTable(partition);
+				String evictedIds = DroidWatchDatabase.EVENT_ID_COLUMN + " IN (SELECT " + DroidWatchDatabase.EVENT_ID_COLUMN + " FROM " + partitionTable +
+						" WHERE " + DroidWatchDatabase.DETECTOR_ID_COLUMN + " = " + detectorID + " ORDER BY " + DroidWatchDatabase.EVENT_ID_COLUMN + " LIMIT " + limit + ")";
+
+				// Summarize the events before they are deleted
+				Cursor cursor = sqlDB.rawQuery("SELECT COUNT(*), MIN(" + DroidWatchDatabase.EVENT_DATE_COLUMN + "), MAX(" + DroidWatchDatabase.EVENT_DATE_COLUMN + ") " +
+						"FROM " + partitionTable + " WHERE " + evictedIds, null);
+				int count = 0;
+				Long firstDate = null;
+				Long lastDate = null;
+				if (cursor.moveToFirst())
+				{
+					count = cursor.getInt(0);
+					firstDate = cursor.isNull(1) ? null : cursor.getLong(1);
+					lastDate = cursor.isNull(2) ? null : cursor.getLong(2);
+				}
+				cursor.close();
+				if (count == 0)
+					continue;
+
+				sqlDB.delete(partitionTable, evictedIds, null);
+				recordEviction(detector, count, firstDate, lastDate, summaries);
+				evictCount += count;
+			}
+			sqlDB.setTransactionSuccessful();
+		}
+		finally
+		{
+			sqlDB.endTransaction();
+		}
+
+		eventCount.addAndGet(-evictCount);
+		return evictCount;
+	}
+
+	/**
+	 * This method records evicted events in the detector's summary row for this run.
+	 *
+	 * @param detector		The detector evicted.
+	 * @param count			The number of events evicted.
+	 * @param firstDate		The earliest event date evicted (or null).
+	 * @param lastDate		The latest event date evicted (or null).
+	 * @param summaries		The summary row of each detector evicted during this run.
+	 */
+	private void recordEviction(String detector, int count, Long firstDate, Long lastDate, HashMap<String,Long> summaries)
+	{
+		Long summaryID = summaries.get(detector);
+		if (summaryID == null)
+		{
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.EVICTION_DETECTOR_COLUMN, detector);
+			values.put(DroidWatchDatabase.EVICTION_COUNT_COLUMN, count);
+			values.put(DroidWatchDatabase.EVICTION_FIRST_DATE_COLUMN, firstDate);
+			values.put(DroidWatchDatabase.EVICTION_LAST_DATE_COLUMN, lastDate);
+			summaries.put(detector, sqlDB.insertOrThrow(DroidWatchDatabase.EVICTIONS_TABLE, null, values));
+			return;
+		}
+
+		sqlDB.execSQL("UPDATE " + DroidWatchDatabase.EVICTIONS_TABLE + " SET " +
+				DroidWatchDatabase.EVICTION_COUNT_COLUMN + " = " + DroidWatchDatabase.EVICTION_COUNT_COLUMN + " + " + count + ", " +
+				DroidWatchDatabase.EVICTION_FIRST_DATE_COLUMN + " = IFNULL(" + DroidWatchDatabase.EVICTION_FIRST_DATE_COLUMN + ", ?), " +
+				DroidWatchDatabase.EVICTION_LAST_DATE_COLUMN + " = IFNULL(?, " + DroidWatchDatabase.EVICTION_LAST_DATE_COLUMN + ") " +
+				"WHERE " + DroidWatchDatabase.EVICTION_ID_COLUMN + " = " + summaryID, new Object[]{firstDate, lastDate});
+	}
+}
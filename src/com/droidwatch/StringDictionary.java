@@ -0,0 +1,154 @@
+package com.droidwatch;
+
+/**
+ * StringDictionary.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/** This class caches the interned strings table in both directions (string to ID and ID to string). **/
+public class StringDictionary
+{
+	private final SQLiteDatabase sqlDB;
+	private final HashMap<String,Long> ids = new HashMap<String,Long>();
+	private final HashMap<Long,String> strings = new HashMap<Long,String>();
+
+	/**
+	 * Constructor used to set the database.
+	 *
+	 * @param sqlDB		The DroidWatch database.
+	 */
+	public StringDictionary(SQLiteDatabase sqlDB)
+	{
+		this.sqlDB = sqlDB;
+	}
+
+	/**
+	 * This method loads the interned strings into the cache.
+	 */
+	public synchronized void load()
+	{
+		clear();
+		Cursor cursor = sqlDB.query(DroidWatchDatabase.STRINGS_TABLE,
+				new String[]{DroidWatchDatabase.STRING_ID_COLUMN, DroidWatchDatabase.STRING_VALUE_COLUMN}, null, null, null, null, null);
+		while (cursor.moveToNext())
+			put(cursor.getLong(0), cursor.getString(1));
+		cursor.close();
+	}
+
+	/**
+	 * This method returns the ID of a string, interning it if needed.  The caller must hold a
+	 * transaction and call clear() if it is rolled back.
+	 *
+	 * @param value		The string to encode.
+	 * @return			The string ID.
+	 */
+	public synchronized long encode(String value)
+	{
+		long id = lookup(value);
+		if (id > 0)
+			return id;
+
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchDatabase.STRING_VALUE_COLUMN, value);
+		id = sqlDB.insertOrThrow(DroidWatchDatabase.STRINGS_TABLE, null, values);
+		put(id, value);
+		return id;
+	}
+
+	/**
+	 * This method returns the ID of a string without interning it.
+	 *
+	 * @param value		The string to look up.
+	 * @return			The string ID, or -1 if the string is not interned.
+	 */
+	public synchronized long lookup(String value)
+	{
+		Long id = ids.get(value);
+		if (id != null)
+			return id;
+
+		// Strings interned by another provider instance are not cached yet
+		Cursor cursor = sqlDB.query(DroidWatchDatabase.STRINGS_TABLE, new String[]{DroidWatchDatabase.STRING_ID_COLUMN},
+				DroidWatchDatabase.STRING_VALUE_COLUMN + " = ?", new String[]{value}, null, null, null);
+		try
+		{
+			if (!cursor.moveToFirst())
+				return -1;
+			put(cursor.getLong(0), value);
+			return cursor.getLong(0);
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method returns the string for an ID.
+	 *
+	 * @param id	The string ID.
+	 * @return		The string, or null if the ID is unknown.
+	 */
+	public synchronized String decode(long id)
+	{
+		String value = strings.get(id);
+		if (value != null)
+			return value;
+
+		Cursor cursor = sqlDB.query(DroidWatchDatabase.STRINGS_TABLE, new String[]{DroidWatchDatabase.STRING_VALUE_COLUMN},
+				DroidWatchDatabase.STRING_ID_COLUMN + " = " + id, null, null, null, null);
+		try
+		{
+			if (!cursor.moveToFirst())
+				return null;
+			put(id, cursor.getString(0));
+			return cursor.getString(0);
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method empties the cache (e.g., after a rolled back transaction interned strings).
+	 */
+	public synchronized void clear()
+	{
+		ids.clear();
+		strings.clear();
+	}
+
+	/**
+	 * This method caches a string and its ID.
+	 *
+	 * @param id		The string ID.
+	 * @param value		The string.
+	 */
+	private void put(long id, String value)
+	{
+		ids.put(value, id);
+		strings.put(id, value);
+	}
+}
@@ -0,0 +1,160 @@
+package com.droidwatch;
+
+/**
+ * TextCompressor.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import android.content.ContentValues;
+import android.util.Log;
+
+/** This class stores large text values as deflate-compressed BLOBs prefixed with a marker byte. **/
+public class TextCompressor
+{
+	// Initialize constants and variables
+	public static final String TAG = "TextCompressor";
+	public static final byte MARKER = 0x01;
+	public static int THRESHOLD = 256;
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * This method sets the size above which text values are compressed.
+	 *
+	 * @param threshold		The threshold (characters, 0 to store every value inline).
+	 */
+	public static void setThreshold(int threshold)
+	{
+		THRESHOLD = threshold;
+	}
+
+	/**
+	 * This method replaces a text column with its compressed form if the value is large and
+	 * compresses well.  Values starting with the marker character are always compressed, so a
+	 * stored value starting with the marker byte is never inline text.
+	 *
+	 * @param values	Key:value pairs.
+	 * @param column	The text column.
+	 */
+	public static void compress(ContentValues values, String column)
+	{
+		if (!values.containsKey(column))
+			return;
+		String value = values.getAsString(column);
+		if (value == null || value.length() == 0)
+			return;
+
+		boolean marked = value.charAt(0) == (char) MARKER;
+		if (!marked && (THRESHOLD <= 0 || value.length() < THRESHOLD))
+			return;
+
+		try
+		{
+			byte[] text = value.getBytes(CHARSET);
+			byte[] compressed = deflate(text);
+			if (marked || compressed.length < text.length)
+				values.put(column, compressed);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			Log.e(TAG, "Unable to compress text: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * This method compresses text bytes behind the marker byte.
+	 *
+	 * @param text	The UTF-8 text.
+	 * @return		The marker byte followed by the deflated text.
+	 */
+	public static byte[] deflate(byte[] text)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try
+		{
+			deflater.setInput(text);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(text.length / 2 + 16);
+			output.write(MARKER);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished())
+				output.write(buffer, 0, deflater.deflate(buffer));
+			return output.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * This method checks whether a stored value is compressed.
+	 *
+	 * @param stored	The stored bytes.
+	 * @return			True if compressed, false if inline text.
+	 */
+	public static boolean isCompressed(byte[] stored)
+	{
+		return stored != null && stored.length > 0 && stored[0] == MARKER;
+	}
+
+	/**
+	 * This method restores the text of a compressed value.
+	 *
+	 * @param stored	The marker byte followed by the deflated text.
+	 * @return			The text, or null if the value is corrupt.
+	 */
+	public static String inflate(byte[] stored)
+	{
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput(stored, 1, stored.length - 1);
+			ByteArrayOutputStream output = new ByteArrayOutputStream(stored.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished())
+			{
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				output.write(buffer, 0, count);
+			}
+			return output.toString(CHARSET);
+		}
+		catch (DataFormatException e)
+		{
+			Log.e(TAG, "Unable to decompress text: "+e.getMessage());
+			return null;
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			Log.e(TAG, "Unable to decompress text: "+e.getMessage());
+			return null;
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+}
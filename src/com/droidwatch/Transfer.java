@@ -36,6 +36,13 @@ public class Transfer extends BroadcastReceiver
 	public static long TRANSFER_INTERVAL = 1000 * 60 * 60 * 2;
 	public static String SSL_CERT_NAME = "ubuntu.crt";
 	public static String SERVER_URL = "https://192.168.1.7/upload.php";
+	public static final String FORMAT_EVENTS = "events";
+	public static final String FORMAT_DATABASE = "database";
+	public static final String FORMAT_COLUMNAR = "columnar";
+	public static String TRANSFER_FORMAT = FORMAT_EVENTS;
+	public static int COMPRESSION_LEVEL = 6;
+	public static int CHUNK_SIZE = 256 * 1024;
+	public static long RETRY_DELAY = 1000 * 60;
 	
 	/**
 	 * This method sets the transfer interval.
@@ -59,6 +66,47 @@ public class Transfer extends BroadcastReceiver
 		SERVER_URL = serverURL;
 	}
 	
+	/**
+	 * This method sets what is uploaded: the new events as NDJSON or in the columnar format (the
+	 * other tables follow as NDJSON sections), or a snapshot of the database.
+	 * 
+	 * @param transferFormat	The transfer format ("events", "columnar" or "database").
+	 */
+	public void setFormat(String transferFormat)
+	{
+		TRANSFER_FORMAT = transferFormat;
+	}
+	
+	/**
+	 * This method sets the compression level of the uploads.
+	 * 
+	 * @param compressionLevel	The deflate level (1 fastest to 9 smallest, 0 to upload uncompressed).
+	 */
+	public void setCompressionLevel(int compressionLevel)
+	{
+		COMPRESSION_LEVEL = compressionLevel;
+	}
+	
+	/**
+	 * This method sets the size of the chunks of the resumable uploads.
+	 * 
+	 * @param chunkSize		The chunk size (bytes, 0 to upload each transfer in a single POST).
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		CHUNK_SIZE = chunkSize;
+	}
+	
+	/**
+	 * This method sets the delay before the first retry of a failed transfer.
+	 * 
+	 * @param retryDelay	The delay in milliseconds (doubled after every failure, 0 to wait for the next interval).
+	 */
+	public void setRetryDelay(long retryDelay)
+	{
+		RETRY_DELAY = retryDelay;
+	}
+	
 	/**
 	 * This method handles the broadcasted alarm intent.
 	 * 
@@ -68,27 +116,94 @@ public class Transfer extends BroadcastReceiver
 	@Override
 	public void onReceive(Context context, Intent intent) 
 	{
+		// Wait for connectivity instead of attempting a transfer bound to fail
+		if (!TransferScheduler.isNetworkAvailable(context))
+		{
+			Log.i(TAG, "No network available, waiting for connectivity");
+			TransferScheduler.setWaiting(context, true);
+			return;
+		}
+		
 		TransferManager transferManager = new TransferManager(context.getApplicationContext());
+		boolean transferred = runTransfer(transferManager);
+		transferManager.reportTransport();
 		
+		// Retry a failed transfer after a backoff delay
+		int failures = transferManager.recordAttempt(transferred);
+		if (transferred)
+			TransferScheduler.cancelRetry(context);
+		else
+			TransferScheduler.scheduleRetry(context, failures);
+	}
+	
+	/**
+	 * This method connects to the central server, uploads the data covered by a transfer and
+	 * wipes it from the local database.
+	 * 
+	 * @param transferManager	The transfer manager.
+	 * @return					The transfer status.
+	 */
+	private boolean runTransfer(TransferManager transferManager)
+	{
 		// Get connection to central server
 		boolean connected = transferManager.getConnection(SSL_CERT_NAME, SERVER_URL);
 		if (!connected)
-			return;
+			return false;
 		
-		// Insert new entry in the DroidWatch transfer table
-		boolean started = transferManager.startTransfer();
-		if (!started)
-			return;
-		
-		// Transfer logged DroidWatch events to central server
-		boolean transferred = transferManager.pushToServer();
+		boolean transferred = false;
+		if (CHUNK_SIZE > 0)
+		{
+			// Resume an interrupted upload, or insert a new transfer and write its payload
+			boolean resumed = transferManager.resumeTransfer();
+			if (!resumed && OutboxSpooler.isEnabled())
+			{
+				// Send the batches written to the outbox during collection
+				boolean started = transferManager.startTransfer();
+				if (!started)
+					return false;
+				transferred = transferManager.pushOutbox();
+			}
+			else
+			{
+				if (!resumed)
+				{
+					boolean started = transferManager.startTransfer();
+					if (!started)
+						return false;
+					boolean prepared = transferManager.preparePayload();
+					if (!prepared)
+						return false;
+				}
+				
+				// Upload the payload in chunks, from the offset committed by the central server
+				transferred = transferManager.uploadPayload();
+			}
+		}
+		else if (!transferManager.startTransfer())
+			return false;
+		else if (!FORMAT_DATABASE.equals(TRANSFER_FORMAT))
+		{
+			// Transfer the new events to central server
+			transferred = transferManager.pushEventsToServer();
+		}
+		else
+		{
+			// Copy the events covered by this transfer to a snapshot and transfer it
+			boolean snapshotTaken = transferManager.takeSnapshot();
+			if (!snapshotTaken)
+				return false;
+			transferred = transferManager.pushToServer();
+			transferManager.deleteSnapshot();
+		}
 		if (!transferred)
-			return;
+			return false;
+		
+		// The event formats carry only events, so the other tables follow in their own upload
+		if (!FORMAT_DATABASE.equals(TRANSFER_FORMAT) && !transferManager.pushSectionsToServer())
+			return false;
 
 		// Wipe transferred data from the local phone database
-		boolean deleted = transferManager.wipeDatabase();
-		if (!deleted)
-			return;
+		return transferManager.wipeDatabase();
 	}
 	
 	/**
@@ -121,5 +236,6 @@ public class Transfer extends BroadcastReceiver
     	Intent intent = new Intent(context, Transfer.class);
     	PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
         am.cancel(sender);
+        TransferScheduler.cancelRetry(context);
     }
 }
\ No newline at end of file
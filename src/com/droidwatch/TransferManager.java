@@ -21,26 +21,26 @@ package com.droidwatch;
  * limitations under the License.
  */
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.Certificate;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -52,20 +52,37 @@ import android.util.Log;
 public class TransferManager
 {
 	private URL url = null;
-	private HttpsURLConnection connection = null;
+	private HttpURLConnection connection = null;
+	private SecureTransport transport = null;
+	private TransferSession session = null;
+	private int handshakeCount, resumedCount;
+	private long handshakeTime;
 	private DataOutputStream dos = null;
+	private OutputStream body = null;
+	private Deflater deflater = null;
+	private static final int DEFLATE_BUFFER_SIZE = 8192;
 	private String boundary = "*****";
 	private String twoHyphens = "--";
 	private String lineEnd = "\r\n";
-	private int bytesRead, bytesAvailable, bufferSize;
-	private byte[] buffer;
-	private int maxBufferSize = 1*1024*1024;
+	private static final long FLUSH_TIMEOUT = 1000 * 10;
+	private static final int VACUUM_SLICE_PAGES = 256;
+	private static final long VACUUM_SLICE_PAUSE = 100;
 	private String filename = "results.db";
-	private FileInputStream fileInputStream = null;
+	static final String UPLOAD_ENCODING = "deflate";
+	private static final String PAYLOAD_EXTENSION = ".payload";
+	private static final String COMMITTED_EVENT_HEADER = "X-Committed-Event-ID";
+	private long committedEventID = -1;
+	private static final int MAX_CHUNK_FAILURES = 3;
 	private long transferID = -1;
 	private Context context = null;
 	private static final Uri transfersUri = DroidWatchProvider.Transfers.CONTENT_URI;
-	private static final Uri eventsUri = DroidWatchProvider.Events.CONTENT_URI;
+	private static final Uri partitionsUri = DroidWatchProvider.Partitions.CONTENT_URI;
+	private static final Uri evictionsUri = DroidWatchProvider.Evictions.CONTENT_URI;
+	private static final Uri vacuumUri = DroidWatchProvider.Vacuum.CONTENT_URI;
+	private static final Uri rollupsUri = DroidWatchProvider.Rollups.CONTENT_URI;
+	private static final Uri logcatRollupsUri = DroidWatchProvider.LogcatRollups.CONTENT_URI;
+	private static final Uri snapshotsUri = DroidWatchProvider.Snapshots.CONTENT_URI;
+	public static long ROLLUP_RETENTION = 1000L * 60 * 60 * 24 * 30;
 	
 	/**
 	 * Constructor used to set the context.
@@ -77,6 +94,16 @@ public class TransferManager
 		this.context = context;
 	}
 	
+	/**
+	 * This method sets how long the hourly counts are kept across transfers.
+	 * 
+	 * @param rollupRetention	The retention in milliseconds (0 to keep them forever).
+	 */
+	public static void setRollupRetention(long rollupRetention)
+	{
+		ROLLUP_RETENTION = rollupRetention;
+	}
+	
 	/**
 	 * This method gets a device ID.
 	 * 
@@ -127,15 +154,15 @@ public class TransferManager
 	}
 	
 	/**
-	 * This method retrieves the transfer start time for a given transfer ID.
+	 * This method retrieves the event partition started by a given transfer ID.
 	 * 
-	 * @return 	The starting timestamp (epoch format).
+	 * @return 	The partition number.
 	 */
-	private long getTransferStartTime()
+	private long getTransferPartition()
 	{
 		// Prepare query
-		long startTime = -1;
-		String[] projection = new String[]{DroidWatchProvider.Transfers.STARTDATE};
+		long partition = -1;
+		String[] projection = new String[]{DroidWatchProvider.Transfers.PARTITION};
 		String selection = DroidWatchProvider.Transfers._ID+" = ?";
 		String[] selectionArgs = new String[]{String.valueOf(transferID)};
 		Cursor cursor = null;
@@ -156,21 +183,120 @@ public class TransferManager
 			return -1;
 		}
 		
-		// Grab transfer start time
+		// Grab transfer partition
 		if (cursor.moveToFirst() && cursor.getCount() > 0)
-			startTime = cursor.getLong(cursor.getColumnIndex(DroidWatchProvider.Transfers.STARTDATE));
-		return startTime;
+			partition = cursor.getLong(cursor.getColumnIndex(DroidWatchProvider.Transfers.PARTITION));
+		cursor.close();
+		return partition;
+	}
+	
+	/**
+	 * This method retrieves the first event ID of the partition started by the transfer (the
+	 * events covered by the transfer are older).
+	 * 
+	 * @return 	The first event ID, or -1 on failure.
+	 */
+	private long getTransferFirstEventID()
+	{
+		long partition = getTransferPartition();
+		if (partition < 0)
+			return -1;
+		
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(partitionsUri, new String[]{DroidWatchProvider.Partitions.FIRST_EVENT_ID},
+					DroidWatchProvider.Partitions._ID+" = ?", new String[]{String.valueOf(partition)}, null);
+		}
+		catch(Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to query partitions table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(Transfer.TAG, "Unable to query partitions table");
+			return -1;
+		}
+		
+		long firstEventID = -1;
+		if (cursor.moveToFirst())
+			firstEventID = cursor.getLong(0);
+		cursor.close();
+		return firstEventID;
+	}
+	
+	/**
+	 * This method looks for the transfer left open by the attempts that failed since the last
+	 * completed transfer.  It is not reused if it recorded a payload (a resumable one is resumed
+	 * by resumeTransfer, any other was abandoned) or has been open for a whole transfer interval;
+	 * the next transfer then covers its events too.
+	 * 
+	 * @return	The open transfer ID, or -1 if none can be reused.
+	 */
+	private long getOpenTransfer()
+	{
+		String[] projection = new String[]{DroidWatchProvider.Transfers._ID, DroidWatchProvider.Transfers.PAYLOAD_NAME,
+				DroidWatchProvider.Transfers.STARTDATE};
+		String selection = DroidWatchProvider.Transfers.COMPLETED+" = 0 AND "+DroidWatchProvider.Transfers._ID+" > (SELECT IFNULL(MAX("+
+				DroidWatchProvider.Transfers._ID+"),0) FROM "+DroidWatchDatabase.TRANSFERS_TABLE+" WHERE "+DroidWatchProvider.Transfers.COMPLETED+" = 1)";
+		String sortOrder = DroidWatchProvider.Transfers._ID+" DESC";
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(transfersUri, projection, selection, null, sortOrder);
+		}
+		catch(Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table");
+			return -1;
+		}
+		
+		long openID = -1;
+		if (cursor.moveToFirst() && cursor.isNull(1))
+		{
+			// The start date is recorded in seconds
+			long startDate = cursor.getLong(2) * 1000;
+			if (Transfer.TRANSFER_INTERVAL <= 0 || startDate > System.currentTimeMillis() - Transfer.TRANSFER_INTERVAL)
+				openID = cursor.getLong(0);
+		}
+		cursor.close();
+		return openID;
 	}
 	
 	/**
-	 * This method inserts a new transfer (after a connection has been established).
+	 * This method inserts a new transfer (after a connection has been established), starting a
+	 * new event partition.  A retry after failed attempts reuses the transfer they left open, so
+	 * it covers the same events and no partition is started for each attempt.
 	 * 
 	 * @return The transfer status.
 	 */
 	public boolean startTransfer()
 	{
+		// Retry the open transfer rather than start a partition for every failed attempt
+		long openID = getOpenTransfer();
+		if (openID >= 0)
+		{
+			transferID = openID;
+			Log.i(Transfer.TAG, "Retrying transfer "+transferID);
+			return true;
+		}
+		
+		// Write any queued events so they are covered by this transfer
+		if (!EventSink.getInstance(context).flush(FLUSH_TIMEOUT))
+			Log.w(Transfer.TAG, "Timed out waiting for queued events to be written");
+		
+		// Start a new event partition (the events covered by this transfer are in the older partitions)
+		Uri partitionUri = context.getContentResolver().insert(partitionsUri, new ContentValues());
+		
 		// Insert new entry in the DroidWatch transfer table
 		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.PARTITION, Long.parseLong(partitionUri.getLastPathSegment()));
 		values.put(DroidWatchProvider.Transfers.COMPLETED, 0);
 		values.put(DroidWatchProvider.Transfers.DEVICE_ID, getDeviceID());
 		Uri itemUri = context.getContentResolver().insert(transfersUri, values);
@@ -183,121 +309,152 @@ public class TransferManager
 	}
 
 	/**
-	 * This method attempts to begin a new transfer.
+	 * This method writes a consistent copy of the data covered by the transfer (the events sealed
+	 * when it started) to a snapshot file, while watchers keep writing to the live database.
 	 * 
-	 * @return	The transfer status.
+	 * @return The transfer status.
 	 */
-	public boolean getConnection(String certFileName, String serverURL)
+	public boolean takeSnapshot()
 	{
-		// Prepare for HTTPS connection
-		CertificateFactory cf = null;
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Snapshots.TRANSFER_ID, transferID);
 		try
 		{
-			cf = CertificateFactory.getInstance("X.509");
+			context.getContentResolver().insert(snapshotsUri, values);
 		}
-		catch (CertificateException e)
+		catch (Exception e)
 		{
-			Log.e(Transfer.TAG, "Certificate Error: "+e.getMessage());
+			Log.e(Transfer.TAG, "Unable to take snapshot: "+e.getMessage());
 			return false;
 		}
+		return true;
+	}
+	
+	/**
+	 * This method deletes the snapshot file of the transfer.
+	 */
+	public void deleteSnapshot()
+	{
+		File snapshot = getSnapshotFile();
+		if (snapshot.exists() && !snapshot.delete())
+			Log.w(Transfer.TAG, "Unable to delete snapshot: "+snapshot.getName());
+	}
+	
+	/**
+	 * This method returns the snapshot file of the transfer.
+	 * 
+	 * @return	The snapshot file.
+	 */
+	private File getSnapshotFile()
+	{
+		return context.getDatabasePath(DroidWatchDatabase.getSnapshotName(transferID));
+	}
+	
+	/**
+	 * This method records an attempt of the transfer, and counts the attempts that failed since
+	 * the last completed transfer (a resumed transfer keeps counting its own attempts).
+	 * 
+	 * @param succeeded		True if the attempt completed the transfer, false otherwise.
+	 * @return				The number of consecutive failed attempts (0 if none or no transfer).
+	 */
+	public int recordAttempt(boolean succeeded)
+	{
+		if (transferID < 0)
+			return 0;
 		
-		// Retrieve self-signed certificate
-        InputStream caInput = null;
+		String[] selectionArgs = new String[]{String.valueOf(transferID)};
+		int attempts = 0;
+		Cursor cursor = null;
 		try
 		{
-			caInput = new BufferedInputStream(context.getAssets().open(certFileName));
+			cursor = context.getContentResolver().query(transfersUri, new String[]{DroidWatchProvider.Transfers.ATTEMPTS},
+					DroidWatchProvider.Transfers._ID+" = ?", selectionArgs, null);
 		}
-		catch (FileNotFoundException e)
+		catch(Exception e)
 		{
-			Log.e(Transfer.TAG, "File Not Found: "+e.getMessage());
-			return false;
+			Log.e(Transfer.TAG, "Unable to query transfers table: "+e.getMessage());
+			return 0;
 		}
-		catch (IOException e)
+		if (cursor == null)
 		{
-			Log.e(Transfer.TAG, "IOError: "+e.getMessage());
-			return false;
+			Log.e(Transfer.TAG, "Unable to query transfers table");
+			return 0;
 		}
+		if (cursor.moveToFirst())
+			attempts = cursor.getInt(0);
+		cursor.close();
 		
-		// Incorporate self-signed certificate
-        Certificate ca = null;
-        try
-        {
-            ca = cf.generateCertificate(caInput);
-        }
-        catch(CertificateException e)
-        {
-        	Log.e(Transfer.TAG, "Certificate Error: "+e.getMessage());
-        	return false;
-        }
-        
-        try
-        {
-        	caInput.close();
-        }
-        catch (IOException e)
-        {
-        	Log.e(Transfer.TAG, "IOError: "+e.getMessage());
-        	return false;
-        }
-
-        // Create a KeyStore containing the trusted certificate
-        KeyStore keyStore = null;
-        TrustManagerFactory tmf = null;
-        SSLContext sslContext = null;
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.ATTEMPTS, attempts + 1);
+		values.put(DroidWatchProvider.Transfers.LAST_ATTEMPT, System.currentTimeMillis());
+		context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", selectionArgs);
+		if (succeeded)
+			return 0;
+		
+		// Sum the attempts of the transfers started since the last completed one
+		cursor = null;
 		try
 		{
-			keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-			keyStore.load(null, null);
-	        keyStore.setCertificateEntry("ca", ca); 
-	        
-	        tmf = TrustManagerFactory.getInstance("X509");
-			tmf.init(keyStore);
-			sslContext = SSLContext.getInstance("TLS");
-			sslContext.init(null, tmf.getTrustManagers(), null);
-		}
-		catch (KeyStoreException e)
-		{
-			Log.e(Transfer.TAG,"KeyStore Error: "+e.getMessage());
-			return false;
-		}
-		catch (CertificateException e)
-		{
-			Log.e(Transfer.TAG, "Certificate Error: "+e.getMessage());
-			return false;
+			cursor = context.getContentResolver().query(transfersUri, new String[]{"IFNULL(SUM("+DroidWatchProvider.Transfers.ATTEMPTS+"),0)"},
+					DroidWatchProvider.Transfers.COMPLETED+" = 0 AND "+DroidWatchProvider.Transfers._ID+" > (SELECT IFNULL(MAX("+
+					DroidWatchProvider.Transfers._ID+"),0) FROM "+DroidWatchDatabase.TRANSFERS_TABLE+" WHERE "+DroidWatchProvider.Transfers.COMPLETED+" = 1)",
+					null, null);
 		}
-		catch (NoSuchAlgorithmException e)
+		catch(Exception e)
 		{
-			Log.e(Transfer.TAG, "NoSuchAlgorithm Error: "+e.getMessage());
-			return false;
+			Log.e(Transfer.TAG, "Unable to query transfers table: "+e.getMessage());
+			return 1;
 		}
-		catch (IOException e)
+		if (cursor == null)
 		{
-			Log.e(Transfer.TAG, "IOException Error: "+e.getMessage());
-			return false;
+			Log.e(Transfer.TAG, "Unable to query transfers table");
+			return 1;
 		}
-		catch (KeyManagementException e)
-		{
-			Log.e(Transfer.TAG, "KeyManagementException Error: "+e.getMessage());
+		int failures = cursor.moveToFirst() ? cursor.getInt(0) : 1;
+		cursor.close();
+		return Math.max(failures, 1);
+	}
+	
+	/**
+	 * This method logs the TLS handshakes and the requests performed since the connection was
+	 * established.
+	 */
+	public void reportTransport()
+	{
+		if (transport == null)
+			return;
+		Log.i(Transfer.TAG, "Transfer "+transferID+": "+(transport.getHandshakeCount() - handshakeCount)+" TLS handshakes ("+
+				(transport.getResumedCount() - resumedCount)+" resumed) in "+(transport.getHandshakeTime() - handshakeTime)+" ms");
+		if (session != null)
+			session.report();
+	}
+	
+	/**
+	 * This method attempts to begin a new transfer.
+	 * 
+	 * @return	The transfer status.
+	 */
+	public boolean getConnection(String certFileName, String serverURL)
+	{
+		// Reuse the TLS context (and its cached sessions) built by earlier transfers
+		transport = SecureTransport.getInstance(context, certFileName);
+		if (transport == null)
 			return false;
-		}
+		handshakeCount = transport.getHandshakeCount();
+		resumedCount = transport.getResumedCount();
+		handshakeTime = transport.getHandshakeTime();
 		
 		// Connect to webserver
 		try
 		{
 			url = new URL(serverURL);
-			connection = (HttpsURLConnection) url.openConnection();
-			connection.setSSLSocketFactory(sslContext.getSocketFactory());
+			session = new TransferSession(url, transport);
 		} 
 		catch (MalformedURLException e)
 		{
 			Log.e(Transfer.TAG, "Invalid URL");
 			return false;
 		}
-		catch (IOException e)
-		{
-			Log.e(Transfer.TAG, "Unable to connect");
-			return false;
-		}
 		catch (Exception e)
 		{
 			Log.e(Transfer.TAG, "Error: "+e.getMessage());
@@ -307,32 +464,39 @@ public class TransferManager
 		//Log.i(Transfer.TAG, "Connected successfully");
 		return true;
 	}
+	
+	/**
+	 * This method sends the requests of the transfer through a given session instead of the one
+	 * built by getConnection (used to upload to a local stand-in server in tests).
+	 * 
+	 * @param session	The transfer session.
+	 */
+	void setSession(TransferSession session)
+	{
+		this.session = session;
+	}
 
 	/**
-	 * This method performs the data transfer.
+	 * This method opens the HTTPS POST of a transfer and writes the multipart header of the
+	 * uploaded file.  The file is then written to the body stream, which deflates it on the fly
+	 * (zlib format, announced by an "encoding" form field) unless compression is disabled.
 	 * 
-	 * @return The transfer status.
+	 * @param uploadName	The name of the uploaded file.
+	 * @param lane			The upload lane (announced by a "lane" form field, null for the bulk lane).
+	 * @return 				The transfer status.
 	 */
-	public boolean pushToServer()
-	{	
-		// Find the file path of the SQLite database to transfer.
-		String filePath = context.getDatabasePath(filename).getAbsolutePath();
-		try
-		{
-			fileInputStream = new FileInputStream(filePath);
-		}
-		catch (FileNotFoundException e)
-		{
-			Log.e(Transfer.TAG, "Error: "+e.getMessage());
-			return false;
-		}	
-		
-		// Prepare to push the database file to the server using HTTPS POST
+	private boolean openUpload(String uploadName, String lane)
+	{
+		// Prepare to push the file to the server using HTTPS POST
 		try
 		{
+			connection = session.open();
 			connection.setDoInput(true);
 			connection.setDoOutput(true);
 			connection.setUseCaches(false);
+			
+			// Send the body as it is written instead of buffering it to compute its length
+			connection.setChunkedStreamingMode(DEFLATE_BUFFER_SIZE);
 		}
 		catch (Exception e)
 		{
@@ -353,7 +517,6 @@ public class TransferManager
 		// Prepare header information
 		try
 		{
-			connection.setRequestProperty("Connection", "Keep-Alive");
 			connection.setRequestProperty("Content-Type", "multipart/form-data;boundary="+boundary);
 		}
 		catch (Exception e)
@@ -380,8 +543,22 @@ public class TransferManager
 		
 		try
 		{
+			if (Transfer.COMPRESSION_LEVEL > 0)
+			{
+				dos.writeBytes(twoHyphens + boundary + lineEnd);
+				dos.writeBytes("Content-Disposition: form-data; name=\"encoding\"" + lineEnd);
+				dos.writeBytes(lineEnd);
+				dos.writeBytes(UPLOAD_ENCODING + lineEnd);
+			}
+			if (lane != null)
+			{
+				dos.writeBytes(twoHyphens + boundary + lineEnd);
+				dos.writeBytes("Content-Disposition: form-data; name=\"lane\"" + lineEnd);
+				dos.writeBytes(lineEnd);
+				dos.writeBytes(lane + lineEnd);
+			}
 	        dos.writeBytes(twoHyphens + boundary + lineEnd);
-	        dos.writeBytes("Content-Disposition: form-data; name=\"uploadedfile\";filename=\"" + filename +"\"" + lineEnd);
+	        dos.writeBytes("Content-Disposition: form-data; name=\"uploadedfile\";filename=\"" + uploadName +"\"" + lineEnd);
 	        dos.writeBytes(lineEnd);
 		}
 		catch (Exception e)
@@ -390,97 +567,1017 @@ public class TransferManager
 			return false;
 		}
 		
-		// Create a buffer of maximum size
-		try
-		{
-	        bytesAvailable = fileInputStream.available();
-	        bufferSize = Math.min(bytesAvailable, maxBufferSize);
-	        buffer = new byte[bufferSize];
-		}
-		catch (Exception e)
+		// Compress the uploaded file as it is written
+		if (Transfer.COMPRESSION_LEVEL > 0)
 		{
-			Log.e(Transfer.TAG, "Error creating buffer: "+e.getMessage());
-			return false;
+			deflater = new Deflater(Math.min(Transfer.COMPRESSION_LEVEL, Deflater.BEST_COMPRESSION));
+			body = new DeflaterOutputStream(dos, deflater, DEFLATE_BUFFER_SIZE);
 		}
-        
-        // Write file into form and POST it to the server
+		else
+			body = dos;
+		return true;
+	}
+	
+	/**
+	 * This method ends the compressed stream of the uploaded file, if any, and logs the bytes
+	 * written before and after compression.
+	 * 
+	 * @throws IOException
+	 */
+	private void finishBody() throws IOException
+	{
+		if (deflater == null)
+			return;
 		try
 		{
-			bytesRead = fileInputStream.read(buffer, 0, bufferSize);
+			((DeflaterOutputStream) body).finish();
+			Log.i(Transfer.TAG, "Uploaded "+deflater.getBytesRead()+" bytes as "+deflater.getBytesWritten()+" compressed bytes");
 		}
-		catch(Exception e)
+		finally
 		{
-			Log.e(Transfer.TAG, "Error reading input file: "+e.getMessage());
-			return false;
+			deflater.end();
+			deflater = null;
 		}
-		
-        while (bytesRead > 0)
-        {
-			try
-			{
-				dos.write(buffer, 0, bufferSize);
-				bytesAvailable = fileInputStream.available();
-	            bufferSize = Math.min(bytesAvailable,maxBufferSize);
-	            bytesRead = fileInputStream.read(buffer, 0,bufferSize);
-			}
-			catch (IOException e)
-			{
-				Log.e(Transfer.TAG, "Error: "+e.getMessage());
-				return false;
-			}
-        }
-        
-        // Verify a successful transfer
+	}
+	
+	/**
+	 * This method ends the multipart body of a transfer and verifies the server response.
+	 * 
+	 * @return The transfer status.
+	 */
+	private boolean finishUpload()
+	{
         int serverResponseCode = 0;
         try
         {
+        	finishBody();
 			dos.writeBytes(lineEnd);
 			dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
 			
-			// Responses from the server (code and message)
-	        serverResponseCode = connection.getResponseCode();
-
-	        // Close streams
-	        fileInputStream.close();
+	        // Close streams (ending the body) before reading the response
 	        dos.flush();
 	        dos.close();
 	        
+			// Responses from the server (code and message)
+	        serverResponseCode = connection.getResponseCode();
+	        readCommittedEventID(connection.getHeaderField(COMMITTED_EVENT_HEADER));
+
 	        //Log.i(Transfer.TAG,"Code: "+serverResponseCode);
         }
         catch (IOException e)
         {
 			Log.e(Transfer.TAG, "Error: "+e.getMessage());
+			session.close(connection, true);
+			connection = null;
 			return false;
 		}
         
+        // Release the connection for the requests that follow
+        session.close(connection, serverResponseCode != 200);
+        connection = null;
         if (serverResponseCode != 200)
         	return false;
         return true;
 	}
 
 	/**
-	 * This method performs a wipe of the local DroidWatch app database after a successful transfer.
+	 * This method abandons an upload that was opened but not finished: the compressed stream is
+	 * ended and the connection is closed rather than returned to the pool.  It does nothing once
+	 * finishUpload has run.
+	 */
+	private void abortUpload()
+	{
+		if (deflater != null)
+		{
+			deflater.end();
+			deflater = null;
+		}
+		if (connection != null)
+		{
+			session.close(connection, true);
+			connection = null;
+		}
+	}
+
+	/**
+	 * This method performs the data transfer of the snapshot database.
 	 * 
 	 * @return The transfer status.
 	 */
-	public boolean wipeDatabase()
+	public boolean pushToServer()
+	{	
+		// The snapshot of the transfer is uploaded under the database file name
+		return pushFile(getSnapshotFile(), filename);
+	}
+	
+	/**
+	 * This method performs the data transfer of a file in a single multipart POST.
+	 * 
+	 * @param file			The file to upload.
+	 * @param uploadName	The name of the uploaded file.
+	 * @return				The transfer status.
+	 */
+	boolean pushFile(File file, String uploadName)
 	{
-		// Delete all events before the starting transfer time
-		long startTime = getTransferStartTime();
-		if (startTime < 0)
-			return false;
-		
-		int deleteCount = context.getContentResolver().delete(eventsUri, DroidWatchProvider.Events.DETECTED+" < ?", new String[]{String.valueOf(startTime)});
-		if (deleteCount < 0)
+		try
+		{
+			if (!openUpload(uploadName, null))
+				return false;
+			
+			// Write the file into the form
+			if (!copyFile(file, body))
+				return false;
+			
+			// Verify a successful transfer
+			return finishUpload();
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error: "+e.getMessage());
 			return false;
-		
-		// Mark transfer as complete
-		ContentValues values = new ContentValues();
-		values.put(DroidWatchDatabase.TRANSFERS_COMPLETED_COLUMN, 1);
-		int updateCount = context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
-		if (updateCount <= 0)
+		}
+		finally
+		{
+			abortUpload();
+		}
+	}
+	
+	/**
+	 * This method performs the data transfer of the events logged since the last acknowledged
+	 * transfer and covered by this one, and records the last event acknowledged by the server.
+	 * 
+	 * @return The transfer status.
+	 */
+	public boolean pushEventsToServer()
+	{
+		long afterID = EventExporter.getLastAcknowledgedID(context);
+		long beforeID = getTransferFirstEventID();
+		if (afterID < 0 || beforeID < 0)
 			return false;
 		
-		return true;
+		EventExporter exporter = new EventExporter(context);
+		try
+		{
+			if (!openUpload(EventExporter.getFileName(Transfer.TRANSFER_FORMAT), null))
+				return false;
+			
+			// Stream the events into the form
+			if (!exporter.export(EventExporter.createWriter(Transfer.TRANSFER_FORMAT, body), transferID, getDeviceID(), afterID, beforeID))
+				return false;
+			
+			// Verify a successful transfer acknowledged by the server
+			if (!finishUpload())
+				return false;
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error writing events: "+e.getMessage());
+			return false;
+		}
+		finally
+		{
+			abortUpload();
+		}
+		if (committedEventID < 0)
+		{
+			Log.e(Transfer.TAG, "Events not acknowledged by the server");
+			return false;
+		}
+		
+		long acknowledgedID = getAcknowledgedID(exporter.getLastEventID(), beforeID);
+		logLatency(UrgentTransfer.LANE_BULK, afterID, acknowledgedID, null);
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.LAST_EVENT_ID, acknowledgedID);
+		context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
+		return true;
+	}
+
+	/**
+	 * This method performs the data transfer of the tables the event formats do not carry
+	 * (contacts, calendar, hourly counts and eviction summaries), only sending the rows stored
+	 * since the last upload.  Once the server acknowledges them, the section watermarks are
+	 * advanced along with the last eviction summary covered (so the summaries are deleted when
+	 * the transfer completes), in a single batch.
+	 * 
+	 * @return The transfer status.
+	 */
+	public boolean pushSectionsToServer()
+	{
+		SectionExporter exporter = new SectionExporter(context);
+		try
+		{
+			if (!openUpload(SectionExporter.FILENAME, null))
+				return false;
+			
+			// Stream the tables into the form
+			if (!exporter.export(body, transferID, getDeviceID()))
+				return false;
+			
+			// Verify a successful transfer
+			if (!finishUpload())
+				return false;
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error writing sections: "+e.getMessage());
+			return false;
+		}
+		finally
+		{
+			abortUpload();
+		}
+		ArrayList<ContentProviderOperation> operations = exporter.getWatermarks();
+		operations.add(ContentProviderOperation.newUpdate(transfersUri)
+				.withValue(DroidWatchProvider.Transfers.SNAPSHOT_EVICTION_ID, exporter.getLastEvictionID())
+				.withSelection(DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)}).build());
+		return WatermarkManager.applyBatch(context, operations);
+	}
+
+	/**
+	 * This method looks for the latest transfer interrupted during a chunked upload and resumes
+	 * it if its payload is still on disk.  Payloads that cannot be resumed are abandoned (their
+	 * events are covered again by the next transfer).
+	 * 
+	 * @return	True if a transfer was resumed, false if a new one must be started.
+	 */
+	public boolean resumeTransfer()
+	{
+		String[] projection = new String[]{DroidWatchProvider.Transfers._ID, DroidWatchProvider.Transfers.PAYLOAD_SIZE};
+		String selection = DroidWatchProvider.Transfers.COMPLETED+" = ? AND "+DroidWatchProvider.Transfers.PAYLOAD_SIZE+" IS NOT NULL";
+		String[] selectionArgs = new String[]{"0"};
+		String sortOrder = DroidWatchProvider.Transfers._ID+" DESC";
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(transfersUri, projection, selection, selectionArgs, sortOrder);
+		}
+		catch(Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table: "+e.getMessage());
+			return false;
+		}
+		if (cursor == null)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table");
+			return false;
+		}
+		
+		long resumeID = -1;
+		long payloadSize = -1;
+		if (cursor.moveToFirst())
+		{
+			resumeID = cursor.getLong(0);
+			payloadSize = cursor.getLong(1);
+		}
+		cursor.close();
+		if (resumeID < 0)
+			return false;
+		
+		transferID = resumeID;
+		if (getPayloadFile().length() == payloadSize)
+		{
+			Log.i(Transfer.TAG, "Resuming transfer "+transferID);
+			return true;
+		}
+		
+		// The payload is gone, so none of the interrupted uploads can be resumed
+		Log.w(Transfer.TAG, "Abandoning upload of transfer "+transferID);
+		ContentValues values = new ContentValues();
+		values.putNull(DroidWatchProvider.Transfers.PAYLOAD_SIZE);
+		context.getContentResolver().update(transfersUri, values, selection, selectionArgs);
+		deletePayload();
+		transferID = -1;
+		return false;
+	}
+	
+	/**
+	 * This method writes the data covered by the transfer (the new events, or a snapshot of the
+	 * database) to a payload file, compressed unless compression is disabled, so an interrupted
+	 * upload can resume with the same bytes.  The payload is recorded in the transfer.
+	 * 
+	 * @return The transfer status.
+	 */
+	public boolean preparePayload()
+	{
+		File payload = getPayloadFile();
+		boolean events = !Transfer.FORMAT_DATABASE.equals(Transfer.TRANSFER_FORMAT);
+		EventExporter exporter = null;
+		boolean written = false;
+		OutputStream output = null;
+		Deflater payloadDeflater = null;
+		try
+		{
+			output = new BufferedOutputStream(new FileOutputStream(payload), DEFLATE_BUFFER_SIZE);
+			if (Transfer.COMPRESSION_LEVEL > 0)
+			{
+				payloadDeflater = new Deflater(Math.min(Transfer.COMPRESSION_LEVEL, Deflater.BEST_COMPRESSION));
+				output = new DeflaterOutputStream(output, payloadDeflater, DEFLATE_BUFFER_SIZE);
+			}
+			
+			if (events)
+			{
+				long afterID = EventExporter.getLastAcknowledgedID(context);
+				long beforeID = getTransferFirstEventID();
+				if (afterID >= 0 && beforeID >= 0)
+				{
+					exporter = new EventExporter(context);
+					written = exporter.export(EventExporter.createWriter(Transfer.TRANSFER_FORMAT, output), transferID, getDeviceID(), afterID, beforeID);
+				}
+			}
+			else if (takeSnapshot())
+			{
+				written = copyFile(getSnapshotFile(), output);
+				deleteSnapshot();
+			}
+			
+			// Closing the stream ends the compressed data
+			output.close();
+			output = null;
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error writing payload: "+e.getMessage());
+			written = false;
+		}
+		finally
+		{
+			if (output != null)
+			{
+				try
+				{
+					output.close();
+				}
+				catch (IOException e)
+				{
+					Log.e(Transfer.TAG, "Error: "+e.getMessage());
+				}
+			}
+			if (payloadDeflater != null)
+				payloadDeflater.end();
+		}
+		
+		if (!written)
+		{
+			deletePayload();
+			return false;
+		}
+		
+		// Record the payload, so the upload can be resumed by a later transfer alarm
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.PAYLOAD_NAME, events ? EventExporter.getFileName(Transfer.TRANSFER_FORMAT) : filename);
+		if (Transfer.COMPRESSION_LEVEL > 0)
+			values.put(DroidWatchProvider.Transfers.PAYLOAD_ENCODING, UPLOAD_ENCODING);
+		values.put(DroidWatchProvider.Transfers.PAYLOAD_SIZE, payload.length());
+		if (exporter != null)
+			values.put(DroidWatchProvider.Transfers.PAYLOAD_LAST_EVENT_ID, exporter.getLastEventID());
+		values.put(DroidWatchProvider.Transfers.UPLOAD_OFFSET, 0);
+		int updateCount = context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
+		if (updateCount <= 0)
+		{
+			deletePayload();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * This method copies a file to an output stream through a small fixed buffer.
+	 * 
+	 * @param file		The file to copy.
+	 * @param output	The output stream.
+	 * @return			True if the file was copied, false otherwise.
+	 * @throws IOException
+	 */
+	private boolean copyFile(File file, OutputStream output) throws IOException
+	{
+		InputStream input = null;
+		try
+		{
+			input = new FileInputStream(file);
+		}
+		catch (FileNotFoundException e)
+		{
+			Log.e(Transfer.TAG, "Error: "+e.getMessage());
+			return false;
+		}
+		
+		try
+		{
+			byte[] copyBuffer = new byte[DEFLATE_BUFFER_SIZE];
+			int count;
+			while ((count = input.read(copyBuffer)) > 0)
+				output.write(copyBuffer, 0, count);
+		}
+		finally
+		{
+			input.close();
+		}
+		return true;
+	}
+	
+	/**
+	 * This method uploads the payload of the transfer in fixed-size chunks.  Each chunk carries
+	 * its byte range and CRC32, and the server answers with the offset it has committed.  The
+	 * upload starts from the offset reported by the server, and asks for it again after a failed
+	 * chunk; the last acknowledged offset is recorded in the transfer.  Once the whole payload is
+	 * committed, the event ID acknowledged by the server is recorded and the payload is deleted.
+	 * 
+	 * @return The transfer status.
+	 */
+	public boolean uploadPayload()
+	{
+		// Retrieve the payload recorded in the transfer
+		String[] projection = new String[]{DroidWatchProvider.Transfers.PAYLOAD_NAME, DroidWatchProvider.Transfers.PAYLOAD_ENCODING,
+				DroidWatchProvider.Transfers.PAYLOAD_SIZE, DroidWatchProvider.Transfers.PAYLOAD_LAST_EVENT_ID};
+		String[] selectionArgs = new String[]{String.valueOf(transferID)};
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(transfersUri, projection, DroidWatchProvider.Transfers._ID+" = ?", selectionArgs, null);
+		}
+		catch(Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table: "+e.getMessage());
+			return false;
+		}
+		if (cursor == null)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table");
+			return false;
+		}
+		if (!cursor.moveToFirst() || cursor.isNull(2))
+		{
+			cursor.close();
+			Log.e(Transfer.TAG, "No payload recorded for transfer "+transferID);
+			return false;
+		}
+		String payloadName = cursor.getString(0);
+		String payloadEncoding = cursor.getString(1);
+		long payloadSize = cursor.getLong(2);
+		Long lastEventID = cursor.isNull(3) ? null : cursor.getLong(3);
+		cursor.close();
+		
+		String uploadID = getDeviceID()+"-"+transferID;
+		long offset = sendChunks(getPayloadFile(), uploadID, payloadName, payloadEncoding, payloadSize, true);
+		if (offset != payloadSize)
+		{
+			Log.w(Transfer.TAG, "Upload of transfer "+transferID+" interrupted, will resume on the next transfer");
+			return false;
+		}
+		
+		// Record the last event acknowledged by the server (asked again if the last chunk lost it)
+		if (lastEventID != null)
+		{
+			if (committedEventID < 0)
+				getCommittedOffset(uploadID);
+			if (committedEventID < 0)
+			{
+				Log.e(Transfer.TAG, "Events not acknowledged by the server, will ask again on the next transfer");
+				return false;
+			}
+			long beforeID = getTransferFirstEventID();
+			long afterID = EventExporter.getLastAcknowledgedID(context);
+			if (beforeID < 0)
+				return false;
+			long acknowledgedID = getAcknowledgedID(lastEventID, beforeID);
+			logLatency(UrgentTransfer.LANE_BULK, afterID, acknowledgedID, null);
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchProvider.Transfers.LAST_EVENT_ID, acknowledgedID);
+			context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", selectionArgs);
+		}
+		deletePayload();
+		return true;
+	}
+	
+	/**
+	 * This method sends a file to the central server in fixed-size chunks.  Each chunk carries its
+	 * byte range and CRC32, and the server answers with the offset it has committed.  The upload
+	 * starts from the offset reported by the server, and asks for it again after a failed chunk.
+	 * 
+	 * @param file			The file to upload.
+	 * @param uploadID		The upload ID.
+	 * @param name			The name of the uploaded file.
+	 * @param encoding		The encoding of the uploaded file (null if uncompressed).
+	 * @param size			The size of the uploaded file.
+	 * @param recordOffset	True to record the committed offsets in the transfer, false otherwise.
+	 * @return				The committed offset (the size once complete), or -1 on failure.
+	 */
+	long sendChunks(File file, String uploadID, String name, String encoding, long size, boolean recordOffset)
+	{
+		RandomAccessFile payload = null;
+		try
+		{
+			payload = new RandomAccessFile(file, "r");
+		}
+		catch (FileNotFoundException e)
+		{
+			Log.e(Transfer.TAG, "Error: "+e.getMessage());
+			return -1;
+		}
+		
+		// Send the chunks from the committed offset (unknown at first and after a failed chunk)
+		byte[] chunk = new byte[(int) Math.max(1, Math.min(Transfer.CHUNK_SIZE, size))];
+		CRC32 checksum = new CRC32();
+		long offset = -1;
+		int failures = 0;
+		try
+		{
+			while (offset < size && failures < MAX_CHUNK_FAILURES)
+			{
+				// Only the response completing the upload acknowledges its events
+				committedEventID = -1;
+				if (offset < 0)
+				{
+					offset = getCommittedOffset(uploadID);
+					if (offset < 0 || offset > size)
+					{
+						offset = -1;
+						failures++;
+						continue;
+					}
+					if (offset > 0)
+						Log.i(Transfer.TAG, "Resuming upload at "+offset+" of "+size+" bytes");
+					if (recordOffset)
+						recordUploadOffset(offset);
+					continue;
+				}
+				
+				int length = (int) Math.min(chunk.length, size - offset);
+				payload.seek(offset);
+				payload.readFully(chunk, 0, length);
+				checksum.reset();
+				checksum.update(chunk, 0, length);
+				
+				long committed = putChunk(uploadID, name, encoding, size, offset, chunk, length, checksum.getValue());
+				if (committed <= offset || committed > size)
+				{
+					offset = -1;
+					failures++;
+					continue;
+				}
+				offset = committed;
+				failures = 0;
+				if (recordOffset)
+					recordUploadOffset(offset);
+			}
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error reading "+file.getName()+": "+e.getMessage());
+			return -1;
+		}
+		finally
+		{
+			try
+			{
+				payload.close();
+			}
+			catch (IOException e)
+			{
+				Log.e(Transfer.TAG, "Error: "+e.getMessage());
+			}
+		}
+		return offset;
+	}
+	
+	/**
+	 * This method sends the outbox batches written during collection, after sealing the last one
+	 * with the remaining events covered by the transfer.  Each batch is deleted once the server
+	 * acknowledges its events, after the acknowledged event ID is recorded in the transfer, so a
+	 * batch left by a crash is recognized as sent on the next transfer.
+	 * 
+	 * @return The transfer status.
+	 */
+	public boolean pushOutbox()
+	{
+		long afterID = EventExporter.getLastAcknowledgedID(context);
+		long beforeID = getTransferFirstEventID();
+		if (afterID < 0 || beforeID < 0)
+			return false;
+		
+		OutboxSpooler outbox = OutboxSpooler.getInstance(context);
+		if (!outbox.seal(beforeID))
+			return false;
+		
+		long acknowledgedID = afterID;
+		for (OutboxSpooler.Batch batch : outbox.getBatches())
+		{
+			// Skip the batches acknowledged before a crash
+			if (batch.throughID <= acknowledgedID)
+			{
+				batch.delete();
+				continue;
+			}
+			if (!batch.verify())
+			{
+				Log.e(Transfer.TAG, "Corrupt batch "+batch.file.getName()+", writing its events again");
+				outbox.rewind(batch);
+				return false;
+			}
+			
+			String uploadID = getDeviceID()+"-"+batch.afterID+"-"+batch.throughID;
+			long size = batch.file.length();
+			if (sendChunks(batch.file, uploadID, batch.getUploadName(), batch.encoding, size, false) != size)
+			{
+				Log.w(Transfer.TAG, "Upload of batch "+batch.file.getName()+" interrupted, will resume on the next transfer");
+				return false;
+			}
+			
+			// Record the last event acknowledged by the server (asked again if the last chunk lost it)
+			if (committedEventID < 0)
+				getCommittedOffset(uploadID);
+			if (committedEventID < batch.throughID)
+			{
+				Log.e(Transfer.TAG, "Batch "+batch.file.getName()+" not acknowledged by the server (committed "+committedEventID+")");
+				return false;
+			}
+			acknowledgedID = batch.throughID;
+			recordAcknowledgedID(acknowledgedID);
+			batch.delete();
+		}
+		
+		// The outbox covered every event of the transfer, so its whole range is acknowledged
+		acknowledgedID = Math.max(acknowledgedID, beforeID - 1);
+		recordAcknowledgedID(acknowledgedID);
+		logLatency(UrgentTransfer.LANE_BULK, afterID, acknowledgedID, null);
+		return true;
+	}
+	
+	/**
+	 * This method records the last event ID acknowledged by the server in the transfer.
+	 * 
+	 * @param acknowledgedID	The acknowledged event ID.
+	 */
+	private void recordAcknowledgedID(long acknowledgedID)
+	{
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.LAST_EVENT_ID, acknowledgedID);
+		context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
+	}
+	
+	/**
+	 * This method asks the central server how many bytes of an upload it has committed.
+	 * 
+	 * @param uploadID		The upload ID (device and transfer).
+	 * @return				The committed offset (0 for a new upload), or -1 on failure.
+	 */
+	private long getCommittedOffset(String uploadID)
+	{
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("X-Upload-ID", uploadID);
+		try
+		{
+			return readCommittedOffset(session.send("GET", properties, null, 0));
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Unable to query upload offset: "+e.getMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * This method sends a chunk of an upload to the central server.  The server only commits a
+	 * chunk starting at its committed offset and matching its checksum.
+	 * 
+	 * @param uploadID		The upload ID (device and transfer).
+	 * @param name			The name of the uploaded file.
+	 * @param encoding		The encoding of the uploaded file (null if uncompressed).
+	 * @param size			The size of the uploaded file.
+	 * @param offset		The offset of the chunk.
+	 * @param chunk			The chunk buffer.
+	 * @param length		The chunk length.
+	 * @param crc			The CRC32 of the chunk.
+	 * @return				The offset committed by the server, or -1 on failure.
+	 */
+	private long putChunk(String uploadID, String name, String encoding, long size, long offset, byte[] chunk, int length, long crc)
+	{
+		HashMap<String, String> properties = new HashMap<String, String>();
+		properties.put("X-Upload-ID", uploadID);
+		properties.put("Content-Type", "application/octet-stream");
+		properties.put("Content-Range", "bytes "+offset+"-"+(offset + length - 1)+"/"+size);
+		properties.put("X-Upload-Name", name);
+		if (encoding != null)
+			properties.put("X-Upload-Encoding", encoding);
+		properties.put("X-Chunk-CRC32", Long.toHexString(crc));
+		
+		// A chunk is only committed at the server's offset, so resending it is harmless
+		try
+		{
+			return readCommittedOffset(session.send("POST", properties, chunk, length));
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error sending chunk at "+offset+": "+e.getMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * This method reads the committed offset returned by the central server.
+	 * 
+	 * @param response		The server response.
+	 * @return				The committed offset, or -1 on failure.
+	 */
+	private long readCommittedOffset(TransferSession.Response response)
+	{
+		if (response.code != 200)
+		{
+			Log.e(Transfer.TAG, "Upload rejected: "+response.code);
+			return -1;
+		}
+		readCommittedEventID(response.getHeader(COMMITTED_EVENT_HEADER));
+		
+		try
+		{
+			return response.body == null ? -1 : Long.parseLong(response.body.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			Log.e(Transfer.TAG, "Invalid upload offset: "+e.getMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * This method uploads, in a single small POST, the events of the urgent lane detectors that
+	 * neither lane has acknowledged yet, and records the urgent lane watermark.  The bulk lane
+	 * still uploads these events later (the server ignores event IDs it already stored, and does
+	 * not count the urgent lane in the committed event ID), and it alone deletes events.
+	 * 
+	 * @param detectors		The urgent lane detectors.
+	 * @param maxEvents		The maximum number of events per upload.
+	 * @return				The number of events uploaded, or -1 on failure.
+	 */
+	public int pushUrgentEvents(String[] detectors, int maxEvents)
+	{
+		// Write any queued events so the urgent ones are included
+		if (!EventSink.getInstance(context).flush(FLUSH_TIMEOUT))
+			Log.w(Transfer.TAG, "Timed out waiting for queued events to be written");
+		
+		long bulkID = EventExporter.getLastAcknowledgedID(context);
+		long urgentID = WatermarkManager.getRecordedWatermark(context, UrgentTransfer.WATERMARK_URI);
+		if (bulkID < 0 || urgentID < 0)
+			return -1;
+		long afterID = Math.max(bulkID, urgentID);
+		EventExporter exporter = new EventExporter(context);
+		if (!exporter.hasEvents(afterID, detectors))
+			return 0;
+		
+		try
+		{
+			if (!openUpload(UrgentTransfer.LANE_URGENT+"_"+EventExporter.getFileName(Transfer.TRANSFER_FORMAT), UrgentTransfer.LANE_URGENT))
+				return -1;
+			if (!exporter.export(EventExporter.createWriter(Transfer.TRANSFER_FORMAT, body), 0, getDeviceID(), afterID, Long.MAX_VALUE,
+					detectors, maxEvents))
+				return -1;
+			if (!finishUpload())
+				return -1;
+		}
+		catch (IOException e)
+		{
+			Log.e(Transfer.TAG, "Error writing events: "+e.getMessage());
+			return -1;
+		}
+		finally
+		{
+			abortUpload();
+		}
+		
+		logLatency(UrgentTransfer.LANE_URGENT, afterID, exporter.getLastEventID(), detectors);
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(WatermarkManager.advanceWatermark(UrgentTransfer.WATERMARK_URI, exporter.getLastEventID(), System.currentTimeMillis()));
+		WatermarkManager.applyBatch(context, operations);
+		return (int) exporter.getEventCount();
+	}
+	
+	/**
+	 * This method logs the latency of the events acknowledged by an upload: the time from their
+	 * detection to the acknowledgment, on average and for the oldest one.
+	 * 
+	 * @param lane				The upload lane.
+	 * @param afterID			The last event ID acknowledged before the upload.
+	 * @param acknowledgedID	The last event ID acknowledged by the upload.
+	 * @param detectors			The detectors uploaded (null for all).
+	 */
+	private void logLatency(String lane, long afterID, long acknowledgedID, String[] detectors)
+	{
+		if (acknowledgedID <= afterID)
+			return;
+		
+		String selection = DroidWatchProvider.Events._ID+" > "+afterID+" AND "+EventExporter.getSelection(detectors);
+		String[] selectionArgs = EventExporter.getSelectionArgs(acknowledgedID + 1, detectors);
+		String[] projection = new String[]{"COUNT(*)", "AVG("+DroidWatchProvider.Events.DETECTED+")", "MIN("+DroidWatchProvider.Events.DETECTED+")"};
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(DroidWatchProvider.Events.CONTENT_URI, projection, selection, selectionArgs, null);
+		}
+		catch(Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to query events table: "+e.getMessage());
+			return;
+		}
+		if (cursor == null)
+			return;
+		
+		// Detection dates are in seconds
+		if (cursor.moveToFirst() && cursor.getLong(0) > 0)
+		{
+			long now = System.currentTimeMillis() / 1000;
+			Log.i(Transfer.TAG, "Lane "+lane+": "+cursor.getLong(0)+" events acknowledged, latency mean "+(now - (long) cursor.getDouble(1))+
+					" s, max "+(now - cursor.getLong(2))+" s");
+		}
+		cursor.close();
+	}
+	
+	/**
+	 * This method reads the highest event ID the central server has durably committed for the
+	 * device, when the response names it.
+	 * 
+	 * @param committed	The committed event header (null if absent).
+	 */
+	private void readCommittedEventID(String committed)
+	{
+		if (committed == null)
+			return;
+		try
+		{
+			committedEventID = Long.parseLong(committed.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			Log.e(Transfer.TAG, "Invalid committed event ID: "+committed);
+		}
+	}
+	
+	/**
+	 * This method turns the event ID committed by the server into the acknowledged event ID of
+	 * the transfer.  When every exported event was committed, the whole range covered by the
+	 * transfer is acknowledged (including IDs evicted before the export); otherwise only up to
+	 * the committed ID.
+	 * 
+	 * @param lastExportedID	The last event ID exported by the transfer.
+	 * @param beforeID			The first event ID not covered by the transfer.
+	 * @return					The acknowledged event ID.
+	 */
+	private long getAcknowledgedID(long lastExportedID, long beforeID)
+	{
+		if (committedEventID >= lastExportedID)
+			return beforeID - 1;
+		Log.w(Transfer.TAG, "Server committed events up to "+committedEventID+" of "+lastExportedID);
+		return committedEventID;
+	}
+	
+	/**
+	 * This method retrieves the last event ID acknowledged by the server for the transfer.
+	 * 
+	 * @return	The acknowledged event ID, or -1 if none (database snapshots are acknowledged whole).
+	 */
+	private long getTransferAcknowledgedID()
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(transfersUri, new String[]{DroidWatchProvider.Transfers.LAST_EVENT_ID},
+					DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)}, null);
+		}
+		catch(Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(Transfer.TAG, "Unable to query transfers table");
+			return -1;
+		}
+		
+		long acknowledgedID = -1;
+		if (cursor.moveToFirst() && !cursor.isNull(0))
+			acknowledgedID = cursor.getLong(0);
+		cursor.close();
+		return acknowledgedID;
+	}
+	
+	/**
+	 * This method records the last offset acknowledged by the server in the transfer.
+	 * 
+	 * @param offset	The committed offset.
+	 */
+	private void recordUploadOffset(long offset)
+	{
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.UPLOAD_OFFSET, offset);
+		context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
+	}
+	
+	/**
+	 * This method deletes the payload file of the transfer.
+	 */
+	private void deletePayload()
+	{
+		File payload = getPayloadFile();
+		if (payload.exists() && !payload.delete())
+			Log.w(Transfer.TAG, "Unable to delete payload: "+payload.getName());
+	}
+	
+	/**
+	 * This method returns the payload file of the transfer.
+	 * 
+	 * @return	The payload file.
+	 */
+	private File getPayloadFile()
+	{
+		return new File(context.getFilesDir(), "transfer_"+transferID+PAYLOAD_EXTENSION);
+	}
+
+	/**
+	 * This method performs a wipe of the local DroidWatch app database after a successful transfer.
+	 * 
+	 * @return The transfer status.
+	 */
+	public boolean wipeDatabase()
+	{
+		// Retire the event partitions covered by the transfer (older than the one it started)
+		long fileSizeBefore = getDatabaseFileSize();
+		long partition = getTransferPartition();
+		if (partition < 0)
+			return false;
+		
+		// Uploaded events are only deleted up to the ID acknowledged by the server (a partition is
+		// retired once the first event ID of the next one is past it)
+		String selection = DroidWatchProvider.Partitions._ID+" < ?";
+		long acknowledgedID = getTransferAcknowledgedID();
+		if (acknowledgedID >= 0)
+			selection += " AND (SELECT MIN(n."+DroidWatchProvider.Partitions.FIRST_EVENT_ID+") FROM "+DroidWatchDatabase.PARTITIONS_TABLE+" n WHERE n."+
+					DroidWatchProvider.Partitions._ID+" > "+DroidWatchDatabase.PARTITIONS_TABLE+"."+DroidWatchProvider.Partitions._ID+") <= "+(acknowledgedID + 1);
+		int deleteCount = context.getContentResolver().delete(partitionsUri, selection, new String[]{String.valueOf(partition)});
+		if (deleteCount < 0)
+			return false;
+		
+		// Delete the eviction summaries included in the snapshot (or in the sections upload)
+		context.getContentResolver().delete(evictionsUri, DroidWatchProvider.Evictions._ID+" <= (SELECT "+DroidWatchProvider.Transfers.SNAPSHOT_EVICTION_ID+
+				" FROM "+DroidWatchDatabase.TRANSFERS_TABLE+" WHERE "+DroidWatchProvider.Transfers._ID+" = ?)", new String[]{String.valueOf(transferID)});
+		
+		// Delete the hourly counts older than their retention (newer ones are uploaded again with every
+		// transfer, in the snapshot or in the sections upload)
+		if (ROLLUP_RETENTION > 0)
+		{
+			String[] hourArgs = new String[]{String.valueOf(System.currentTimeMillis() - ROLLUP_RETENTION)};
+			context.getContentResolver().delete(rollupsUri, DroidWatchProvider.Rollups.HOUR+" < ?", hourArgs);
+			context.getContentResolver().delete(logcatRollupsUri, DroidWatchProvider.LogcatRollups.HOUR+" < ?", hourArgs);
+		}
+		
+		// Mark transfer as complete
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchDatabase.TRANSFERS_COMPLETED_COLUMN, 1);
+		values.put(DroidWatchProvider.Transfers.FILE_SIZE_BEFORE, fileSizeBefore);
+		int updateCount = context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
+		if (updateCount <= 0)
+			return false;
+		
+		// Shrink the file in the background
+		new Thread(new Runnable()
+		{
+			public void run()
+			{
+				compactDatabase();
+			}
+		}, "DatabaseCompaction").start();
+		return true;
+	}
+	
+	/**
+	 * This method returns the free pages left by the wipe to the file system, one slice at a time
+	 * so inserts are not blocked, and records the resulting file size in the transfer.
+	 */
+	private void compactDatabase()
+	{
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Vacuum.PAGES, VACUUM_SLICE_PAGES);
+		try
+		{
+			while (context.getContentResolver().update(vacuumUri, values, null, null) > 0)
+				Thread.sleep(VACUUM_SLICE_PAUSE);
+		}
+		catch (Exception e)
+		{
+			Log.e(Transfer.TAG, "Unable to compact database: "+e.getMessage());
+		}
+		
+		values = new ContentValues();
+		values.put(DroidWatchProvider.Transfers.FILE_SIZE_AFTER, getDatabaseFileSize());
+		context.getContentResolver().update(transfersUri, values, DroidWatchProvider.Transfers._ID+" = ?", new String[]{String.valueOf(transferID)});
+	}
+	
+	/**
+	 * This method returns the size of the DroidWatch database file.
+	 * 
+	 * @return	The file size (bytes).
+	 */
+	private long getDatabaseFileSize()
+	{
+		return context.getDatabasePath(filename).length();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.droidwatch;
+
+/**
+ * TransferScheduler.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * This class schedules the retries of failed transfers.  Retries back off exponentially with
+ * random jitter, and are not attempted while no network is available: the receiver is enabled
+ * instead, and starts a transfer as soon as connectivity returns.
+ **/
+public class TransferScheduler extends BroadcastReceiver
+{
+	// Initialize constants and variables
+	public static final String TAG = "TransferScheduler";
+	private static final int RETRY_REQUEST_CODE = 1;
+	private static final int MAX_BACKOFF_SHIFT = 16;
+	private static final Random random = new Random();
+
+	/**
+	 * This method handles connectivity changes while a transfer waits for a network.
+	 *
+	 * @param context	The application's context.
+	 * @param intent	The broadcasted intent.
+	 */
+	@Override
+	public void onReceive(Context context, Intent intent)
+	{
+		if (!isNetworkAvailable(context))
+			return;
+
+		Log.i(TAG, "Network available, starting transfer");
+		setWaiting(context, false);
+		context.sendBroadcast(new Intent(context, UrgentTransfer.class));
+		context.sendBroadcast(new Intent(context, Transfer.class));
+	}
+
+	/**
+	 * This method checks whether a network connection is available.
+	 *
+	 * @param context	The application's context.
+	 * @return			True if connected, false otherwise.
+	 */
+	public static boolean isNetworkAvailable(Context context)
+	{
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = cm.getActiveNetworkInfo();
+		return network != null && network.isConnected();
+	}
+
+	/**
+	 * This method enables or disables the connectivity receiver, so connectivity changes only
+	 * wake the app while a transfer is waiting for a network.
+	 *
+	 * @param context	The application's context.
+	 * @param waiting	True to start a transfer when connectivity returns, false otherwise.
+	 */
+	public static void setWaiting(Context context, boolean waiting)
+	{
+		int state = waiting ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+		context.getPackageManager().setComponentEnabledSetting(new ComponentName(context, TransferScheduler.class), state,
+				PackageManager.DONT_KILL_APP);
+	}
+
+	/**
+	 * This method schedules the retry of a failed transfer.  The delay doubles with every
+	 * consecutive failure, and a random delay of up to half of it is removed so devices do not
+	 * retry in step.  No retry is scheduled once the delay reaches the transfer interval, since
+	 * the regular alarm fires first.
+	 *
+	 * @param context	The application's context.
+	 * @param failures	The number of consecutive failed attempts.
+	 */
+	public static void scheduleRetry(Context context, int failures)
+	{
+		if (Transfer.RETRY_DELAY <= 0 || failures <= 0)
+			return;
+
+		long delay = Transfer.RETRY_DELAY << Math.min(failures - 1, MAX_BACKOFF_SHIFT);
+		if (Transfer.TRANSFER_INTERVAL > 0 && delay >= Transfer.TRANSFER_INTERVAL)
+			return;
+		delay -= (long) (random.nextDouble() * (delay / 2));
+
+		Log.i(TAG, "Retrying transfer in "+delay+" ms (failure "+failures+")");
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		am.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + delay, getRetryIntent(context, PendingIntent.FLAG_UPDATE_CURRENT));
+	}
+
+	/**
+	 * This method cancels a scheduled retry and stops waiting for connectivity.
+	 *
+	 * @param context	The application's context.
+	 */
+	public static void cancelRetry(Context context)
+	{
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		am.cancel(getRetryIntent(context, PendingIntent.FLAG_CANCEL_CURRENT));
+		setWaiting(context, false);
+	}
+
+	/**
+	 * This method builds the intent of the retry alarm (separate from the regular transfer alarm).
+	 *
+	 * @param context	The application's context.
+	 * @param flags		The pending intent flags.
+	 * @return			The pending intent.
+	 */
+	private static PendingIntent getRetryIntent(Context context, int flags)
+	{
+		Intent intent = new Intent(context, Transfer.class);
+		return PendingIntent.getBroadcast(context, RETRY_REQUEST_CODE, intent, flags);
+	}
+}
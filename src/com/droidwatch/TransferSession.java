@@ -0,0 +1,261 @@
+package com.droidwatch;
+
+/**
+ * TransferSession.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.HttpsURLConnection;
+import android.util.Log;
+
+/**
+ * This class sends the sequential requests of a transfer to the central server over kept-alive
+ * connections.  Every response is read to the end and closed rather than disconnected, so its
+ * TLS connection goes back to the platform pool and the next request reuses it without a new
+ * handshake.  A request that fails on a reused connection (closed by the server while idle) is
+ * sent again once on a new connection.  Request latencies are recorded, split by new and reused
+ * connections.  Without a transport, requests go over plain HTTP (to a local stand-in server in
+ * tests) and are all counted as new.
+ **/
+public class TransferSession
+{
+	// Initialize constants and variables
+	public static final String TAG = "TransferSession";
+	private static final int BUFFER_SIZE = 1024;
+
+	private final URL url;
+	private final SecureTransport transport;
+	private long requestStart = 0;
+	private int requestHandshakes = 0;
+	private int newCount = 0;
+	private int reusedCount = 0;
+	private long newTime = 0;
+	private long reusedTime = 0;
+
+	/** This class holds a response of the central server. **/
+	public static final class Response
+	{
+		public final int code;
+		public final String body;
+		private final HashMap<String, String> headers = new HashMap<String, String>();
+
+		/**
+		 * Constructor used to read a response.
+		 *
+		 * @param request	The completed request.
+		 * @throws IOException
+		 */
+		private Response(HttpURLConnection request) throws IOException
+		{
+			code = request.getResponseCode();
+			for (Map.Entry<String, List<String>> header : request.getHeaderFields().entrySet())
+			{
+				if (header.getKey() != null && !header.getValue().isEmpty())
+					headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+			}
+			body = code == 200 ? new BufferedReader(new InputStreamReader(request.getInputStream(), "US-ASCII"), BUFFER_SIZE).readLine() : null;
+		}
+
+		/**
+		 * This method returns a response header.
+		 *
+		 * @param name	The header name (any case).
+		 * @return		The header value, or null if absent.
+		 */
+		public String getHeader(String name)
+		{
+			return headers.get(name.toLowerCase());
+		}
+	}
+
+	/**
+	 * Constructor used to set the server and its transport.
+	 *
+	 * @param url			The URL of the central server.
+	 * @param transport		The TLS transport (null for plain HTTP).
+	 */
+	public TransferSession(URL url, SecureTransport transport)
+	{
+		this.url = url;
+		this.transport = transport;
+	}
+
+	/**
+	 * This method opens a request to the central server.  It must be closed with close().
+	 *
+	 * @return	The request.
+	 * @throws IOException
+	 */
+	public HttpURLConnection open() throws IOException
+	{
+		HttpURLConnection request = (HttpURLConnection) url.openConnection();
+		if (transport != null)
+			((HttpsURLConnection) request).setSSLSocketFactory(transport.getSocketFactory());
+		request.setUseCaches(false);
+		request.setRequestProperty("Connection", "Keep-Alive");
+		requestStart = System.currentTimeMillis();
+		requestHandshakes = transport != null ? transport.getHandshakeCount() : 0;
+		return request;
+	}
+
+	/**
+	 * This method ends a request and records its latency.  A completed request releases its
+	 * connection to the pool, a failed one closes it.
+	 *
+	 * @param request	The request.
+	 * @param failed	True if the request failed, false otherwise.
+	 */
+	public void close(HttpURLConnection request, boolean failed)
+	{
+		if (failed)
+			request.disconnect();
+		else
+			drain(request);
+
+		long latency = System.currentTimeMillis() - requestStart;
+		if (isReused())
+		{
+			reusedCount++;
+			reusedTime += latency;
+		}
+		else
+		{
+			newCount++;
+			newTime += latency;
+		}
+		Log.d(TAG, "Request "+(newCount + reusedCount)+": "+latency+" ms"+(isReused() ? " (reused connection)" : " (new connection)"));
+	}
+
+	/**
+	 * This method sends a request with an optional body and reads its response.
+	 *
+	 * @param method		The request method.
+	 * @param properties	The request headers.
+	 * @param body			The body buffer (null for none).
+	 * @param length		The body length.
+	 * @return				The response.
+	 * @throws IOException
+	 */
+	public Response send(String method, Map<String, String> properties, byte[] body, int length) throws IOException
+	{
+		boolean retried = false;
+		while (true)
+		{
+			boolean pooled = newCount + reusedCount > 0;
+			HttpURLConnection request = open();
+			try
+			{
+				request.setRequestMethod(method);
+				request.setDoInput(true);
+				for (Map.Entry<String, String> property : properties.entrySet())
+					request.setRequestProperty(property.getKey(), property.getValue());
+				if (body != null)
+				{
+					request.setDoOutput(true);
+					request.setFixedLengthStreamingMode(length);
+					OutputStream os = request.getOutputStream();
+					os.write(body, 0, length);
+					os.close();
+				}
+				Response response = new Response(request);
+				close(request, false);
+				return response;
+			}
+			catch (IOException e)
+			{
+				// A pooled connection may have been closed by the server while idle
+				boolean stale = pooled && isReused() && !retried;
+				close(request, true);
+				if (!stale)
+					throw e;
+				Log.w(TAG, "Connection closed by the server, retrying on a new connection");
+				retried = true;
+			}
+		}
+	}
+
+	/**
+	 * This method logs the number and mean latency of the requests on new and reused connections.
+	 */
+	public void report()
+	{
+		if (newCount + reusedCount == 0)
+			return;
+		Log.i(TAG, (newCount + reusedCount)+" requests: "+newCount+" on new connections (mean "+(newCount > 0 ? newTime / newCount : 0)+
+				" ms), "+reusedCount+" on reused connections (mean "+(reusedCount > 0 ? reusedTime / reusedCount : 0)+" ms)");
+	}
+
+	/**
+	 * This method checks whether the current request ran on a pooled connection (no handshake
+	 * took place since it was opened).
+	 *
+	 * @return	True if reused, false otherwise.
+	 */
+	private boolean isReused()
+	{
+		return transport != null && transport.getHandshakeCount() == requestHandshakes;
+	}
+
+	/**
+	 * This method reads the rest of a response and closes it, so its connection can be reused.
+	 *
+	 * @param request	The completed request.
+	 */
+	private static void drain(HttpURLConnection request)
+	{
+		InputStream input = null;
+		try
+		{
+			input = request.getResponseCode() < 400 ? request.getInputStream() : request.getErrorStream();
+			if (input == null)
+				return;
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (input.read(buffer) >= 0)
+				;
+		}
+		catch (IOException e)
+		{
+			request.disconnect();
+		}
+		finally
+		{
+			if (input != null)
+			{
+				try
+				{
+					input.close();
+				}
+				catch (IOException e)
+				{
+					Log.w(TAG, "Unable to close response: "+e.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.droidwatch;
+
+/**
+ * UrgentTransfer.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * This class runs the urgent upload lane: events of high-priority detectors (calls and messages
+ * by default) are uploaded in small batches shortly after they are detected, instead of waiting
+ * for the bulk lane on the transfer interval.  The first urgent event inserted arms a one-shot
+ * alarm, so the lane costs nothing while no urgent event is detected.
+ **/
+public class UrgentTransfer extends BroadcastReceiver
+{
+	// Initialize constants and variables
+	public static final String TAG = "UrgentTransfer";
+	public static final String LANE_URGENT = "urgent";
+	public static final String LANE_BULK = "bulk";
+	public static final Uri WATERMARK_URI = Uri.parse("lane://"+LANE_URGENT);
+	public static String[] DETECTORS = new String[0];
+	public static long LATENCY = 1000 * 60;
+	public static int BATCH_SIZE = 200;
+	private static HashSet<String> detectorSet = new HashSet<String>();
+	private static final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * This method sets the urgent lane properties.
+	 *
+	 * @param detectors		The urgent detectors (comma-separated detector names, empty to disable the lane).
+	 * @param latency		Maximum time an urgent event waits before its upload starts (milliseconds).
+	 * @param batchSize		Maximum number of events per upload.
+	 */
+	public static void setLaneProperties(String detectors, long latency, int batchSize)
+	{
+		HashSet<String> names = new HashSet<String>();
+		for (String name : detectors.split(","))
+		{
+			if (name.trim().length() > 0)
+				names.add(name.trim());
+		}
+		DETECTORS = names.toArray(new String[names.size()]);
+		detectorSet = names;
+		LATENCY = latency;
+		BATCH_SIZE = batchSize;
+	}
+
+	/**
+	 * This method arms the urgent lane alarm when an urgent event is inserted, unless it is
+	 * already armed.  The provider calls it for every event it inserts, whichever path the
+	 * event took (the event sink, a watcher batch, or a bulk insert).
+	 *
+	 * @param context	The application context.
+	 * @param values	The event values.
+	 */
+	public static void onEventInserted(Context context, ContentValues values)
+	{
+		if (detectorSet.isEmpty() || !detectorSet.contains(values.getAsString(DroidWatchDatabase.DETECTOR_COLUMN)))
+			return;
+		if (scheduled.compareAndSet(false, true))
+			schedule(context, LATENCY);
+	}
+
+	/**
+	 * This method uploads the waiting urgent events.
+	 *
+	 * @param context	The application's context.
+	 * @param intent	The broadcasted intent.
+	 */
+	@Override
+	public void onReceive(Context context, Intent intent)
+	{
+		scheduled.set(false);
+		if (DETECTORS.length == 0)
+			return;
+
+		// The connectivity receiver starts both lanes when a network returns
+		if (!TransferScheduler.isNetworkAvailable(context))
+		{
+			TransferScheduler.setWaiting(context, true);
+			return;
+		}
+
+		TransferManager transferManager = new TransferManager(context.getApplicationContext());
+		if (!transferManager.getConnection(Transfer.SSL_CERT_NAME, Transfer.SERVER_URL))
+			return;
+		int count = transferManager.pushUrgentEvents(DETECTORS, BATCH_SIZE);
+		transferManager.reportTransport();
+
+		// Send the next batch right away if this one was full, or retry a failed one later
+		if (count >= BATCH_SIZE && scheduled.compareAndSet(false, true))
+			schedule(context, 0);
+		else if (count < 0 && scheduled.compareAndSet(false, true))
+		{
+			Log.w(TAG, "Urgent upload failed, retrying");
+			schedule(context, LATENCY);
+		}
+	}
+
+	/**
+	 * This method sets the one-shot alarm of the urgent lane.
+	 *
+	 * @param context	The application context.
+	 * @param delay		The delay before the upload (milliseconds).
+	 */
+	private static void schedule(Context context, long delay)
+	{
+		Intent intent = new Intent(context, UrgentTransfer.class);
+		PendingIntent pi = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		am.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + delay, pi);
+	}
+
+	/**
+	 * This method cancels the urgent lane alarm.
+	 *
+	 * @param context	The application context.
+	 */
+	public static void cancelAlarm(Context context)
+	{
+		Intent intent = new Intent(context, UrgentTransfer.class);
+		PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		am.cancel(sender);
+		scheduled.set(false);
+	}
+}
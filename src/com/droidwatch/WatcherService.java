@@ -32,7 +32,9 @@ import android.content.IntentFilter.MalformedMimeTypeException;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import android.provider.CallLog;
 import android.provider.ContactsContract;
 import android.provider.MediaStore;
@@ -64,6 +66,7 @@ public class WatcherService extends Service
     private SMSOutgoingWatcher 		smsObserver;					//Detects changes to SMS message log
     private ContactWatcher 			contactWatcher;					//Detects changes to contacts list
     private GalleryWatcher			photoObserver;					//Detects changes to the gallery images
+    private HandlerThread			observerThread;					//Runs the content observer scans
     
     /**
      * This method is required for services.
@@ -114,6 +117,8 @@ public class WatcherService extends Service
 		}
 		
 		// Start Watchers
+		setupEventSink(properties);
+		setupStorageGovernor(properties);
 		setupRetrievers(properties);
 		setupBroadcastReceivers(properties);
 		setupContentObservers(properties);
@@ -126,6 +131,39 @@ public class WatcherService extends Service
         //lm.requestLocationUpdates(bestProvider, 180000, 10, pendingIntent);	
 	}
 
+	/**
+	 * This method starts the queue used to write detected events.
+	 * 
+	 * @param properties 
+	 */
+	private void setupEventSink(Properties properties)
+	{
+		int queueCapacity		= Integer.parseInt(properties.getProperty("event_queue_capacity"));
+		long queueMaxLatency	= Long.parseLong(properties.getProperty("event_queue_max_latency"));
+		
+		EventSink.setQueueProperties(queueCapacity, queueMaxLatency);
+		EventSink.getInstance(getApplicationContext());
+	}
+
+	/**
+	 * This method sets the storage budget of the DroidWatch database.
+	 * 
+	 * @param properties
+	 */
+	private void setupStorageGovernor(Properties properties)
+	{
+		long maxBytes			= Long.parseLong(properties.getProperty("storage_max_bytes"));
+		long maxRows			= Long.parseLong(properties.getProperty("storage_max_rows"));
+		String evictionOrder	= properties.getProperty("storage_eviction_order", "");
+		
+		long rollupRetention	= Long.parseLong(properties.getProperty("rollup_retention"));
+		int compressionThreshold	= Integer.parseInt(properties.getProperty("text_compression_threshold"));
+		
+		StorageGovernor.setStorageProperties(maxBytes, maxRows, evictionOrder);
+		TransferManager.setRollupRetention(rollupRetention);
+		TextCompressor.setThreshold(compressionThreshold);
+	}
+
 	/**
 	 * This method starts miscellaneous tasks.
 	 * 
@@ -147,10 +185,14 @@ public class WatcherService extends Service
 	 */
 	private void setupContentObservers(Properties properties)
 	{	
-		Handler callLogHandler = new Handler();
-		Handler smsHandler = new Handler();
-		Handler contactsHandler = new Handler();
-		Handler photoHandler = new Handler();
+		// The observers scan their providers and write each batch with its watermark in one
+		// transaction, so they run on a background thread rather than the main thread
+		observerThread = new HandlerThread("DroidWatchObservers", Process.THREAD_PRIORITY_BACKGROUND);
+		observerThread.start();
+		Handler callLogHandler = new Handler(observerThread.getLooper());
+		Handler smsHandler = new Handler(observerThread.getLooper());
+		Handler contactsHandler = new Handler(observerThread.getLooper());
+		Handler photoHandler = new Handler(observerThread.getLooper());
 		
 		// Watch the Call Log
 		if (Long.parseLong(properties.getProperty("call_log_interval")) > 0)
@@ -264,6 +306,14 @@ public class WatcherService extends Service
 		long transferInterval		= Long.parseLong(properties.getProperty("transfer_interval"));
 		String sslCertName			= properties.getProperty("ssl_cert_name");
 		String serverURL			= properties.getProperty("server_url");
+		String transferFormat		= properties.getProperty("transfer_format", Transfer.FORMAT_EVENTS);
+		int transferCompression		= Integer.parseInt(properties.getProperty("transfer_compression_level"));
+		int transferChunkSize		= Integer.parseInt(properties.getProperty("transfer_chunk_size"));
+		long transferRetryDelay		= Long.parseLong(properties.getProperty("transfer_retry_delay"));
+		String urgentDetectors		= properties.getProperty("transfer_urgent_detectors", "");
+		long urgentLatency			= Long.parseLong(properties.getProperty("transfer_urgent_latency"));
+		int urgentBatchSize			= Integer.parseInt(properties.getProperty("transfer_urgent_batch_size"));
+		int outboxBatchSize			= Integer.parseInt(properties.getProperty("transfer_outbox_batch_size"));
 
 		// Get App logs
 		logcatWatcher = new LogcatWatcher();
@@ -294,6 +344,12 @@ public class WatcherService extends Service
 		transfer = new Transfer();
 		transfer.setInterval(transferInterval);
 		transfer.setConnectionProperties(sslCertName, serverURL);
+		transfer.setFormat(transferFormat);
+		transfer.setCompressionLevel(transferCompression);
+		transfer.setChunkSize(transferChunkSize);
+		transfer.setRetryDelay(transferRetryDelay);
+		UrgentTransfer.setLaneProperties(urgentDetectors, urgentLatency, urgentBatchSize);
+		OutboxSpooler.setBatchSize(outboxBatchSize);
 		transfer.setAlarm(getApplicationContext(), alarmManager);
 	}
 
@@ -327,6 +383,9 @@ public class WatcherService extends Service
 		
 		if (photoObserver != null)
 			getContentResolver().unregisterContentObserver(photoObserver);
+		
+		if (observerThread != null)
+			observerThread.quit();
 	}
 
 	/**
@@ -370,6 +429,9 @@ public class WatcherService extends Service
 			mmsOutgoingWatcher.cancelAlarm(getApplicationContext(), alarmManager);
 		
 		if (transfer != null)
+		{
 			transfer.cancelAlarm(getApplicationContext(), alarmManager);
+			UrgentTransfer.cancelAlarm(getApplicationContext());
+		}
 	}	
 }
\ No newline at end of file
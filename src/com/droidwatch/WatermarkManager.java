@@ -0,0 +1,216 @@
+package com.droidwatch;
+
+/**
+ * WatermarkManager.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/** This class reads and advances the high watermark (last seen row) of each watched content provider. **/
+public class WatermarkManager
+{
+	// Initialize constants and variables
+	public static final String TAG = "WatermarkManager";
+	private static final Uri watermarksUri = DroidWatchProvider.Watermarks.CONTENT_URI;
+	private static final long NO_WATERMARK = -2;
+
+	/**
+	 * This method returns the last seen row ID of a watched content provider.  A source without a
+	 * watermark is checkpointed at its newest row, so existing rows are not logged as new.
+	 *
+	 * @param context	The application context.
+	 * @param source	The watched content provider URI.
+	 * @return			The last seen row ID, or -1 if it could not be determined.
+	 */
+	public static long getWatermark(Context context, Uri source)
+	{
+		long lastID = queryWatermark(context, source);
+		if (lastID != NO_WATERMARK)
+			return lastID;
+
+		// Checkpoint a new source at its newest row
+		lastID = getNewestRowID(context, source);
+		if (lastID < 0)
+			return -1;
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(advanceWatermark(source, lastID, System.currentTimeMillis()));
+		if (!applyBatch(context, operations))
+			return -1;
+		return lastID;
+	}
+
+	/**
+	 * This method returns the last recorded ID of a source without checkpointing it.
+	 *
+	 * @param context	The application context.
+	 * @param source	The source URI.
+	 * @return			The last recorded ID (0 if none), or -1 if it could not be determined.
+	 */
+	public static long getRecordedWatermark(Context context, Uri source)
+	{
+		long lastID = queryWatermark(context, source);
+		return lastID == NO_WATERMARK ? 0 : lastID;
+	}
+
+	/**
+	 * This method returns the date of the newest row seen in a watched content provider.  Sources
+	 * that reuse row IDs (or update rows in place) are also checked for rows newer than this date.
+	 *
+	 * @param context	The application context.
+	 * @param source	The watched content provider URI.
+	 * @return			The last seen date (epoch format, 0 if none), or -1 if it could not be determined.
+	 */
+	public static long getWatermarkDate(Context context, Uri source)
+	{
+		long lastDate = queryWatermark(context, source, DroidWatchProvider.Watermarks.LAST_DATE);
+		return lastDate == NO_WATERMARK ? 0 : lastDate;
+	}
+
+	/**
+	 * This method queries the watermark of a source.
+	 *
+	 * @param context	The application context.
+	 * @param source	The source URI.
+	 * @return			The last recorded ID, NO_WATERMARK if none, or -1 on failure.
+	 */
+	private static long queryWatermark(Context context, Uri source)
+	{
+		return queryWatermark(context, source, DroidWatchProvider.Watermarks.LAST_ID);
+	}
+
+	/**
+	 * This method queries one column of the watermark of a source.
+	 *
+	 * @param context	The application context.
+	 * @param source	The source URI.
+	 * @param column	The watermark column (last ID or last date).
+	 * @return			The recorded value, NO_WATERMARK if none, or -1 on failure.
+	 */
+	private static long queryWatermark(Context context, Uri source, String column)
+	{
+		// Query the DroidWatch watermarks table
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(watermarksUri, new String[]{column},
+					DroidWatchProvider.Watermarks.SOURCE+" = ?", new String[]{source.toString()}, null);
+		}
+		catch(Exception e)
+		{
+			Log.e(TAG, "Unable to query watermarks table: "+e.getMessage());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(TAG, "Unable to query watermarks table");
+			return -1;
+		}
+
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getLong(0) : NO_WATERMARK;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method returns the ID of the newest row of a watched content provider.
+	 *
+	 * @param context	The application context.
+	 * @param source	The watched content provider URI.
+	 * @return			The newest row ID (0 if empty), or -1 on failure.
+	 */
+	private static long getNewestRowID(Context context, Uri source)
+	{
+		Cursor cursor = null;
+		try
+		{
+			cursor = context.getContentResolver().query(source, new String[]{BaseColumns._ID}, null, null, BaseColumns._ID+" DESC");
+		}
+		catch(Exception e)
+		{
+			Log.e(TAG, "Unable to query URI: "+source.toString());
+			return -1;
+		}
+		if (cursor == null)
+		{
+			Log.e(TAG, "Unable to query URI: "+source.toString());
+			return -1;
+		}
+
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * This method builds the operation that advances the watermark of a watched content provider.
+	 * It is meant to be applied in the same batch as the inserts of the rows it covers.
+	 *
+	 * @param source	The watched content provider URI.
+	 * @param lastID	The last seen row ID.
+	 * @param lastDate	The date of the last seen row (epoch format).
+	 * @return			The watermark operation.
+	 */
+	public static ContentProviderOperation advanceWatermark(Uri source, long lastID, long lastDate)
+	{
+		ContentValues values = new ContentValues();
+		values.put(DroidWatchProvider.Watermarks.SOURCE, source.toString());
+		values.put(DroidWatchProvider.Watermarks.LAST_ID, lastID);
+		values.put(DroidWatchProvider.Watermarks.LAST_DATE, lastDate);
+		return ContentProviderOperation.newInsert(watermarksUri).withValues(values).build();
+	}
+
+	/**
+	 * This method applies a batch of inserts and its watermark in a single transaction.
+	 *
+	 * @param context		The application context.
+	 * @param operations	The operations to apply.
+	 * @return				True if the batch was applied, false otherwise.
+	 */
+	public static boolean applyBatch(Context context, ArrayList<ContentProviderOperation> operations)
+	{
+		try
+		{
+			context.getContentResolver().applyBatch(DroidWatchProvider.AUTHORITY, operations);
+		}
+		catch(Exception e)
+		{
+			Log.e(TAG, "Unable to apply batch: "+e.getMessage());
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,126 @@
+package com.droidwatch;
+
+/**
+ * ChunkedUploadTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * This class uploads a payload in chunks to a local stand-in server that drops connections in
+ * the middle of chunks, and checks that the upload resumes from the committed offset and that
+ * the server assembles the payload intact.
+ **/
+public class ChunkedUploadTest extends TestCase
+{
+	private static final String TAG = "ChunkedUploadTest";
+	private static final int PAYLOAD_SIZE = 3 * 1024 * 1024 + 1234;
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int RESUME_CHUNKS = 10;
+
+	private StandInServer server;
+	private File file;
+	private byte[] payload;
+	private int chunkSize;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		chunkSize = Transfer.CHUNK_SIZE;
+		Transfer.CHUNK_SIZE = CHUNK_SIZE;
+		server = new StandInServer();
+		payload = new byte[PAYLOAD_SIZE];
+		new Random(17).nextBytes(payload);
+		file = File.createTempFile("payload", ".bin");
+		OutputStream output = new FileOutputStream(file);
+		try
+		{
+			output.write(payload);
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		Transfer.CHUNK_SIZE = chunkSize;
+		server.close();
+		file.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * This method drops the connection in the middle of every third chunk, and checks that the
+	 * upload completes with the payload intact.
+	 */
+	public void testDisconnects()
+	{
+		server.setDropEvery(3);
+		long offset = upload("disconnects");
+		assertEquals(PAYLOAD_SIZE, offset);
+		assertTrue(server.getDisconnects() > 0);
+		assertTrue(Arrays.equals(payload, server.getUpload("disconnects")));
+		Log.i(TAG, PAYLOAD_SIZE+" bytes in "+(PAYLOAD_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE+" chunks: "+server.getChunkRequests()+" chunk requests, "+
+				server.getDisconnects()+" disconnects, "+server.getWireBytes()+" bytes on the wire");
+	}
+
+	/**
+	 * This method drops every chunk after the first ones until the upload gives up, then checks
+	 * that the next upload only sends the chunks the server has not committed.
+	 */
+	public void testResume()
+	{
+		// The connection is lost for good after a few chunks: the upload gives up
+		server.setDropAfter(RESUME_CHUNKS);
+		assertEquals(-1, upload("resume"));
+		assertEquals(RESUME_CHUNKS * CHUNK_SIZE, server.getUpload("resume").length);
+
+		// The next transfer resumes at the committed offset
+		server.setDropAfter(-1);
+		int requests = server.getChunkRequests();
+		assertEquals(PAYLOAD_SIZE, upload("resume"));
+		assertEquals((PAYLOAD_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE - RESUME_CHUNKS, server.getChunkRequests() - requests);
+		assertTrue(Arrays.equals(payload, server.getUpload("resume")));
+	}
+
+	/**
+	 * This method uploads the payload in chunks without recording offsets in a transfer.
+	 *
+	 * @param uploadID	The upload ID.
+	 * @return			The committed offset, or -1 on failure.
+	 */
+	private long upload(String uploadID)
+	{
+		TransferManager manager = new TransferManager(null);
+		manager.setSession(new TransferSession(server.getURL(), null));
+		return manager.sendChunks(file, uploadID, "payload.bin", null, PAYLOAD_SIZE, false);
+	}
+}
@@ -0,0 +1,186 @@
+package com.droidwatch;
+
+/**
+ * ColumnarCodecTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * This class checks that events written by ColumnarEncoder are read back intact by
+ * ColumnarDecoder, and benchmarks the columnar format against gzip'd NDJSON: encoded size and
+ * encode/decode throughput.
+ **/
+public class ColumnarCodecTest extends TestCase
+{
+	private static final String TAG = "ColumnarCodecTest";
+	private static final int EVENT_COUNT = 20000;
+	private static final long FIRST_EVENT_ID = 100;
+	private static final String DEVICE_ID = "358240051111110";
+	private static final String[] COLUMNS = new String[]{DroidWatchProvider.Events._ID, DroidWatchProvider.Events.DETECTOR,
+			DroidWatchProvider.Events.DETECTED, DroidWatchProvider.Events.ACTION, DroidWatchProvider.Events.EVENT_DATE,
+			DroidWatchProvider.Events.DESCRIPTION, DroidWatchProvider.Events.ADDITIONAL_INFO};
+
+	private Object[][] rows;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		// The events as the events view returns them (detection dates are stored in seconds, and
+		// a few events have no occurrence date so that case round-trips too)
+		List<TestCorpus.Event> events = TestCorpus.createEvents(EVENT_COUNT, 21);
+		rows = new Object[EVENT_COUNT][];
+		for (int i = 0; i < EVENT_COUNT; i++)
+		{
+			TestCorpus.Event event = events.get(i);
+			long eventDate = event.values.getAsLong(DroidWatchDatabase.EVENT_DATE_COLUMN);
+			rows[i] = new Object[]{FIRST_EVENT_ID + i, event.values.getAsString(DroidWatchDatabase.DETECTOR_COLUMN), eventDate / 1000 + i % 60,
+					event.values.getAsString(DroidWatchDatabase.EVENT_ACTION_COLUMN), i % 50 == 0 ? null : Long.valueOf(eventDate),
+					event.description, event.additionalInfo};
+		}
+	}
+
+	/**
+	 * This method checks that every column of every event round-trips, along with the header
+	 * and the trailer.
+	 *
+	 * @throws IOException
+	 */
+	public void testRoundTrip() throws IOException
+	{
+		byte[] encoded = encode(Transfer.FORMAT_COLUMNAR);
+		ColumnarDecoder decoder = new ColumnarDecoder(new ByteArrayInputStream(encoded));
+		decoder.readHeader();
+		assertEquals(7, decoder.getTransferID());
+		assertEquals(DEVICE_ID, decoder.getDeviceID());
+		assertEquals(FIRST_EVENT_ID - 1, decoder.getAfterID());
+
+		int count = 0;
+		List<ColumnarDecoder.Event> batch;
+		while ((batch = decoder.readBatch()) != null)
+		{
+			for (ColumnarDecoder.Event event : batch)
+			{
+				Object[] row = rows[count++];
+				assertEquals(row[0], event.id);
+				assertEquals(row[1], event.detector);
+				assertEquals(row[2], event.detected);
+				assertEquals(row[3], event.action);
+				assertEquals(row[4], event.eventDate);
+				assertEquals(row[5], event.description);
+				assertEquals(row[6], event.additionalInfo);
+			}
+		}
+		assertEquals(EVENT_COUNT, count);
+		assertEquals(EVENT_COUNT, decoder.getEventCount());
+		assertEquals(FIRST_EVENT_ID + EVENT_COUNT - 1, decoder.getLastEventID());
+	}
+
+	/**
+	 * This method logs the raw and gzip'd size of both formats, and their encode throughput
+	 * (and the decode throughput of the columnar format).  The best of a few runs is kept.
+	 *
+	 * @throws IOException
+	 */
+	@LargeTest
+	public void testSizeAndThroughput() throws IOException
+	{
+		long jsonTime = Long.MAX_VALUE;
+		long columnarTime = Long.MAX_VALUE;
+		long decodeTime = Long.MAX_VALUE;
+		byte[] json = null;
+		byte[] columnar = null;
+		for (int run = 0; run < 5; run++)
+		{
+			long start = System.nanoTime();
+			json = encode(Transfer.FORMAT_EVENTS);
+			jsonTime = Math.min(jsonTime, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			columnar = encode(Transfer.FORMAT_COLUMNAR);
+			columnarTime = Math.min(columnarTime, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			ColumnarDecoder decoder = new ColumnarDecoder(new ByteArrayInputStream(columnar));
+			decoder.readHeader();
+			while (decoder.readBatch() != null)
+				;
+			decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+		}
+		int jsonGzip = gzip(json);
+		int columnarGzip = gzip(columnar);
+
+		Log.i(TAG, EVENT_COUNT+" events as NDJSON: "+json.length+" bytes, "+jsonGzip+" gzip'd, encoded in "+jsonTime / 1000000+" ms ("+
+				EVENT_COUNT * 1000000000L / jsonTime+" events/s)");
+		Log.i(TAG, EVENT_COUNT+" events as columnar: "+columnar.length+" bytes, "+columnarGzip+" gzip'd, encoded in "+columnarTime / 1000000+
+				" ms ("+EVENT_COUNT * 1000000000L / columnarTime+" events/s), decoded in "+decodeTime / 1000000+" ms ("+
+				EVENT_COUNT * 1000000000L / decodeTime+" events/s)");
+		assertTrue(columnar.length < json.length);
+		assertTrue(columnarGzip < jsonGzip);
+	}
+
+	/**
+	 * This method writes the events in an upload format.
+	 *
+	 * @param format	The transfer format.
+	 * @return			The encoded events.
+	 * @throws IOException
+	 */
+	private byte[] encode(String format) throws IOException
+	{
+		MatrixCursor cursor = new MatrixCursor(COLUMNS, EVENT_COUNT);
+		for (Object[] row : rows)
+			cursor.addRow(row);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		EventExporter.EventWriter writer = EventExporter.createWriter(format, output);
+		writer.writeHeader(7, DEVICE_ID, FIRST_EVENT_ID - 1);
+		while (cursor.moveToNext())
+			writer.writeEvent(cursor);
+		writer.writeTrailer(EVENT_COUNT, FIRST_EVENT_ID + EVENT_COUNT - 1);
+		cursor.close();
+		return output.toByteArray();
+	}
+
+	/**
+	 * This method returns the gzip'd size of a buffer.
+	 *
+	 * @param buffer	The buffer.
+	 * @return			The compressed size.
+	 * @throws IOException
+	 */
+	private static int gzip(byte[] buffer) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(output);
+		gzip.write(buffer);
+		gzip.close();
+		return output.size();
+	}
+}
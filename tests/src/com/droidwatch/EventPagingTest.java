@@ -0,0 +1,120 @@
+package com.droidwatch;
+
+/**
+ * EventPagingTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import com.droidwatch.DroidWatchProvider.Events;
+import com.droidwatch.DroidWatchProvider.Partitions;
+
+/** This class walks a large event log page by page through the content provider. **/
+public class EventPagingTest extends ProviderTestCase2<DroidWatchProvider>
+{
+	private static final String TAG = "EventPagingTest";
+	private static final int EVENT_COUNT = 1000000;
+	private static final int PARTITION_SIZE = 250000;
+	private static final int INSERT_BATCH = 5000;
+	
+	// Heap the walk may hold on top of what was in use before it started
+	private static final long HEAP_CEILING = 4 * 1024 * 1024;
+	
+	/**
+	 * Constructor used to test the DroidWatch provider.
+	 */
+	public EventPagingTest()
+	{
+		super(DroidWatchProvider.class, DroidWatchProvider.AUTHORITY);
+	}
+
+	/**
+	 * This method logs a million events across several partitions, then walks them in
+	 * maximum-size pages.  Every event must be read once, in order, within the heap ceiling.
+	 */
+	@LargeTest
+	public void testWalkMillionEvents()
+	{
+		insertEvents();
+		
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long baseline = runtime.totalMemory() - runtime.freeMemory();
+		long peak = 0;
+		long start = System.currentTimeMillis();
+		long afterID = 0;
+		int count = 0;
+		int pages = 0;
+		while (true)
+		{
+			Uri page = DroidWatchProvider.getPageUri(Events.CONTENT_URI, afterID, DroidWatchProvider.MAX_PAGE_SIZE);
+			Cursor cursor = getMockContentResolver().query(page, new String[]{Events._ID, Events.DETECTOR, Events.DESCRIPTION}, null, null, null);
+			if (!cursor.moveToFirst())
+			{
+				cursor.close();
+				break;
+			}
+			do
+			{
+				long id = cursor.getLong(0);
+				assertTrue("Events out of order at " + id, id > afterID);
+				afterID = id;
+				count++;
+			} while (cursor.moveToNext());
+			cursor.close();
+			pages++;
+			peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory() - baseline);
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		
+		Log.i(TAG, "Walked " + count + " events in " + pages + " pages, " + elapsed + " ms, peak heap growth " + peak + " bytes");
+		assertEquals(EVENT_COUNT, count);
+		assertTrue("Walk held " + peak + " bytes of heap", peak < HEAP_CEILING);
+	}
+
+	/**
+	 * This method logs the test events, starting a new partition every PARTITION_SIZE events.
+	 */
+	private void insertEvents()
+	{
+		ContentValues[] batch = new ContentValues[INSERT_BATCH];
+		long now = System.currentTimeMillis();
+		for (int inserted = 0; inserted < EVENT_COUNT; inserted += INSERT_BATCH)
+		{
+			if (inserted > 0 && inserted % PARTITION_SIZE == 0)
+				getMockContentResolver().insert(Partitions.CONTENT_URI, new ContentValues());
+			for (int i = 0; i < INSERT_BATCH; i++)
+			{
+				ContentValues values = new ContentValues();
+				values.put(Events.DETECTOR, "PagingTest");
+				values.put(Events.DETECTED, now);
+				values.put(Events.ACTION, "Walk");
+				values.put(Events.EVENT_DATE, now);
+				values.put(Events.DESCRIPTION, "Event " + (inserted + i));
+				batch[i] = values;
+			}
+			assertEquals(INSERT_BATCH, getMockContentResolver().bulkInsert(Events.CONTENT_URI, batch));
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.droidwatch;
+
+/**
+ * LargeUploadTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * This class uploads a 200 MB database to a local stand-in server while sampling the heap, and
+ * checks that the heap used by the upload does not grow with the size of the database, both in
+ * a single POST and in chunks of the default size.
+ * 
+ * The heap limit is the maximum heap of the VM (Runtime.maxMemory): the per-app heap on a
+ * device, or -Xmx when the tests run off the device (e.g. -Xmx32m).  The database is checked to
+ * be larger than that limit, so an upload that buffered it would fail with an OutOfMemoryError,
+ * and the live heap may only grow by MAX_HEAP_GROWTH during the upload.
+ **/
+public class LargeUploadTest extends TestCase
+{
+	private static final String TAG = "LargeUploadTest";
+	private static final long DATABASE_SIZE = 200L * 1024 * 1024;
+	private static final int PAGE_SIZE = 4096;
+	private static final long MAX_HEAP_GROWTH = 4 * 1024 * 1024;
+	private static final long SAMPLE_INTERVAL = 20;
+	private static final String UPLOAD_ID = "large";
+
+	private StandInServer server;
+	private File file;
+	private volatile boolean sampling;
+	private volatile long peakHeap;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		server = new StandInServer();
+		server.setKeepPayload(false);
+		file = File.createTempFile("droidwatch", ".db");
+		writeDatabase(file);
+		assertTrue("The heap limit must be smaller than the database", Runtime.getRuntime().maxMemory() < DATABASE_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		server.close();
+		file.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * This method uploads the database, checks what the server received and compares the peak
+	 * heap during the upload with the heap before it.
+	 *
+	 * @throws Exception
+	 */
+	@LargeTest
+	public void testBoundedHeap() throws Exception
+	{
+		long crc = UploadCompressionTest.getCRC(file);
+		TransferManager manager = new TransferManager(null);
+		manager.setSession(new TransferSession(server.getURL(), null));
+
+		long baseHeap = getUsedHeap();
+		peakHeap = baseHeap;
+		Thread sampler = startSampler();
+		long start = System.currentTimeMillis();
+		boolean transferred = manager.pushFile(file, "droidwatch.db");
+		long time = System.currentTimeMillis() - start;
+		sampling = false;
+		sampler.join();
+
+		assertTrue(transferred);
+		assertEquals(file.length(), server.getFileSize());
+		assertEquals(crc, server.getFileCRC());
+		Log.i(TAG, file.length()+" bytes sent as "+server.getFileWireBytes()+" bytes on the wire in "+time+" ms, heap "+baseHeap / 1024+
+				" KB before, "+peakHeap / 1024+" KB at peak (max "+Runtime.getRuntime().maxMemory() / 1024+" KB)");
+		assertTrue(peakHeap - baseHeap < MAX_HEAP_GROWTH);
+	}
+
+	/**
+	 * This method uploads the database in chunks of the default size, checks what the server
+	 * committed and compares the peak heap during the upload with the heap before it.
+	 *
+	 * @throws Exception
+	 */
+	@LargeTest
+	public void testBoundedHeapChunked() throws Exception
+	{
+		long crc = UploadCompressionTest.getCRC(file);
+		TransferManager manager = new TransferManager(null);
+		manager.setSession(new TransferSession(server.getURL(), null));
+
+		long baseHeap = getUsedHeap();
+		peakHeap = baseHeap;
+		Thread sampler = startSampler();
+		long start = System.currentTimeMillis();
+		long committed = manager.sendChunks(file, UPLOAD_ID, "droidwatch.db", null, file.length(), false);
+		long time = System.currentTimeMillis() - start;
+		sampling = false;
+		sampler.join();
+
+		assertEquals(file.length(), committed);
+		assertEquals(file.length(), server.getUploadSize(UPLOAD_ID));
+		assertEquals(crc, server.getUploadCRC(UPLOAD_ID));
+		Log.i(TAG, file.length()+" bytes sent in "+server.getChunkRequests()+" chunks of "+Transfer.CHUNK_SIZE+" bytes as "+server.getWireBytes()+
+				" bytes on the wire in "+time+" ms, heap "+baseHeap / 1024+" KB before, "+peakHeap / 1024+" KB at peak (max "+
+				Runtime.getRuntime().maxMemory() / 1024+" KB)");
+		assertTrue(peakHeap - baseHeap < MAX_HEAP_GROWTH);
+	}
+
+	/**
+	 * This method starts a thread that records the peak heap until sampling stops.  Garbage is
+	 * collected before each sample, so only the live objects are counted.
+	 *
+	 * @return	The thread.
+	 */
+	private Thread startSampler()
+	{
+		sampling = true;
+		Thread sampler = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while (sampling)
+				{
+					peakHeap = Math.max(peakHeap, getUsedHeap());
+					try
+					{
+						Thread.sleep(SAMPLE_INTERVAL);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		});
+		sampler.start();
+		return sampler;
+	}
+
+	/**
+	 * This method returns the heap used by live objects.
+	 *
+	 * @return	The used heap in bytes.
+	 */
+	private static long getUsedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * This method writes a database-sized file: pages of repeated rows, with every fourth page
+	 * of random bytes (the part of a database that compresses poorly).
+	 *
+	 * @param file	The file.
+	 * @throws IOException
+	 */
+	private static void writeDatabase(File file) throws IOException
+	{
+		Random random = new Random(18);
+		byte[] page = new byte[PAGE_SIZE];
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			for (long written = 0; written < DATABASE_SIZE; written += PAGE_SIZE)
+			{
+				if ((written / PAGE_SIZE) % 4 == 3)
+					random.nextBytes(page);
+				else
+				{
+					byte[] row = ("LogcatWatcher|Logcat entry|"+(1364774400000L + written)+"|I/ActivityManager("+random.nextInt(500)+"): Screen on\n").getBytes("UTF-8");
+					for (int i = 0; i < PAGE_SIZE; i++)
+						page[i] = row[i % row.length];
+				}
+				output.write(page);
+			}
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.droidwatch;
+
+/**
+ * ProviderThroughputTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import com.droidwatch.DroidWatchProvider.Logcat;
+
+/** This class measures how fast logcat events are written one at a time and in batches. **/
+public class ProviderThroughputTest extends ProviderTestCase2<DroidWatchProvider>
+{
+	private static final String TAG = "ProviderThroughputTest";
+	private static final int EVENT_COUNT = 5000;
+	private static final int BATCH_SIZE = 500;
+	
+	/**
+	 * Constructor used to test the DroidWatch provider.
+	 */
+	public ProviderThroughputTest()
+	{
+		super(DroidWatchProvider.class, DroidWatchProvider.AUTHORITY);
+	}
+
+	/**
+	 * This method writes the same logcat dump through insert() (one transaction and one change
+	 * notification per row, as before the batch path) and through bulkInsert() (one transaction
+	 * per batch, as LogcatWatcher does), and logs the rows per second of each.
+	 */
+	@LargeTest
+	public void testBatchThroughput()
+	{
+		Uri logcatUri = Logcat.CONTENT_URI;
+		ContentValues[] dump = createDump();
+		
+		long start = System.currentTimeMillis();
+		for (ContentValues values : dump)
+			assertNotNull(getMockContentResolver().insert(logcatUri, values));
+		long singleTime = Math.max(System.currentTimeMillis() - start, 1);
+		
+		start = System.currentTimeMillis();
+		for (int i = 0; i < EVENT_COUNT; i += BATCH_SIZE)
+		{
+			ContentValues[] batch = new ContentValues[BATCH_SIZE];
+			System.arraycopy(dump, i, batch, 0, BATCH_SIZE);
+			assertEquals(BATCH_SIZE, getMockContentResolver().bulkInsert(logcatUri, batch));
+		}
+		long batchTime = Math.max(System.currentTimeMillis() - start, 1);
+		
+		Log.i(TAG, "insert(): " + (EVENT_COUNT * 1000L / singleTime) + " rows/s, bulkInsert(): " + (EVENT_COUNT * 1000L / batchTime) +
+				" rows/s (" + EVENT_COUNT + " logcat events, batches of " + BATCH_SIZE + ")");
+		assertTrue("Batches were slower than single inserts", batchTime < singleTime);
+	}
+
+	/**
+	 * This method builds a logcat dump like the ones LogcatWatcher writes.
+	 * 
+	 * @return	The logcat events.
+	 */
+	private ContentValues[] createDump()
+	{
+		ContentValues[] dump = new ContentValues[EVENT_COUNT];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < EVENT_COUNT; i++)
+		{
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.DETECTOR_COLUMN, LogcatWatcher.TAG);
+			values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Logcat");
+			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, now + i);
+			values.put(DroidWatchDatabase.LOGCAT_PROCESS_COLUMN, "com.example.app" + (i % 20));
+			values.put(DroidWatchDatabase.LOGCAT_PID_COLUMN, 1000 + i % 20);
+			values.put(DroidWatchDatabase.LOGCAT_LINE_COLUMN, "I/ActivityManager( " + (1000 + i % 20) + "): Displayed activity " + i);
+			dump[i] = values;
+		}
+		return dump;
+	}
+}
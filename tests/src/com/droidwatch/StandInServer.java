@@ -0,0 +1,684 @@
+package com.droidwatch;
+
+/**
+ * StandInServer.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterOutputStream;
+import android.util.Log;
+
+/**
+ * This class is a local stand-in for the central server, used by the upload tests.  It speaks
+ * plain HTTP/1.1 over kept-alive connections and accepts both the multipart POST of a transfer
+ * (inflating the uploaded file when it is deflated) and the chunked upload protocol.  Bodies are
+ * streamed, so large uploads are never held in memory, and the request bytes read from the
+ * sockets are counted.  It can also drop the connection in the middle of every Nth chunk.
+ **/
+class StandInServer implements Runnable
+{
+	// Initialize constants and variables
+	private static final String TAG = "StandInServer";
+	private static final String BOUNDARY = "*****";
+	private static final byte[] TRAILER = ("\r\n--" + BOUNDARY + "--\r\n").getBytes();
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+	private static final String COMMITTED_EVENT_HEADER = "X-Committed-Event-ID";
+	private static final int BUFFER_SIZE = 8192;
+
+	private final ServerSocket serverSocket;
+	private final HashMap<String, Upload> uploads = new HashMap<String, Upload>();
+	private long committedEventID = -1;
+	private int dropEvery = 0;
+	private int dropAfter = -1;
+	private boolean keepPayload = true;
+
+	// Results of the requests
+	private long wireBytes = 0;
+	private int chunkRequests = 0;
+	private int disconnects = 0;
+	private String fileName = null;
+	private String fileEncoding = null;
+	private long fileWireBytes = 0;
+	private long fileSize = 0;
+	private long fileCRC = 0;
+	private ByteArrayOutputStream filePayload = null;
+
+	/** This class holds an upload received in chunks (its bytes are only kept if payloads are). **/
+	private static final class Upload
+	{
+		private long committed = 0;
+		private final CRC32 checksum = new CRC32();
+		private ByteArrayOutputStream data = null;
+	}
+
+	/** This class counts the bytes read from a socket. **/
+	private final class CountingInputStream extends InputStream
+	{
+		private final InputStream input;
+
+		private CountingInputStream(InputStream input)
+		{
+			this.input = input;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = input.read();
+			if (b >= 0)
+				addWireBytes(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int count = input.read(buffer, offset, length);
+			if (count > 0)
+				addWireBytes(count);
+			return count;
+		}
+	}
+
+	/** This class reads a request body sent with a Content-Length or in HTTP chunks. **/
+	private static final class BodyInputStream extends InputStream
+	{
+		private final InputStream input;
+		private final boolean chunked;
+		private long remaining;
+		private boolean ended;
+
+		private BodyInputStream(InputStream input, long length, boolean chunked)
+		{
+			this.input = input;
+			this.chunked = chunked;
+			this.remaining = chunked ? 0 : length;
+			this.ended = !chunked && length <= 0;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			if (ended)
+				return -1;
+			if (remaining == 0)
+			{
+				// Read the size of the next HTTP chunk (the last one is empty, followed by trailers)
+				remaining = Long.parseLong(readLine(input).split(";")[0].trim(), 16);
+				if (remaining == 0)
+				{
+					while (readLine(input).length() > 0)
+						;
+					ended = true;
+					return -1;
+				}
+			}
+			int count = input.read(buffer, offset, (int) Math.min(length, remaining));
+			if (count < 0)
+				throw new EOFException("Body ended early");
+			remaining -= count;
+			if (remaining == 0)
+			{
+				if (chunked)
+					readLine(input);
+				else
+					ended = true;
+			}
+			return count;
+		}
+	}
+
+	/** This class computes the CRC32 and length of a received file, and optionally keeps it. **/
+	private final class FileOutputSink extends OutputStream
+	{
+		private final CRC32 checksum = new CRC32();
+
+		@Override
+		public void write(int b)
+		{
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length)
+		{
+			checksum.update(buffer, offset, length);
+			fileSize += length;
+			if (filePayload != null)
+				filePayload.write(buffer, offset, length);
+		}
+	}
+
+	/**
+	 * Constructor used to listen on an ephemeral port of the loopback interface.
+	 *
+	 * @throws IOException
+	 */
+	StandInServer() throws IOException
+	{
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread thread = new Thread(this, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * This method returns the URL of the server.
+	 *
+	 * @return	The URL.
+	 */
+	URL getURL()
+	{
+		try
+		{
+			return new URL("http://127.0.0.1:"+serverSocket.getLocalPort()+"/upload");
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * This method stops the server.
+	 */
+	void close()
+	{
+		try
+		{
+			serverSocket.close();
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Unable to close server: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * This method sets the event ID acknowledged by the responses completing an upload.
+	 *
+	 * @param committedEventID	The event ID (-1 for none).
+	 */
+	synchronized void setCommittedEventID(long committedEventID)
+	{
+		this.committedEventID = committedEventID;
+	}
+
+	/**
+	 * This method makes the server drop the connection in the middle of every Nth chunk.
+	 *
+	 * @param dropEvery		The number of chunk requests per dropped one (0 to never drop).
+	 */
+	synchronized void setDropEvery(int dropEvery)
+	{
+		this.dropEvery = dropEvery;
+	}
+
+	/**
+	 * This method makes the server drop the connection in the middle of every chunk after the
+	 * next ones.
+	 *
+	 * @param chunks	The number of chunk requests served before (-1 to never drop).
+	 */
+	synchronized void setDropAfter(int chunks)
+	{
+		this.dropAfter = chunks < 0 ? -1 : chunkRequests + chunks;
+	}
+
+	/**
+	 * This method sets whether the files uploaded in a single POST or in chunks are kept in
+	 * memory, or only checked (for large uploads).
+	 *
+	 * @param keepPayload	True to keep the files, false otherwise.
+	 */
+	synchronized void setKeepPayload(boolean keepPayload)
+	{
+		this.keepPayload = keepPayload;
+	}
+
+	// Results of the requests
+	synchronized long getWireBytes()
+	{
+		return wireBytes;
+	}
+
+	synchronized int getChunkRequests()
+	{
+		return chunkRequests;
+	}
+
+	synchronized int getDisconnects()
+	{
+		return disconnects;
+	}
+
+	synchronized String getFileName()
+	{
+		return fileName;
+	}
+
+	synchronized String getFileEncoding()
+	{
+		return fileEncoding;
+	}
+
+	/**
+	 * This method returns the request bytes read from the socket for the last file uploaded in
+	 * a single POST (headers, HTTP chunk framing and multipart body).
+	 *
+	 * @return	The bytes on the wire.
+	 */
+	synchronized long getFileWireBytes()
+	{
+		return fileWireBytes;
+	}
+
+	synchronized long getFileSize()
+	{
+		return fileSize;
+	}
+
+	synchronized long getFileCRC()
+	{
+		return fileCRC;
+	}
+
+	synchronized byte[] getFilePayload()
+	{
+		return filePayload == null ? null : filePayload.toByteArray();
+	}
+
+	/**
+	 * This method returns the bytes committed for an upload received in chunks.
+	 *
+	 * @param uploadID	The upload ID.
+	 * @return			The committed bytes, or null if unknown.
+	 */
+	synchronized byte[] getUpload(String uploadID)
+	{
+		Upload upload = uploads.get(uploadID);
+		return upload == null || upload.data == null ? null : upload.data.toByteArray();
+	}
+
+	/**
+	 * This method returns the number of bytes committed for an upload received in chunks.
+	 *
+	 * @param uploadID	The upload ID.
+	 * @return			The committed offset (0 if unknown).
+	 */
+	synchronized long getUploadSize(String uploadID)
+	{
+		Upload upload = uploads.get(uploadID);
+		return upload == null ? 0 : upload.committed;
+	}
+
+	/**
+	 * This method returns the CRC32 of the bytes committed for an upload received in chunks.
+	 *
+	 * @param uploadID	The upload ID.
+	 * @return			The CRC32 (0 if unknown).
+	 */
+	synchronized long getUploadCRC(String uploadID)
+	{
+		Upload upload = uploads.get(uploadID);
+		return upload == null ? 0 : upload.checksum.getValue();
+	}
+
+	private synchronized void addWireBytes(long count)
+	{
+		wireBytes += count;
+	}
+
+	/**
+	 * This method accepts the connections, each served by its own thread.
+	 */
+	public void run()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+				Thread thread = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						serve(socket);
+					}
+				}, TAG);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+					Log.e(TAG, "Unable to accept connection: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * This method serves the requests of a kept-alive connection until it is closed.
+	 *
+	 * @param socket	The connection.
+	 */
+	private void serve(Socket socket)
+	{
+		try
+		{
+			InputStream input = new CountingInputStream(socket.getInputStream());
+			OutputStream output = socket.getOutputStream();
+			while (true)
+			{
+				long start = getWireBytes();
+				String requestLine = readLine(input);
+				if (requestLine == null || requestLine.length() == 0)
+					break;
+				HashMap<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(input)) != null && line.length() > 0)
+				{
+					int colon = line.indexOf(':');
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+				String length = headers.get("content-length");
+				InputStream body = new BodyInputStream(input, length == null ? 0 : Long.parseLong(length),
+						"chunked".equalsIgnoreCase(headers.get("transfer-encoding")));
+
+				String method = requestLine.split(" ")[0];
+				String uploadID = headers.get("x-upload-id");
+				String response;
+				if (uploadID != null && "GET".equals(method))
+					response = getOffset(uploadID);
+				else if (uploadID != null && "POST".equals(method))
+				{
+					response = putChunk(uploadID, headers, body);
+					if (response == null)
+						break;
+				}
+				else if ("POST".equals(method))
+					response = receiveFile(headers, body, start);
+				else
+					response = null;
+				respond(output, response);
+			}
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Connection failed: "+e.getMessage());
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				Log.w(TAG, "Unable to close connection: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * This method writes a response, with the acknowledged event ID if set.
+	 *
+	 * @param output	The connection output.
+	 * @param body		The response body (null for a 400 response).
+	 * @throws IOException
+	 */
+	private void respond(OutputStream output, String body) throws IOException
+	{
+		StringBuilder response = new StringBuilder();
+		response.append(body == null ? "HTTP/1.1 400 Bad Request\r\n" : "HTTP/1.1 200 OK\r\n");
+		if (body == null)
+			body = "";
+		synchronized (this)
+		{
+			if (committedEventID >= 0)
+				response.append(COMMITTED_EVENT_HEADER).append(": ").append(committedEventID).append("\r\n");
+		}
+		response.append("Content-Type: text/plain\r\nContent-Length: ").append(body.length()).append("\r\n\r\n").append(body);
+		output.write(response.toString().getBytes("US-ASCII"));
+		output.flush();
+	}
+
+	/**
+	 * This method answers the offset committed for an upload received in chunks.
+	 *
+	 * @param uploadID	The upload ID.
+	 * @return			The response body.
+	 */
+	private synchronized String getOffset(String uploadID)
+	{
+		Upload upload = uploads.get(uploadID);
+		return String.valueOf(upload == null ? 0 : upload.committed);
+	}
+
+	/**
+	 * This method receives a chunk and commits it if it starts at the committed offset and
+	 * matches its checksum.  Every Nth chunk, the connection is dropped halfway through instead.
+	 *
+	 * @param uploadID	The upload ID.
+	 * @param headers	The request headers.
+	 * @param body		The request body.
+	 * @return			The response body (the committed offset), or null to drop the connection.
+	 * @throws IOException
+	 */
+	private String putChunk(String uploadID, HashMap<String, String> headers, InputStream body) throws IOException
+	{
+		Matcher range = CONTENT_RANGE.matcher(String.valueOf(headers.get("content-range")));
+		if (!range.matches())
+			return null;
+		long first = Long.parseLong(range.group(1));
+		int length = (int) (Long.parseLong(range.group(2)) - first + 1);
+		byte[] chunk = new byte[length];
+
+		boolean drop;
+		synchronized (this)
+		{
+			chunkRequests++;
+			drop = (dropEvery > 0 && chunkRequests % dropEvery == 0) || (dropAfter >= 0 && chunkRequests > dropAfter);
+		}
+		if (drop)
+		{
+			readFully(body, chunk, length / 2);
+			synchronized (this)
+			{
+				disconnects++;
+			}
+			return null;
+		}
+		readFully(body, chunk, length);
+
+		CRC32 checksum = new CRC32();
+		checksum.update(chunk, 0, length);
+		synchronized (this)
+		{
+			Upload upload = uploads.get(uploadID);
+			if (upload == null)
+			{
+				upload = new Upload();
+				if (keepPayload)
+					upload.data = new ByteArrayOutputStream();
+				uploads.put(uploadID, upload);
+			}
+			if (first == upload.committed && Long.toHexString(checksum.getValue()).equals(headers.get("x-chunk-crc32")))
+			{
+				if (upload.data != null)
+					upload.data.write(chunk, 0, length);
+				upload.checksum.update(chunk, 0, length);
+				upload.committed += length;
+			}
+			else
+				Log.w(TAG, "Chunk at "+first+" rejected (committed "+upload.committed+")");
+			return String.valueOf(upload.committed);
+		}
+	}
+
+	/**
+	 * This method receives the multipart POST of a transfer.  The form fields come first, then
+	 * the uploaded file runs up to the closing boundary; it is inflated if the "encoding" field
+	 * announces a deflated file.
+	 *
+	 * @param headers	The request headers.
+	 * @param body		The request body.
+	 * @param start		The wire byte count before the request.
+	 * @return			The response body, or null if the form is invalid.
+	 * @throws IOException
+	 */
+	private synchronized String receiveFile(HashMap<String, String> headers, InputStream body, long start) throws IOException
+	{
+		fileName = null;
+		fileEncoding = null;
+		fileSize = 0;
+		filePayload = keepPayload ? new ByteArrayOutputStream() : null;
+
+		// Read the form fields up to the file part
+		String name = null;
+		String line;
+		while ((line = readLine(body)) != null)
+		{
+			if (!line.equals("--" + BOUNDARY))
+				return null;
+			String disposition = readLine(body);
+			while ((line = readLine(body)) != null && line.length() > 0)
+				;
+			name = getAttribute(disposition, "name");
+			if ("uploadedfile".equals(name))
+			{
+				fileName = getAttribute(disposition, "filename");
+				break;
+			}
+			String value = readLine(body);
+			if ("encoding".equals(name))
+				fileEncoding = value;
+			name = null;
+		}
+		if (name == null)
+			return null;
+
+		// Stream the file, holding back the bytes that may be the closing boundary
+		FileOutputSink sink = new FileOutputSink();
+		OutputStream file = "deflate".equals(fileEncoding) ? new InflaterOutputStream(sink) : sink;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		byte[] held = new byte[TRAILER.length];
+		int heldCount = 0;
+		int count;
+		while ((count = body.read(buffer)) >= 0)
+		{
+			int total = heldCount + count;
+			int emit = total - TRAILER.length;
+			if (emit > 0)
+			{
+				int fromHeld = Math.min(emit, heldCount);
+				file.write(held, 0, fromHeld);
+				file.write(buffer, 0, emit - fromHeld);
+				System.arraycopy(held, fromHeld, held, 0, heldCount - fromHeld);
+				heldCount -= fromHeld;
+				System.arraycopy(buffer, emit - fromHeld, held, heldCount, count - (emit - fromHeld));
+				heldCount = TRAILER.length;
+			}
+			else
+			{
+				System.arraycopy(buffer, 0, held, heldCount, count);
+				heldCount = total;
+			}
+		}
+		file.close();
+		if (heldCount != TRAILER.length || !new String(held).equals(new String(TRAILER)))
+			return null;
+
+		fileCRC = sink.checksum.getValue();
+		fileWireBytes = wireBytes - start;
+		return "OK";
+	}
+
+	/**
+	 * This method reads an attribute of a Content-Disposition header.
+	 *
+	 * @param disposition	The header line.
+	 * @param name			The attribute name.
+	 * @return				The attribute value, or null if absent.
+	 */
+	private static String getAttribute(String disposition, String name)
+	{
+		Matcher matcher = Pattern.compile("[; ]" + name + "=\"([^\"]*)\"").matcher(String.valueOf(disposition));
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 * This method reads a CRLF-terminated line.
+	 *
+	 * @param input		The stream.
+	 * @return			The line without its terminator, or null at the end of the stream.
+	 * @throws IOException
+	 */
+	private static String readLine(InputStream input) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = input.read()) >= 0 && b != '\n')
+		{
+			if (b != '\r')
+				line.append((char) b);
+		}
+		return b < 0 && line.length() == 0 ? null : line.toString();
+	}
+
+	/**
+	 * This method reads a given number of bytes.
+	 *
+	 * @param input		The stream.
+	 * @param buffer	The buffer.
+	 * @param length	The number of bytes.
+	 * @throws IOException
+	 */
+	private static void readFully(InputStream input, byte[] buffer, int length) throws IOException
+	{
+		int read = 0;
+		while (read < length)
+		{
+			int count = input.read(buffer, read, length - read);
+			if (count < 0)
+				throw new EOFException("Body ended early");
+			read += count;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.droidwatch;
+
+/**
+ * TestCorpus.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+/**
+ * This class generates the corpus shared by the benchmarks: the events of a collection period,
+ * logged with the detector names, actions, columns and URIs the watchers use.  Most of them are
+ * logcat lines of third-party apps (with the occasional stack trace), between screen, location
+ * and browser events.
+ **/
+class TestCorpus
+{
+	// Initialize constants and variables
+	private static final long FIRST_DATE = 1364774400000L;
+	private static final String[] PROCESSES = {"com.facebook.katana", "com.twitter.android", "com.skype.raider", "com.rovio.angrybirds",
+			"com.pandora.android", "com.dropbox.android", "com.whatsapp", "com.example.app"};
+	private static final String[] TAGS = {"ActivityManager", "PowerManagerService", "dalvikvm", "WindowManager", "NetworkLocationProvider",
+			"GTalkService", "InputManagerService", "SMSDispatcher"};
+	private static final String[] MESSAGES = {"Starting activity: Intent { act=android.intent.action.MAIN cat=[android.intent.category.LAUNCHER] flg=0x10200000 cmp=",
+			"GC_CONCURRENT freed 1024K, 47% free 3129K/5831K, external 408K/517K, paused 2ms+3ms",
+			"Displayed ", "Screen on, acquiring wake lock", "Process has died: ", "onLocationChanged: accuracy ",
+			"Connection established to mtalk.google.com:5228", "Sending SMS message, retry count 0"};
+	static final String STACK_TRACE = "java.lang.NullPointerException\n" +
+			"\tat com.example.app.MainActivity.onResume(MainActivity.java:%d)\n" +
+			"\tat android.app.Instrumentation.callActivityOnResume(Instrumentation.java:1150)\n" +
+			"\tat android.app.Activity.performResume(Activity.java:3832)\n" +
+			"\tat android.app.ActivityThread.performResumeActivity(ActivityThread.java:2110)\n" +
+			"\tat android.app.ActivityThread.handleResumeActivity(ActivityThread.java:2135)\n" +
+			"\tat android.app.ActivityThread.handleLaunchActivity(ActivityThread.java:1668)\n" +
+			"\tat android.os.Handler.dispatchMessage(Handler.java:99)\n" +
+			"\tat android.os.Looper.loop(Looper.java:130)\n" +
+			"\tat android.app.ActivityThread.main(ActivityThread.java:3687)\n" +
+			"\tat java.lang.reflect.Method.invokeNative(Native Method)\n" +
+			"\tat com.android.internal.os.ZygoteInit.main(ZygoteInit.java:507)";
+	private static final String[] SCREEN_ACTIONS = {"Screen Off", "Screen Locked", "Screen Unlocked"};
+	private static final String[] PAGES = {"Google", "CNN.com - Breaking News", "Facebook", "Weather Forecast", "Amazon.com: Online Shopping"};
+	private static final String[] SITES = {"http://www.google.com/search?q=", "http://www.cnn.com/", "http://m.facebook.com/",
+			"http://www.weather.com/weather/today/", "http://www.amazon.com/gp/aw/s?k="};
+
+	/** This class holds a generated event, and the description and additional info the events view shows for it. **/
+	static final class Event
+	{
+		final Uri uri;
+		final ContentValues values;
+		final String description;
+		final String additionalInfo;
+
+		/**
+		 * Constructor used to set the event.
+		 *
+		 * @param uri				The content provider URI the watcher inserts into.
+		 * @param values			The inserted values.
+		 * @param description		The description shown by the events view.
+		 * @param additionalInfo	The additional info shown by the events view.
+		 */
+		private Event(Uri uri, ContentValues values, String description, String additionalInfo)
+		{
+			this.uri = uri;
+			this.values = values;
+			this.description = description;
+			this.additionalInfo = additionalInfo;
+		}
+	}
+
+	/**
+	 * This method generates logcat lines: mostly short lines, with the occasional stack trace.
+	 *
+	 * @param count		The number of lines.
+	 * @param seed		The random seed.
+	 * @return			The logcat lines.
+	 */
+	static ArrayList<String> createLogcatLines(int count, long seed)
+	{
+		Random random = new Random(seed);
+		ArrayList<String> lines = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			lines.add(createLogcatLine(random, 100 + random.nextInt(400), PROCESSES[random.nextInt(PROCESSES.length)]));
+		return lines;
+	}
+
+	/**
+	 * This method generates the events of a collection period, in date order.
+	 *
+	 * @param count		The number of events.
+	 * @param seed		The random seed.
+	 * @return			The events.
+	 */
+	static ArrayList<Event> createEvents(int count, long seed)
+	{
+		Random random = new Random(seed);
+		ArrayList<Event> events = new ArrayList<Event>(count);
+		long date = FIRST_DATE;
+		for (int i = 0; i < count; i++)
+		{
+			date += random.nextInt(5000);
+			int kind = random.nextInt(100);
+			ContentValues values = new ContentValues();
+			values.put(DroidWatchDatabase.EVENT_DATE_COLUMN, date);
+			if (kind < 80)
+			{
+				// LogcatWatcher
+				int pid = 100 + random.nextInt(400);
+				String process = PROCESSES[random.nextInt(PROCESSES.length)];
+				String line = createLogcatLine(random, pid, process);
+				values.put(DroidWatchDatabase.DETECTOR_COLUMN, LogcatWatcher.TAG);
+				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Logcat");
+				values.put(DroidWatchDatabase.LOGCAT_PROCESS_COLUMN, process);
+				values.put(DroidWatchDatabase.LOGCAT_PID_COLUMN, pid);
+				values.put(DroidWatchDatabase.LOGCAT_LINE_COLUMN, line);
+				events.add(new Event(DroidWatchProvider.Logcat.CONTENT_URI, values, process, line));
+			}
+			else if (kind < 90)
+			{
+				// ScreenWatcher
+				values.put(DroidWatchDatabase.DETECTOR_COLUMN, ScreenWatcher.TAG);
+				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, SCREEN_ACTIONS[random.nextInt(SCREEN_ACTIONS.length)]);
+				events.add(new Event(DroidWatchProvider.Events.CONTENT_URI, values, null, null));
+			}
+			else if (kind < 95)
+			{
+				// LocationWatcher
+				double latitude = 38.8 + random.nextInt(10000) / 100000.0;
+				double longitude = -77.1 + random.nextInt(10000) / 100000.0;
+				values.put(DroidWatchDatabase.DETECTOR_COLUMN, LocationWatcher.TAG);
+				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "LastKnownLocation Received");
+				values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(LocationWatcher.TAG, date));
+				values.put(DroidWatchDatabase.LOCATION_LATITUDE_COLUMN, latitude);
+				values.put(DroidWatchDatabase.LOCATION_LONGITUDE_COLUMN, longitude);
+				events.add(new Event(DroidWatchProvider.Locations.CONTENT_URI, values, "Lat:"+latitude+"; Lng:"+longitude, null));
+			}
+			else
+			{
+				// BrowserHistoryWatcher
+				int site = random.nextInt(SITES.length);
+				String url = SITES[site]+random.nextInt(100000);
+				values.put(DroidWatchDatabase.DETECTOR_COLUMN, BrowserHistoryWatcher.TAG);
+				values.put(DroidWatchDatabase.EVENT_ACTION_COLUMN, "Browser Navigation");
+				values.put(DroidWatchDatabase.EVENT_DESCRIPTION_COLUMN, PAGES[site]);
+				values.put(DroidWatchDatabase.DEDUP_KEY_COLUMN, DroidWatchProvider.dedupKey(BrowserHistoryWatcher.TAG, "Navigation", date, url));
+				values.put(DroidWatchDatabase.BROWSER_VISIT_URL_COLUMN, url);
+				events.add(new Event(DroidWatchProvider.BrowserVisits.CONTENT_URI, values, PAGES[site], url));
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * This method logs events through a content resolver, in order, one bulk insert per run of
+	 * events sharing a URI (at most batchSize events each).
+	 *
+	 * @param resolver		The content resolver.
+	 * @param events		The events.
+	 * @param batchSize		The maximum events per bulk insert.
+	 * @return				The number of events inserted.
+	 */
+	static int insertEvents(ContentResolver resolver, List<Event> events, int batchSize)
+	{
+		int inserted = 0;
+		ArrayList<ContentValues> batch = new ArrayList<ContentValues>(batchSize);
+		Uri uri = null;
+		for (Event event : events)
+		{
+			if (!batch.isEmpty() && (!event.uri.equals(uri) || batch.size() >= batchSize))
+			{
+				inserted += resolver.bulkInsert(uri, batch.toArray(new ContentValues[batch.size()]));
+				batch.clear();
+			}
+			uri = event.uri;
+			batch.add(event.values);
+		}
+		if (!batch.isEmpty())
+			inserted += resolver.bulkInsert(uri, batch.toArray(new ContentValues[batch.size()]));
+		return inserted;
+	}
+
+	/**
+	 * This method generates one logcat line.
+	 *
+	 * @param random	The random generator.
+	 * @param pid		The process ID.
+	 * @param process	The process name.
+	 * @return			The logcat line.
+	 */
+	private static String createLogcatLine(Random random, int pid, String process)
+	{
+		if (random.nextInt(20) == 0)
+			return "E/AndroidRuntime(" + pid + "): FATAL EXCEPTION: main " + String.format(STACK_TRACE, 20 + random.nextInt(500));
+		return "I/" + TAGS[random.nextInt(TAGS.length)] + "(" + pid + "): " + MESSAGES[random.nextInt(MESSAGES.length)] +
+				process + "/." + random.nextInt(1000);
+	}
+}
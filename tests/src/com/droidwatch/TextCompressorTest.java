@@ -0,0 +1,117 @@
+package com.droidwatch;
+
+/**
+ * TextCompressorTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import android.content.ContentValues;
+import android.util.Log;
+import junit.framework.TestCase;
+
+/** This class checks the compressed text columns and benchmarks them on a logcat corpus. **/
+public class TextCompressorTest extends TestCase
+{
+	private static final String TAG = "TextCompressorTest";
+	private static final String COLUMN = DroidWatchDatabase.ADDITIONAL_INFO_COLUMN;
+	private static final int CORPUS_LINES = 20000;
+	
+	/**
+	 * This method checks that small values stay inline and large ones round-trip compressed.
+	 */
+	public void testThreshold()
+	{
+		ContentValues values = new ContentValues();
+		values.put(COLUMN, "I/ActivityManager(  102): Screen on");
+		TextCompressor.compress(values, COLUMN);
+		assertTrue(values.get(COLUMN) instanceof String);
+		
+		String trace = String.format(TestCorpus.STACK_TRACE, 42);
+		values.put(COLUMN, trace);
+		TextCompressor.compress(values, COLUMN);
+		byte[] stored = values.getAsByteArray(COLUMN);
+		assertTrue(TextCompressor.isCompressed(stored));
+		assertTrue(stored.length < trace.length());
+		assertEquals(trace, TextCompressor.inflate(stored));
+	}
+
+	/**
+	 * This method checks that a small value starting with the marker character is compressed,
+	 * so it cannot be mistaken for compressed text when it is read back.
+	 */
+	public void testMarkedValue()
+	{
+		ContentValues values = new ContentValues();
+		String marked = (char) TextCompressor.MARKER + "x";
+		values.put(COLUMN, marked);
+		TextCompressor.compress(values, COLUMN);
+		assertEquals(marked, TextCompressor.inflate(values.getAsByteArray(COLUMN)));
+	}
+
+	/**
+	 * This method stores a generated logcat corpus as the provider does and logs the bytes
+	 * saved and the compression (insert) and decompression (query) time per line.
+	 */
+	public void testLogcatCorpus()
+	{
+		ArrayList<String> corpus = TestCorpus.createLogcatLines(CORPUS_LINES, 13);
+		long textBytes = 0;
+		long storedBytes = 0;
+		int compressedCount = 0;
+		ArrayList<Object> stored = new ArrayList<Object>(corpus.size());
+		
+		long start = System.nanoTime();
+		for (String line : corpus)
+		{
+			ContentValues values = new ContentValues();
+			values.put(COLUMN, line);
+			TextCompressor.compress(values, COLUMN);
+			stored.add(values.get(COLUMN));
+		}
+		long insertTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < corpus.size(); i++)
+		{
+			Object value = stored.get(i);
+			String text = (value instanceof byte[]) ? TextCompressor.inflate((byte[]) value) : (String) value;
+			assertEquals(corpus.get(i), text);
+		}
+		long queryTime = System.nanoTime() - start;
+		
+		for (int i = 0; i < corpus.size(); i++)
+		{
+			Object value = stored.get(i);
+			textBytes += corpus.get(i).length();
+			if (value instanceof byte[])
+			{
+				storedBytes += ((byte[]) value).length;
+				compressedCount++;
+			}
+			else
+				storedBytes += ((String) value).length();
+		}
+		
+		Log.i(TAG, corpus.size() + " lines (" + compressedCount + " compressed): " + textBytes + " bytes stored as " + storedBytes +
+				" bytes (" + (textBytes * 100 / storedBytes) / 100.0 + "x), insert " + insertTime / corpus.size() / 1000 + " us/line, query " +
+				queryTime / corpus.size() / 1000 + " us/line");
+		assertTrue(storedBytes < textBytes);
+	}
+}
@@ -0,0 +1,137 @@
+package com.droidwatch;
+
+/**
+ * UploadCompressionTest.java
+ * @author Justin Grover
+ *
+ * NOTICE - This software is intended to serve as prototype material.
+ *
+ * Copyright 2013 Justin Grover
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * This class logs a collection period of events through the provider, uploads the resulting
+ * results.db to a local stand-in server at each compression level, and logs the bytes on the
+ * wire and the upload time.  The server inflates the upload and checks it against the file.
+ **/
+public class UploadCompressionTest extends ProviderTestCase2<DroidWatchProvider>
+{
+	private static final String TAG = "UploadCompressionTest";
+	private static final int EVENT_COUNT = 50000;
+	private static final int INSERT_BATCH = 500;
+	private static final int[] LEVELS = {0, 1, 6, 9};
+
+	private StandInServer server;
+	private File file;
+	private int compressionLevel;
+
+	/**
+	 * Constructor used to test the DroidWatch provider.
+	 */
+	public UploadCompressionTest()
+	{
+		super(DroidWatchProvider.class, DroidWatchProvider.AUTHORITY);
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		compressionLevel = Transfer.COMPRESSION_LEVEL;
+		server = new StandInServer();
+		server.setKeepPayload(false);
+
+		// Log the events as the watchers do, into the test database of the provider
+		assertEquals(EVENT_COUNT, TestCorpus.insertEvents(getMockContentResolver(), TestCorpus.createEvents(EVENT_COUNT, 16), INSERT_BATCH));
+		file = getMockContext().getDatabasePath(DroidWatchDatabase.DATABASE_NAME);
+		assertTrue(file.exists());
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		Transfer.COMPRESSION_LEVEL = compressionLevel;
+		server.close();
+		super.tearDown();
+	}
+
+	/**
+	 * This method uploads the database at each compression level, checks what the server received
+	 * and logs the bytes on the wire.
+	 *
+	 * @throws IOException
+	 */
+	@LargeTest
+	public void testWireBytes() throws IOException
+	{
+		long crc = getCRC(file);
+		long[] wireBytes = new long[LEVELS.length];
+		for (int i = 0; i < LEVELS.length; i++)
+		{
+			Transfer.COMPRESSION_LEVEL = LEVELS[i];
+			TransferManager manager = new TransferManager(null);
+			manager.setSession(new TransferSession(server.getURL(), null));
+
+			long start = System.nanoTime();
+			assertTrue(manager.pushFile(file, DroidWatchDatabase.DATABASE_NAME));
+			long time = System.nanoTime() - start;
+
+			assertEquals(DroidWatchDatabase.DATABASE_NAME, server.getFileName());
+			assertEquals(LEVELS[i] > 0 ? "deflate" : null, server.getFileEncoding());
+			assertEquals(file.length(), server.getFileSize());
+			assertEquals(crc, server.getFileCRC());
+			wireBytes[i] = server.getFileWireBytes();
+			Log.i(TAG, "Level "+LEVELS[i]+": "+file.length()+" bytes sent as "+wireBytes[i]+" bytes on the wire ("+
+					(file.length() * 100 / wireBytes[i]) / 100.0+"x) in "+time / 1000000+" ms");
+		}
+		assertTrue(wireBytes[0] > file.length());
+		for (int i = 1; i < LEVELS.length; i++)
+			assertTrue(wireBytes[i] * 2 < wireBytes[0]);
+	}
+
+	/**
+	 * This method computes the CRC32 of a file.
+	 *
+	 * @param file	The file.
+	 * @return		The CRC32.
+	 * @throws IOException
+	 */
+	static long getCRC(File file) throws IOException
+	{
+		CRC32 checksum = new CRC32();
+		InputStream input = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = input.read(buffer)) > 0)
+				checksum.update(buffer, 0, count);
+		}
+		finally
+		{
+			input.close();
+		}
+		return checksum.getValue();
+	}
+}